@@ -0,0 +1,348 @@
+package ann.jn.neuroNet;
+
+/**
+ * <p>
+ * The built in {@link Neuron.INeuronActivationFunction}s.
+ * </p>
+ * <p>
+ * Each function comes in an exact form and a <code>_FAST</code> form.  The exact forms are
+ * computed with {@link Math} in double precision.  The fast forms trade a small, bounded
+ * error for speed; {@link #getMaxError()} returns the largest difference between a fast
+ * form and its exact form over all finite inputs.  Functions that are already cheap to
+ * compute exactly have fast forms identical to their exact forms.
+ * </p>
+ * <p>
+ * Every function can also be applied to a whole array of values at once with
+ * {@link #apply(float[], int, int)}, which avoids a call per value.  Each function
+ * has its own copy of that loop, so the function is never called through an
+ * interface from inside it.  Each function also gives its
+ * {@link #derivative(float, float) derivative}, which training uses.  All of the
+ * functions are stateless and safe to share between threads.
+ * </p>
+ */
+public enum Activation implements Neuron.IDifferentiableActivationFunction {
+	/**
+	 * The logistic function f(x) = 1/(1 + e^-x).
+	 */
+	LOGISTIC(0) {
+		@Override
+		public float evaluate(float x) {
+			return (float) (1 / (1 + Math.exp(-x)));
+		}
+
+		@Override
+		public float derivative(float x, float y) {
+			return y * (1 - y);
+		}
+
+		@Override
+		public void apply(float[] values, int off, int n) {
+			for (int i = off; i < off + n; i++) {
+				values[i] = (float) (1 / (1 + Math.exp(-values[i])));
+			}
+		}
+	},
+
+	/**
+	 * The logistic function, interpolated from a table.  Its error is at most
+	 * {@value Activation#LOGISTIC_FAST_ERROR}.
+	 */
+	LOGISTIC_FAST(Activation.LOGISTIC_FAST_ERROR) {
+		@Override
+		public float evaluate(float x) {
+			return LogisticTable.evaluate(x);
+		}
+
+		@Override
+		public float derivative(float x, float y) {
+			return y * (1 - y);
+		}
+
+		@Override
+		public void apply(float[] values, int off, int n) {
+			for (int i = off; i < off + n; i++) {
+				values[i] = LogisticTable.evaluate(values[i]);
+			}
+		}
+	},
+
+	/**
+	 * The hyperbolic tangent f(x) = (e^x - e^-x)/(e^x + e^-x).
+	 */
+	TANH(0) {
+		@Override
+		public float evaluate(float x) {
+			return (float) Math.tanh(x);
+		}
+
+		@Override
+		public float derivative(float x, float y) {
+			return 1 - y * y;
+		}
+
+		@Override
+		public void apply(float[] values, int off, int n) {
+			for (int i = off; i < off + n; i++) {
+				values[i] = (float) Math.tanh(values[i]);
+			}
+		}
+	},
+
+	/**
+	 * The hyperbolic tangent, computed as 2 * logistic(2x) - 1 from the table of
+	 * {@link #LOGISTIC_FAST}.  Its error is at most {@value Activation#TANH_FAST_ERROR}.
+	 */
+	TANH_FAST(Activation.TANH_FAST_ERROR) {
+		@Override
+		public float evaluate(float x) {
+			return 2 * LogisticTable.evaluate(2 * x) - 1;
+		}
+
+		@Override
+		public float derivative(float x, float y) {
+			return 1 - y * y;
+		}
+
+		@Override
+		public void apply(float[] values, int off, int n) {
+			for (int i = off; i < off + n; i++) {
+				values[i] = 2 * LogisticTable.evaluate(2 * values[i]) - 1;
+			}
+		}
+	},
+
+	/**
+	 * The rectified linear function f(x) = max(0, x).
+	 */
+	RELU(0) {
+		@Override
+		public float evaluate(float x) {
+			return x > 0 ? x : 0;
+		}
+
+		@Override
+		public float derivative(float x, float y) {
+			return x > 0 ? 1 : 0;
+		}
+
+		@Override
+		public void apply(float[] values, int off, int n) {
+			for (int i = off; i < off + n; i++) {
+				values[i] = values[i] > 0 ? values[i] : 0;
+			}
+		}
+	},
+
+	/**
+	 * The rectified linear function; identical to {@link #RELU}.
+	 */
+	RELU_FAST(0) {
+		@Override
+		public float evaluate(float x) {
+			return RELU.evaluate(x);
+		}
+
+		@Override
+		public float derivative(float x, float y) {
+			return x > 0 ? 1 : 0;
+		}
+
+		@Override
+		public void apply(float[] values, int off, int n) {
+			RELU.apply(values, off, n);
+		}
+	},
+
+	/**
+	 * The leaky rectified linear function f(x) = x for x > 0, and
+	 * {@value Activation#LEAKY_SLOPE} * x otherwise.
+	 */
+	LEAKY_RELU(0) {
+		@Override
+		public float evaluate(float x) {
+			return x > 0 ? x : LEAKY_SLOPE * x;
+		}
+
+		@Override
+		public float derivative(float x, float y) {
+			return x > 0 ? 1 : LEAKY_SLOPE;
+		}
+
+		@Override
+		public void apply(float[] values, int off, int n) {
+			for (int i = off; i < off + n; i++) {
+				values[i] = values[i] > 0 ? values[i] : LEAKY_SLOPE * values[i];
+			}
+		}
+	},
+
+	/**
+	 * The leaky rectified linear function; identical to {@link #LEAKY_RELU}.
+	 */
+	LEAKY_RELU_FAST(0) {
+		@Override
+		public float evaluate(float x) {
+			return LEAKY_RELU.evaluate(x);
+		}
+
+		@Override
+		public float derivative(float x, float y) {
+			return x > 0 ? 1 : LEAKY_SLOPE;
+		}
+
+		@Override
+		public void apply(float[] values, int off, int n) {
+			LEAKY_RELU.apply(values, off, n);
+		}
+	},
+
+	/**
+	 * The softsign function f(x) = x/(1 + |x|).
+	 */
+	SOFTSIGN(0) {
+		@Override
+		public float evaluate(float x) {
+			return (float) (x / (1 + Math.abs((double) x)));
+		}
+
+		@Override
+		public float derivative(float x, float y) {
+			float d = 1 + Math.abs(x);
+			return 1 / (d * d);
+		}
+
+		@Override
+		public void apply(float[] values, int off, int n) {
+			for (int i = off; i < off + n; i++) {
+				values[i] = (float) (values[i] / (1 + Math.abs((double) values[i])));
+			}
+		}
+	},
+
+	/**
+	 * The softsign function, computed in single precision.  Its error is at most
+	 * {@value Activation#SOFTSIGN_FAST_ERROR}.
+	 */
+	SOFTSIGN_FAST(Activation.SOFTSIGN_FAST_ERROR) {
+		@Override
+		public float evaluate(float x) {
+			return x / (1 + Math.abs(x));
+		}
+
+		@Override
+		public float derivative(float x, float y) {
+			float d = 1 + Math.abs(x);
+			return 1 / (d * d);
+		}
+
+		@Override
+		public void apply(float[] values, int off, int n) {
+			for (int i = off; i < off + n; i++) {
+				values[i] = values[i] / (1 + Math.abs(values[i]));
+			}
+		}
+	};
+
+	/**
+	 * The slope of {@link #LEAKY_RELU} for inputs below zero.
+	 */
+	public static final float LEAKY_SLOPE = 0.01f;
+
+	/**
+	 * The largest error of {@link #LOGISTIC_FAST}.
+	 */
+	public static final float LOGISTIC_FAST_ERROR = 2e-5f;
+
+	/**
+	 * The largest error of {@link #TANH_FAST}.
+	 */
+	public static final float TANH_FAST_ERROR = 4e-5f;
+
+	/**
+	 * The largest error of {@link #SOFTSIGN_FAST}.
+	 */
+	public static final float SOFTSIGN_FAST_ERROR = 2e-7f;
+
+	private final float maxError;
+
+	private Activation(float maxError) {
+		this.maxError = maxError;
+	}
+
+	/**
+	 * Returns the largest difference between this function and the exact function
+	 * it approximates, or zero for exact functions.
+	 * @return the maximum error
+	 */
+	public float getMaxError() {
+		return maxError;
+	}
+
+	/**
+	 * Replaces each of <code>n</code> values, starting at <code>off</code>, with the result of
+	 * evaluating this function for it.
+	 * @param values the values
+	 * @param off the index of the first value
+	 * @param n the number of values
+	 */
+	public void apply(float[] values, int off, int n) {
+		for (int i = off; i < off + n; i++) {
+			values[i] = evaluate(values[i]);
+		}
+	}
+
+	/**
+	 * Multiplies each of <code>n</code> errors, starting at <code>errOff</code>, by the
+	 * {@link #derivative(float, float) derivative} of this function at the matching weighted
+	 * sum and output, starting at <code>off</code>.
+	 * @param sums the weighted sums
+	 * @param outs the outputs activated from the sums
+	 * @param off the index of the first sum and output
+	 * @param err the errors
+	 * @param errOff the index of the first error
+	 * @param n the number of errors
+	 */
+	public void scaleByDerivative(float[] sums, float[] outs, int off, float[] err, int errOff, int n) {
+		for (int i = 0; i < n; i++) {
+			err[errOff + i] *= derivative(sums[off + i], outs[off + i]);
+		}
+	}
+
+	/**
+	 * Holds the table of {@link Activation#LOGISTIC_FAST}, created on first use.
+	 */
+	private static final class LogisticTable {
+		/**
+		 * Beyond +/-RANGE the logistic function is within 2^-23 of 0 or 1.
+		 */
+		private static final float RANGE = 16;
+
+		/**
+		 * Entries per unit of input.  Linear interpolation between entries h apart is
+		 * off by at most h^2/8 * max|f''| = 0.0962/8192, about 1.2e-5.
+		 */
+		private static final float SCALE = 32;
+
+		private static final int LAST = (int) (2 * RANGE * SCALE);
+		private static final float[] TABLE = new float[LAST + 1];
+
+		static {
+			for (int i = 0; i <= LAST; i++) {
+				TABLE[i] = (float) (1 / (1 + Math.exp(-(i / SCALE - RANGE))));
+			}
+		}
+
+		static float evaluate(float x) {
+			float t = (x + RANGE) * SCALE;
+			if (t <= 0) {
+				return TABLE[0];
+			} else if (t >= LAST) {
+				return TABLE[LAST];
+			}
+
+			int i = (int) t;
+			float a = TABLE[i];
+			return a + (t - i) * (TABLE[i + 1] - a);
+		}
+	}
+}
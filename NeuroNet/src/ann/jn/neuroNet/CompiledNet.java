@@ -0,0 +1,144 @@
+package ann.jn.neuroNet;
+
+/**
+ * <p>
+ * An evaluator specialised to the shape and weights of one neural network, created with
+ * {@link NeuralNet#compile()}.
+ * </p>
+ * <p>
+ * For small nets most of the time of {@link NeuralNet#update()} goes to checking arguments,
+ * locking and looping rather than to arithmetic.  Compiling a net generates a class whose
+ * {@link #evaluate(float[], float[])} method is straight-line code: every weight and bias is
+ * a constant, every neuron's sum is written out in full, weights of zero are left out, and
+ * the outputs of each layer are kept in local variables.  The class is defined in its own
+ * class loader, so it is unloaded once the CompiledNet is no longer used.
+ * </p>
+ * <p>
+ * Nets with more than {@link #MAX_WEIGHTS} weights are too large for one method.  For those,
+ * and wherever classes cannot be defined at runtime, a CompiledNet evaluates a
+ * {@link NeuralNetSnapshot} instead, and {@link #isGenerated()} returns false.
+ * </p>
+ * <p>
+ * A CompiledNet holds no state, so any number of threads may evaluate it at once.  Later
+ * changes to the NeuralNet it was compiled from have no effect on it.  Sums are added in
+ * order, so the outputs may differ from those of the NeuralNet in the last bits.
+ * </p>
+ */
+public abstract class CompiledNet {
+	/**
+	 * The largest number of weights, including those of the input layer, that is compiled
+	 * to code.
+	 */
+	public static final int MAX_WEIGHTS = 4096;
+
+	/**
+	 * The activation function of each layer, read by the generated code.
+	 */
+	protected final Neuron.INeuronActivationFunction[] functions;
+	private final int inputs;
+	private final int outputs;
+
+	/**
+	 * Creates a CompiledNet for the given layers.
+	 * @param funcs the activation function of each layer
+	 * @param sizes the number of neurons in each layer
+	 */
+	protected CompiledNet(Neuron.INeuronActivationFunction[] funcs, int[] sizes) {
+		this.functions = funcs;
+		this.inputs = sizes[0];
+		this.outputs = sizes[sizes.length - 1];
+	}
+
+	/**
+	 * Compiles the weights, biases and activation functions of the given snapshot.
+	 * @param net the snapshot to compile
+	 * @return the compiled net
+	 */
+	public static CompiledNet compile(NeuralNetSnapshot net) {
+		int layers = net.getNumLayers();
+		int[] sizes = new int[layers];
+		Neuron.INeuronActivationFunction[] funcs = new Neuron.INeuronActivationFunction[layers];
+		long weights = 0;
+		for (int i = 0; i < layers; i++) {
+			sizes[i] = net.getLayerSize(i);
+			funcs[i] = net.getFunction(i);
+			weights += net.getWeights(i).length;
+		}
+
+		if (weights <= MAX_WEIGHTS) {
+			try {
+				return CompiledNetWriter.define(net, sizes, funcs);
+			} catch (RuntimeException | LinkageError e) {
+				// Fall back to the snapshot
+			}
+		}
+
+		return new Interpreted(net, funcs, sizes);
+	}
+
+	/**
+	 * Evaluates the network for the given inputs and writes the outputs to <code>out</code>.
+	 * Generated code checks no arguments beyond what the JVM checks, so <code>in</code> must
+	 * hold {@link #getNumInputs()} values and <code>out</code> {@link #getNumOutputs()}.
+	 * @param in the values for each input neuron
+	 * @param out receives the value of each output neuron
+	 */
+	public abstract void evaluate(float[] in, float[] out);
+
+	/**
+	 * Evaluates the network for the given inputs and returns a new array of outputs.
+	 * @param in the values for each input neuron
+	 * @return the outputs
+	 */
+	public float[] evaluate(float[] in) {
+		float[] out = new float[outputs];
+		evaluate(in, out);
+		return out;
+	}
+
+	/**
+	 * Returns whether this net runs generated code, rather than a snapshot.
+	 * @return whether code was generated
+	 */
+	public boolean isGenerated() {
+		return true;
+	}
+
+	/**
+	 * Returns the number of neurons in the input layer.
+	 * @return the number of inputs
+	 */
+	public int getNumInputs() {
+		return inputs;
+	}
+
+	/**
+	 * Returns the number of neurons in the output layer.
+	 * @return the number of outputs
+	 */
+	public int getNumOutputs() {
+		return outputs;
+	}
+
+	/**
+	 * Evaluates a snapshot, for nets that cannot be compiled.
+	 */
+	private static final class Interpreted extends CompiledNet {
+		private final NeuralNetSnapshot net;
+
+		Interpreted(NeuralNetSnapshot net, Neuron.INeuronActivationFunction[] funcs, int[] sizes) {
+			super(funcs, sizes);
+			this.net = net;
+		}
+
+		@Override
+		public void evaluate(float[] in, float[] out) {
+			net.update(in, out);
+		}
+
+		@Override
+		public boolean isGenerated() {
+			return false;
+		}
+	}
+}
@@ -0,0 +1,360 @@
+package ann.jn.neuroNet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>
+ * Writes the class file of a {@link CompiledNet} subclass for one net, and defines it.
+ * </p>
+ * <p>
+ * The generated <code>evaluate</code> method first loads the activation function of each
+ * layer into a local variable.  Each neuron then pushes its bias, adds each of its nonzero
+ * weights times the output of the neuron it applies to, applies its layer's function and
+ * stores the result in a local variable.  The locals of two neighbouring layers are kept in
+ * two banks that are swapped after each layer.  The code has no branches, so it needs no
+ * stack map frames.
+ * </p>
+ */
+final class CompiledNetWriter {
+	private static final String SUPER = "ann/jn/neuroNet/CompiledNet";
+	private static final String FUNCTION = "ann/jn/neuroNet/Neuron$INeuronActivationFunction";
+	private static final String PREFIX = "ann.jn.neuroNet.GeneratedNet";
+	private static final AtomicInteger COUNT = new AtomicInteger();
+
+	// Opcodes
+	private static final int ICONST_0 = 0x03;
+	private static final int FCONST_0 = 0x0b;
+	private static final int BIPUSH = 0x10;
+	private static final int SIPUSH = 0x11;
+	private static final int LDC = 0x12;
+	private static final int LDC_W = 0x13;
+	private static final int FLOAD = 0x17;
+	private static final int ALOAD = 0x19;
+	private static final int ALOAD_0 = 0x2a;
+	private static final int ALOAD_1 = 0x2b;
+	private static final int ALOAD_2 = 0x2c;
+	private static final int FALOAD = 0x30;
+	private static final int AALOAD = 0x32;
+	private static final int FSTORE = 0x38;
+	private static final int ASTORE = 0x3a;
+	private static final int FASTORE = 0x51;
+	private static final int FADD = 0x62;
+	private static final int FMUL = 0x6a;
+	private static final int RETURN = 0xb1;
+	private static final int GETFIELD = 0xb4;
+	private static final int INVOKESPECIAL = 0xb7;
+	private static final int INVOKEINTERFACE = 0xb9;
+	private static final int WIDE = 0xc4;
+
+	private CompiledNetWriter() {
+	}
+
+	/**
+	 * Generates, defines and instantiates the class of the given net.
+	 */
+	static CompiledNet define(NeuralNetSnapshot net, int[] sizes, Neuron.INeuronActivationFunction[] funcs) {
+		String name = PREFIX + COUNT.incrementAndGet();
+		byte[] bytes;
+		try {
+			bytes = write(name.replace('.', '/'), net, sizes);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+
+		try {
+			Class<?> c = new Loader(CompiledNet.class.getClassLoader()).define(name, bytes);
+			Constructor<?> ctor = c.getConstructor(Neuron.INeuronActivationFunction[].class, int[].class);
+			return (CompiledNet) ctor.newInstance(funcs, sizes);
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	// Private methods
+	private static byte[] write(String name, NeuralNetSnapshot net, int[] sizes) throws IOException {
+		Pool pool = new Pool();
+		int thisClass = pool.classRef(name);
+		int superClass = pool.classRef(SUPER);
+		int code = pool.utf8("Code");
+		int init = pool.utf8("<init>");
+		int initDesc = pool.utf8("([L" + FUNCTION + ";[I)V");
+		int superInit = pool.member(10, SUPER, "<init>", "([L" + FUNCTION + ";[I)V");
+		int evaluate = pool.utf8("evaluate");
+		int evaluateDesc = pool.utf8("([F[F)V");
+		int functions = pool.member(9, SUPER, "functions", "[L" + FUNCTION + ";");
+		int activate = pool.member(11, FUNCTION, "evaluate", "(F)F");
+
+		// The constructor only passes its arguments on
+		Code ctor = new Code();
+		ctor.op(ALOAD_0);
+		ctor.op(ALOAD_1);
+		ctor.op(ALOAD_2);
+		ctor.op(INVOKESPECIAL);
+		ctor.u2(superInit);
+		ctor.op(RETURN);
+
+		int layers = sizes.length;
+		int width = 0;
+		for (int i = 0; i < layers; i++) {
+			width = Math.max(width, sizes[i]);
+		}
+
+		// Locals: this, in, out, one function per layer, then two banks of neuron outputs
+		int fnBase = 3;
+		int bankA = fnBase + layers;
+		int bankB = bankA + width;
+
+		Code eval = new Code();
+		for (int l = 0; l < layers; l++) {
+			eval.op(ALOAD_0);
+			eval.op(GETFIELD);
+			eval.u2(functions);
+			eval.pushInt(l);
+			eval.op(AALOAD);
+			eval.local(ASTORE, fnBase + l);
+		}
+
+		int prev = bankB;
+		int cur = bankA;
+		for (int l = 0; l < layers; l++) {
+			float[] ws = net.getWeights(l);
+			float[] bs = net.getBiases(l);
+			int cols = l == 0 ? 1 : sizes[l - 1];
+
+			for (int i = 0; i < sizes[l]; i++) {
+				eval.local(ALOAD, fnBase + l);
+				eval.pushFloat(pool, bs[i]);
+
+				if (l == 0) {
+					// Each input neuron sees only its own input
+					eval.op(ALOAD_1);
+					eval.pushInt(i);
+					eval.op(FALOAD);
+					eval.pushFloat(pool, ws[i]);
+					eval.op(FMUL);
+					eval.op(FADD);
+				} else {
+					for (int j = 0, row = i * cols; j < cols; j++) {
+						if (ws[row + j] != 0) {
+							eval.local(FLOAD, prev + j);
+							eval.pushFloat(pool, ws[row + j]);
+							eval.op(FMUL);
+							eval.op(FADD);
+						}
+					}
+				}
+
+				eval.op(INVOKEINTERFACE);
+				eval.u2(activate);
+				eval.u1(2);
+				eval.u1(0);
+				eval.local(FSTORE, cur + i);
+			}
+
+			int t = prev;
+			prev = cur;
+			cur = t;
+		}
+
+		for (int i = 0; i < sizes[layers - 1]; i++) {
+			eval.op(ALOAD_2);
+			eval.pushInt(i);
+			eval.local(FLOAD, prev + i);
+			eval.op(FASTORE);
+		}
+
+		eval.op(RETURN);
+
+		if (eval.size() > 65535 || pool.count > 65535) {
+			throw new IllegalStateException("The net is too large to compile");
+		}
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(0xCAFEBABE);
+		out.writeShort(0);
+		out.writeShort(51);
+		pool.writeTo(out);
+		out.writeShort(0x0001 | 0x0010 | 0x0020);
+		out.writeShort(thisClass);
+		out.writeShort(superClass);
+		out.writeShort(0);
+		out.writeShort(0);
+		out.writeShort(2);
+		writeMethod(out, 0x0001, init, initDesc, code, 3, 3, ctor);
+		writeMethod(out, 0x0001, evaluate, evaluateDesc, code, 5, bankB + width, eval);
+		out.writeShort(0);
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	private static void writeMethod(DataOutputStream out, int access, int name, int desc, int code,
+			int maxStack, int maxLocals, Code body) throws IOException {
+		out.writeShort(access);
+		out.writeShort(name);
+		out.writeShort(desc);
+		out.writeShort(1);
+		out.writeShort(code);
+		out.writeInt(12 + body.size());
+		out.writeShort(maxStack);
+		out.writeShort(maxLocals);
+		out.writeInt(body.size());
+		body.writeTo(out);
+		out.writeShort(0);
+		out.writeShort(0);
+	}
+
+	/**
+	 * The bytecode of one method.
+	 */
+	private static final class Code extends ByteArrayOutputStream {
+		void op(int op) {
+			write(op);
+		}
+
+		void u1(int v) {
+			write(v);
+		}
+
+		void u2(int v) {
+			write(v >>> 8);
+			write(v);
+		}
+
+		void local(int op, int index) {
+			if (index < 256) {
+				write(op);
+				write(index);
+			} else {
+				write(WIDE);
+				write(op);
+				u2(index);
+			}
+		}
+
+		void pushInt(int v) {
+			if (v >= 0 && v <= 5) {
+				write(ICONST_0 + v);
+			} else if (v < 128) {
+				write(BIPUSH);
+				write(v);
+			} else {
+				write(SIPUSH);
+				u2(v);
+			}
+		}
+
+		void pushFloat(Pool pool, float v) {
+			int bits = Float.floatToIntBits(v);
+			if (bits == 0 || v == 1 || v == 2) {
+				write(FCONST_0 + (int) v);
+				return;
+			}
+
+			int index = pool.floatConst(bits);
+			if (index < 256) {
+				write(LDC);
+				write(index);
+			} else {
+				write(LDC_W);
+				u2(index);
+			}
+		}
+	}
+
+	/**
+	 * The constant pool of the class, which shares equal entries.
+	 */
+	private static final class Pool {
+		private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		private final DataOutputStream out = new DataOutputStream(bytes);
+		private final HashMap<String, Integer> entries = new HashMap<String, Integer>();
+		int count = 1;
+
+		int utf8(String s) throws IOException {
+			Integer index = entries.get("U" + s);
+			if (index == null) {
+				out.writeByte(1);
+				out.writeUTF(s);
+				index = add("U" + s);
+			}
+
+			return index;
+		}
+
+		int classRef(String name) throws IOException {
+			Integer index = entries.get("C" + name);
+			if (index == null) {
+				int n = utf8(name);
+				out.writeByte(7);
+				out.writeShort(n);
+				index = add("C" + name);
+			}
+
+			return index;
+		}
+
+		/**
+		 * Adds a field (tag 9), method (10) or interface method (11) reference.
+		 */
+		int member(int tag, String owner, String name, String desc) throws IOException {
+			int c = classRef(owner);
+			int n = utf8(name);
+			int d = utf8(desc);
+			out.writeByte(12);
+			out.writeShort(n);
+			out.writeShort(d);
+			int nameAndType = add("N" + owner + "." + name + desc);
+			out.writeByte(tag);
+			out.writeShort(c);
+			out.writeShort(nameAndType);
+			return add("M" + owner + "." + name + desc);
+		}
+
+		int floatConst(int bits) {
+			Integer index = entries.get("F" + bits);
+			if (index == null) {
+				try {
+					out.writeByte(4);
+					out.writeInt(bits);
+				} catch (IOException e) {
+					throw new IllegalStateException(e);
+				}
+
+				index = add("F" + bits);
+			}
+
+			return index;
+		}
+
+		void writeTo(DataOutputStream dst) throws IOException {
+			out.flush();
+			dst.writeShort(count);
+			bytes.writeTo(dst);
+		}
+
+		private int add(String key) {
+			int index = count++;
+			entries.put(key, index);
+			return index;
+		}
+	}
+
+	/**
+	 * Defines one generated class, so that it can be unloaded with its net.
+	 */
+	private static final class Loader extends ClassLoader {
+		Loader(ClassLoader parent) {
+			super(parent);
+		}
+
+		Class<?> define(String name, byte[] bytes) {
+			return defineClass(name, bytes, 0, bytes.length);
+		}
+	}
+}
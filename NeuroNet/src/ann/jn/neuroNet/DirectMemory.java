@@ -0,0 +1,86 @@
+package ann.jn.neuroNet;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * <p>
+ * Allocates and frees the off-heap memory used by {@link DirectNet} and its teachers.
+ * </p>
+ * <p>
+ * Memory is allocated with {@link ByteBuffer#allocateDirect(int)} in the platform's native
+ * byte order.  The JDK only frees such memory once the buffer has been garbage collected, so
+ * {@link #free(ByteBuffer)} releases it straight away through the JDK's internal cleaner
+ * where that is accessible, and otherwise leaves it to the garbage collector.
+ * </p>
+ */
+public final class DirectMemory {
+	/**
+	 * <code>sun.misc.Unsafe.invokeCleaner(ByteBuffer)</code> on Java 9 and later, or null.
+	 */
+	private static final Method INVOKE_CLEANER;
+	private static final Object UNSAFE;
+
+	static {
+		Method invoke = null;
+		Object unsafe = null;
+		try {
+			Class<?> c = Class.forName("sun.misc.Unsafe");
+			invoke = c.getMethod("invokeCleaner", ByteBuffer.class);
+			Field f = c.getDeclaredField("theUnsafe");
+			f.setAccessible(true);
+			unsafe = f.get(null);
+		} catch (Exception e) {
+			invoke = null;
+		}
+
+		INVOKE_CLEANER = invoke;
+		UNSAFE = unsafe;
+	}
+
+	private DirectMemory() {
+	}
+
+	/**
+	 * Allocates zeroed off-heap memory for <code>floats</code> floats.
+	 * @param floats the number of floats
+	 * @return a direct buffer in native byte order
+	 */
+	public static ByteBuffer allocate(long floats) {
+		if (floats < 0 || floats * 4 > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Cannot allocate " + floats + " floats in one buffer");
+		}
+
+		return ByteBuffer.allocateDirect((int) (floats * 4)).order(ByteOrder.nativeOrder());
+	}
+
+	/**
+	 * Frees the memory of a direct buffer returned by {@link #allocate(long)} or by
+	 * {@link java.nio.channels.FileChannel#map}.  Neither the buffer nor any view of it
+	 * may be used afterwards.
+	 * @param buffer the buffer, or null
+	 */
+	public static void free(ByteBuffer buffer) {
+		if (buffer == null || !buffer.isDirect()) {
+			return;
+		}
+
+		try {
+			if (INVOKE_CLEANER != null) {
+				INVOKE_CLEANER.invoke(UNSAFE, buffer);
+			} else {
+				// Java 7 and 8 expose the cleaner on the buffer itself
+				Method cleaner = buffer.getClass().getMethod("cleaner");
+				cleaner.setAccessible(true);
+				Object c = cleaner.invoke(buffer);
+				if (c != null) {
+					c.getClass().getMethod("clean").invoke(c);
+				}
+			}
+		} catch (Exception e) {
+			// The memory is freed when the buffer is garbage collected
+		}
+	}
+}
@@ -0,0 +1,408 @@
+package ann.jn.neuroNet;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+
+/**
+ * <p>
+ * A neural network whose weights, biases, inputs and outputs are stored off the Java heap.
+ * </p>
+ * <p>
+ * A NeuralNet with millions of weights keeps them in large arrays that the garbage collector
+ * has to account for.  A DirectNet keeps them in direct memory instead, one block per layer,
+ * and evaluates them where they are without copying them back to the heap.  Each layer's
+ * block holds its row-major weight matrix followed by its bias vector, laid out like a
+ * {@link Layer}.  {@link ann.jn.teach.DirectBackPropagator} trains a DirectNet in place.
+ * </p>
+ * <p>
+ * The memory is released by {@link #close()}, after which the DirectNet and every buffer
+ * obtained from it must no longer be used.
+ * </p>
+ */
+public class DirectNet implements Closeable {
+	private final int[] sizes;
+	private final Neuron.INeuronActivationFunction[] functions;
+	private final ByteBuffer[] blocks;
+	private final FloatBuffer[] weights;
+	private final FloatBuffer[] biases;
+	private final FloatBuffer[] outputs;
+	private final FloatBuffer[] layerSums;
+	private final FloatBuffer inputs;
+	private final float[] sums;
+	private final Object updateLock = new Object();
+
+	private ByteBuffer state;
+	private volatile boolean closed;
+
+	/**
+	 * Creates a DirectNet holding a copy of the current weights and activation functions
+	 * of the given net.
+	 * @param net the net to copy
+	 */
+	public DirectNet(NeuralNet net) {
+		this(net.snapshot());
+	}
+
+	/**
+	 * Creates a DirectNet holding a copy of the weights and activation functions of the
+	 * given snapshot.
+	 * @param net the snapshot to copy
+	 */
+	public DirectNet(NeuralNetSnapshot net) {
+		this(allocateBlocks(net), sizesOf(net), functionsOf(net));
+
+		for (int i = 0; i < sizes.length; i++) {
+			put(weights[i], net.getWeights(i), net.getWeights(i).length);
+			put(biases[i], net.getBiases(i), sizes[i]);
+		}
+	}
+
+	/**
+	 * Creates a DirectNet over existing blocks of memory, one per layer, each holding the
+	 * layer's weight matrix followed by its biases.  The DirectNet frees the blocks when
+	 * it is closed.
+	 * @param blocks the memory of each layer, in the order floats should be read
+	 * @param sizes the number of neurons in each layer
+	 * @param funcs the activation function of each layer
+	 */
+	DirectNet(ByteBuffer[] blocks, int[] sizes, Neuron.INeuronActivationFunction[] funcs) {
+		if (sizes.length < 2 || blocks.length != sizes.length || funcs.length != sizes.length) {
+			throw new IllegalArgumentException("Invalid layers!");
+		}
+
+		this.sizes = sizes.clone();
+		this.blocks = blocks.clone();
+		this.functions = new Neuron.INeuronActivationFunction[sizes.length];
+		this.weights = new FloatBuffer[sizes.length];
+		this.biases = new FloatBuffer[sizes.length];
+		this.outputs = new FloatBuffer[sizes.length];
+		this.layerSums = new FloatBuffer[sizes.length];
+
+		int width = 0;
+		long stateFloats = sizes[0];
+		for (int i = 0; i < sizes.length; i++) {
+			int cols = i == 0 ? 1 : sizes[i - 1];
+			long n = (long) sizes[i] * cols;
+			if (blocks[i].capacity() < 4 * (n + sizes[i])) {
+				throw new IllegalArgumentException("The block of layer " + i + " is too small");
+			}
+
+			functions[i] = funcs[i] != null ? funcs[i] : Neuron.DEFAULT_FUNCTION;
+			weights[i] = floats(blocks[i], 0, (int) n);
+			biases[i] = floats(blocks[i], (int) n, sizes[i]);
+			width = Math.max(width, sizes[i]);
+			stateFloats += 2L * sizes[i];
+		}
+
+		state = DirectMemory.allocate(stateFloats);
+		inputs = floats(state, 0, sizes[0]);
+		for (int i = 0, off = sizes[0]; i < sizes.length; off += 2 * sizes[i], i++) {
+			outputs[i] = floats(state, off, sizes[i]);
+			layerSums[i] = floats(state, off + sizes[i], sizes[i]);
+		}
+
+		sums = new float[width];
+	}
+
+	/**
+	 * Evaluates the network for the given inputs and returns a new array of outputs.
+	 * @param inputs the values for each input neuron
+	 * @return the outputs
+	 */
+	public float[] update(float[] inputs) {
+		float[] outs = new float[sizes[sizes.length - 1]];
+		update(inputs, outs);
+		return outs;
+	}
+
+	/**
+	 * Evaluates the network for the given inputs and writes the outputs to <code>outs</code>.
+	 * The inputs, and the weighted sums and outputs of every layer, are also kept off-heap
+	 * until the next update.
+	 * @param ins the values for each input neuron
+	 * @param outs receives the value of each output neuron
+	 */
+	public void update(float[] ins, float[] outs) {
+		if (ins == null || ins.length != sizes[0]) {
+			throw new IllegalArgumentException("Invalid value length!");
+		} else if (outs == null || outs.length != sizes[sizes.length - 1]) {
+			throw new IllegalArgumentException("Invalid output length!");
+		}
+
+		synchronized (updateLock) {
+			checkOpen();
+			put(inputs, ins, ins.length);
+
+			// The input layer gives each neuron its own input
+			for (int i = 0; i < sizes[0]; i++) {
+				sums[i] = biases[0].get(i) + ins[i] * weights[0].get(i);
+			}
+
+			put(layerSums[0], sums, sizes[0]);
+			Layer.activate(functions[0], sums, 0, sizes[0]);
+			put(outputs[0], sums, sizes[0]);
+
+			for (int layer = 1; layer < sizes.length; layer++) {
+				FloatBuffer w = weights[layer];
+				FloatBuffer b = biases[layer];
+				FloatBuffer x = outputs[layer - 1];
+				int cols = sizes[layer - 1];
+
+				for (int i = 0, row = 0; i < sizes[layer]; i++, row += cols) {
+					sums[i] = b.get(i) + dot(w, row, x, cols);
+				}
+
+				put(layerSums[layer], sums, sizes[layer]);
+				Layer.activate(functions[layer], sums, 0, sizes[layer]);
+				put(outputs[layer], sums, sizes[layer]);
+			}
+
+			get(outputs[sizes.length - 1], outs, outs.length);
+		}
+	}
+
+	/**
+	 * Copies the weights and biases of this net into a NeuralNet of the same shape.  The
+	 * NeuralNet must not be updated or trained while it is copied into.
+	 * @param net the net to copy into
+	 */
+	public void copyTo(NeuralNet net) {
+		if (net.getNumLayers() != sizes.length) {
+			throw new IllegalArgumentException("The nets must have the same number of layers");
+		}
+
+		synchronized (updateLock) {
+			checkOpen();
+
+			for (int i = 0; i < sizes.length; i++) {
+				Layer l = net.getDenseLayer(i);
+				if (l.getSize() != sizes[i] || l.getWeights().length != weights[i].capacity()) {
+					throw new IllegalArgumentException("Layer " + i + " has a different shape");
+				}
+
+				get(weights[i], l.getWeights(), l.getWeights().length);
+				get(biases[i], l.getBiases(), sizes[i]);
+			}
+		}
+
+		net.weightsChanged();
+	}
+
+	/**
+	 * Returns the off-heap weight matrix of the specified layer, laid out like
+	 * {@link Layer#getWeights()}.  Changes to the buffer change this net.
+	 * @param layer the layer
+	 * @return the weights
+	 */
+	public FloatBuffer getWeightBuffer(int layer) {
+		checkOpen();
+		return weights[layer].duplicate();
+	}
+
+	/**
+	 * Returns the off-heap bias vector of the specified layer.  Changes to the buffer
+	 * change this net.
+	 * @param layer the layer
+	 * @return the biases
+	 */
+	public FloatBuffer getBiasBuffer(int layer) {
+		checkOpen();
+		return biases[layer].duplicate();
+	}
+
+	/**
+	 * Returns the outputs of the specified layer from the last update.
+	 * @param layer the layer
+	 * @return the outputs
+	 */
+	public FloatBuffer getOutputBuffer(int layer) {
+		checkOpen();
+		return outputs[layer].asReadOnlyBuffer();
+	}
+
+	/**
+	 * Returns the weighted sums of the specified layer from the last update, before they
+	 * were activated.
+	 * @param layer the layer
+	 * @return the sums
+	 */
+	public FloatBuffer getSumBuffer(int layer) {
+		checkOpen();
+		return layerSums[layer].asReadOnlyBuffer();
+	}
+
+	/**
+	 * Returns the inputs of the last update.
+	 * @return the inputs
+	 */
+	public FloatBuffer getInputBuffer() {
+		checkOpen();
+		return inputs.asReadOnlyBuffer();
+	}
+
+	/**
+	 * Returns the outputs of the last update.
+	 * @return an array of outputs
+	 */
+	public float[] getOutputs() {
+		synchronized (updateLock) {
+			checkOpen();
+
+			float[] outs = new float[sizes[sizes.length - 1]];
+			get(outputs[sizes.length - 1], outs, outs.length);
+			return outs;
+		}
+	}
+
+	/**
+	 * Returns the number of neural layers in this net.
+	 * @return the number of layers
+	 */
+	public int getNumLayers() {
+		return sizes.length;
+	}
+
+	/**
+	 * Returns the number of neurons in the specified layer.
+	 * @param layer the layer
+	 * @return the number of neurons
+	 */
+	public int getLayerSize(int layer) {
+		return sizes[layer];
+	}
+
+	/**
+	 * Returns the activation function of the neurons in the specified layer.
+	 * @param layer the layer
+	 * @return the activation function
+	 */
+	public Neuron.INeuronActivationFunction getActivationFunction(int layer) {
+		return functions[layer];
+	}
+
+	/**
+	 * Returns the number of bytes of off-heap memory held by this net.
+	 * @return the size of the net
+	 */
+	public long getMemoryBytes() {
+		long n = state == null ? 0 : state.capacity();
+		for (int i = 0; i < blocks.length; i++) {
+			n += blocks[i] == null ? 0 : blocks[i].capacity();
+		}
+
+		return n;
+	}
+
+	/**
+	 * Returns whether {@link #close()} has been called.
+	 * @return whether this net is closed
+	 */
+	public boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * Frees the off-heap memory of this net.  Calling close more than once has no effect.
+	 */
+	@Override
+	public void close() {
+		synchronized (updateLock) {
+			if (closed) {
+				return;
+			}
+
+			closed = true;
+			for (int i = 0; i < blocks.length; i++) {
+				DirectMemory.free(blocks[i]);
+				blocks[i] = null;
+			}
+
+			DirectMemory.free(state);
+			state = null;
+		}
+	}
+
+	// Private methods
+	private void checkOpen() {
+		if (closed) {
+			throw new IllegalStateException("The DirectNet has been closed");
+		}
+	}
+
+	private static float dot(FloatBuffer w, int off, FloatBuffer x, int n) {
+		float s0 = 0;
+		float s1 = 0;
+		float s2 = 0;
+		float s3 = 0;
+
+		int i = 0;
+		for (; i + 3 < n; i += 4) {
+			s0 += w.get(off + i) * x.get(i);
+			s1 += w.get(off + i + 1) * x.get(i + 1);
+			s2 += w.get(off + i + 2) * x.get(i + 2);
+			s3 += w.get(off + i + 3) * x.get(i + 3);
+		}
+
+		for (; i < n; i++) {
+			s0 += w.get(off + i) * x.get(i);
+		}
+
+		return (s0 + s1) + (s2 + s3);
+	}
+
+	/**
+	 * Copies the first <code>n</code> values of <code>src</code> to the start of <code>dst</code>.
+	 */
+	static void put(FloatBuffer dst, float[] src, int n) {
+		FloatBuffer d = dst.duplicate();
+		d.clear();
+		d.put(src, 0, n);
+	}
+
+	/**
+	 * Copies the first <code>n</code> values of <code>src</code> to the start of <code>dst</code>.
+	 */
+	static void get(FloatBuffer src, float[] dst, int n) {
+		FloatBuffer s = src.duplicate();
+		s.clear();
+		s.get(dst, 0, n);
+	}
+
+	/**
+	 * Returns a view of <code>n</code> floats of <code>buffer</code>, starting at float <code>off</code>.
+	 */
+	static FloatBuffer floats(ByteBuffer buffer, int off, int n) {
+		ByteBuffer b = buffer.duplicate();
+		b.limit(4 * (off + n));
+		b.position(4 * off);
+		return b.slice().order(buffer.order()).asFloatBuffer();
+	}
+
+	private static ByteBuffer[] allocateBlocks(NeuralNetSnapshot net) {
+		ByteBuffer[] blocks = new ByteBuffer[net.getNumLayers()];
+		for (int i = 0; i < blocks.length; i++) {
+			blocks[i] = DirectMemory.allocate((long) net.getWeights(i).length + net.getLayerSize(i));
+		}
+
+		return blocks;
+	}
+
+	private static int[] sizesOf(NeuralNetSnapshot net) {
+		int[] sizes = new int[net.getNumLayers()];
+		for (int i = 0; i < sizes.length; i++) {
+			sizes[i] = net.getLayerSize(i);
+		}
+
+		return sizes;
+	}
+
+	private static Neuron.INeuronActivationFunction[] functionsOf(NeuralNetSnapshot net) {
+		Neuron.INeuronActivationFunction[] funcs = new Neuron.INeuronActivationFunction[net.getNumLayers()];
+		for (int i = 0; i < funcs.length; i++) {
+			funcs[i] = net.getFunction(i);
+		}
+
+		return funcs;
+	}
+}
@@ -0,0 +1,330 @@
+package ann.jn.neuroNet;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ * Remembers the outputs of a {@link NeuralNet} for recently seen inputs, so that evaluating
+ * the same inputs again costs a hash lookup rather than a full update.
+ * </p>
+ * <p>
+ * Inputs are first rounded to a multiple of a quantization step, and inputs that round to the
+ * same values share one entry.  The outputs of an entry are those of the net for the rounded
+ * inputs, so they do not depend on which of the inputs was seen first.  A step of zero keeps
+ * inputs exact.
+ * </p>
+ * <p>
+ * The cache holds at most a fixed number of entries, in several segments that are each locked
+ * on their own so that threads rarely wait for each other.  When a segment is full, the CLOCK
+ * algorithm evicts an entry that has not been used since the clock hand last passed it.  The
+ * keys and outputs of every segment are stored in flat primitive arrays, and a hit through
+ * {@link #update(float[], float[])} allocates nothing.
+ * </p>
+ * <p>
+ * Whenever {@link NeuralNet#getWeightVersion()} changes, every entry is discarded before the
+ * next lookup.  Misses are evaluated with {@link NeuralNet#updateBatch(float[], float[], int)},
+ * which leaves the inputs and outputs stored in the net untouched.
+ * </p>
+ */
+public class InferenceCache {
+	private final NeuralNet net;
+	private final float step;
+	private final int inputs;
+	private final int outputs;
+	private final Segment[] segments;
+	private final int segmentShift;
+	private final ThreadLocal<int[]> keyBuffer;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	/**
+	 * Creates a cache of up to <code>capacity</code> outputs of the given net.
+	 * @param net the net to cache
+	 * @param capacity the most entries to hold
+	 * @param step the quantization step of the inputs, or zero to keep them exact
+	 */
+	public InferenceCache(NeuralNet net, int capacity, float step) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("The capacity must be positive");
+		} else if (!(step >= 0) || Float.isInfinite(step)) {
+			throw new IllegalArgumentException("The step must be finite and not negative");
+		}
+
+		this.net = net;
+		this.step = step;
+		this.inputs = net.getLayerSize(0);
+		this.outputs = net.getLayerSize(net.getNumLayers() - 1);
+
+		// A power of two segments, with at least 16 entries each
+		int n = 1;
+		while (n < 16 && n * 32 <= capacity) {
+			n <<= 1;
+		}
+
+		segments = new Segment[n];
+		segmentShift = 32 - Integer.numberOfTrailingZeros(n);
+		for (int i = 0; i < n; i++) {
+			segments[i] = new Segment(capacity / n + (i < capacity % n ? 1 : 0));
+		}
+
+		final int width = inputs;
+		keyBuffer = new ThreadLocal<int[]>() {
+			@Override
+			protected int[] initialValue() {
+				return new int[width];
+			}
+		};
+	}
+
+	/**
+	 * Returns the outputs of the net for the given inputs, from the cache if they are there.
+	 * @param ins the values for each input neuron
+	 * @return a new array of outputs
+	 */
+	public float[] update(float[] ins) {
+		float[] outs = new float[outputs];
+		update(ins, outs);
+		return outs;
+	}
+
+	/**
+	 * Writes the outputs of the net for the given inputs to <code>outs</code>, from the cache
+	 * if they are there.
+	 * @param ins the values for each input neuron
+	 * @param outs receives the value of each output neuron
+	 */
+	public void update(float[] ins, float[] outs) {
+		if (ins == null || ins.length != inputs) {
+			throw new IllegalArgumentException("Invalid value length!");
+		} else if (outs == null || outs.length != outputs) {
+			throw new IllegalArgumentException("Invalid output length!");
+		}
+
+		int[] key = keyBuffer.get();
+		int hash = 1;
+		for (int i = 0; i < inputs; i++) {
+			key[i] = quantize(ins[i]);
+			hash = 31 * hash + key[i];
+		}
+
+		hash *= 0x9E3779B9;
+		hash ^= hash >>> 16;
+		Segment seg = segments[segmentShift == 32 ? 0 : hash >>> segmentShift];
+		long version = net.getWeightVersion();
+
+		if (seg.get(version, hash, key, outs)) {
+			hits.incrementAndGet();
+			return;
+		}
+
+		misses.incrementAndGet();
+
+		float[] q = new float[inputs];
+		for (int i = 0; i < inputs; i++) {
+			q[i] = step == 0 ? ins[i] : key[i] * step;
+		}
+
+		net.updateBatch(q, outs, 1);
+
+		// Weights that changed during the update may have been used in part
+		if (net.getWeightVersion() == version) {
+			seg.put(version, hash, key, outs);
+		}
+	}
+
+	/**
+	 * Discards every entry.
+	 */
+	public void clear() {
+		for (int i = 0; i < segments.length; i++) {
+			synchronized (segments[i]) {
+				segments[i].clear();
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of entries in the cache.
+	 * @return the number of entries
+	 */
+	public int size() {
+		int n = 0;
+		for (int i = 0; i < segments.length; i++) {
+			synchronized (segments[i]) {
+				n += segments[i].size;
+			}
+		}
+
+		return n;
+	}
+
+	/**
+	 * Returns the number of updates answered from the cache.
+	 * @return the hits
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * Returns the number of updates that evaluated the net.
+	 * @return the misses
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * Returns the number of entries evicted to make room for others.
+	 * @return the evictions
+	 */
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	/**
+	 * Returns the fraction of updates answered from the cache.
+	 * @return the hit rate, between 0 and 1
+	 */
+	public float getHitRate() {
+		long h = hits.get();
+		long total = h + misses.get();
+		return total == 0 ? 0 : (float) h / total;
+	}
+
+	// Private methods
+	private int quantize(float x) {
+		if (step == 0) {
+			return Float.floatToIntBits(x);
+		}
+
+		return Math.round(x / step);
+	}
+
+	/**
+	 * One independently locked part of the cache.  Entries are chained from buckets through
+	 * <code>next</code>, and their keys and outputs are stored at the entry's slot of
+	 * <code>keys</code> and <code>values</code>.
+	 */
+	private final class Segment {
+		private final int capacity;
+		private final int[] buckets;
+		private final int[] next;
+		private final int[] hashes;
+		private final int[] keys;
+		private final float[] values;
+		private final boolean[] referenced;
+		private long version;
+		private int size;
+		private int hand;
+
+		Segment(int capacity) {
+			this.capacity = Math.max(1, capacity);
+
+			int n = 1;
+			while (n < this.capacity * 2) {
+				n <<= 1;
+			}
+
+			buckets = new int[n];
+			next = new int[this.capacity];
+			hashes = new int[this.capacity];
+			keys = new int[this.capacity * inputs];
+			values = new float[this.capacity * outputs];
+			referenced = new boolean[this.capacity];
+			Arrays.fill(buckets, -1);
+		}
+
+		synchronized boolean get(long v, int hash, int[] key, float[] outs) {
+			if (v != version) {
+				clear();
+				version = v;
+				return false;
+			}
+
+			int slot = find(hash, key);
+			if (slot < 0) {
+				return false;
+			}
+
+			referenced[slot] = true;
+			System.arraycopy(values, slot * outputs, outs, 0, outputs);
+			return true;
+		}
+
+		synchronized void put(long v, int hash, int[] key, float[] outs) {
+			if (v != version || find(hash, key) >= 0) {
+				return;
+			}
+
+			int slot;
+			if (size < capacity) {
+				slot = size++;
+			} else {
+				// Advance the clock hand past recently used entries
+				while (referenced[hand]) {
+					referenced[hand] = false;
+					hand = (hand + 1) % capacity;
+				}
+
+				slot = hand;
+				hand = (hand + 1) % capacity;
+				unlink(slot);
+				evictions.incrementAndGet();
+			}
+
+			int b = hash & (buckets.length - 1);
+			hashes[slot] = hash;
+			next[slot] = buckets[b];
+			buckets[b] = slot;
+			referenced[slot] = false;
+			System.arraycopy(key, 0, keys, slot * inputs, inputs);
+			System.arraycopy(outs, 0, values, slot * outputs, outputs);
+		}
+
+		void clear() {
+			Arrays.fill(buckets, -1);
+			Arrays.fill(referenced, false);
+			size = 0;
+			hand = 0;
+		}
+
+		private int find(int hash, int[] key) {
+			for (int s = buckets[hash & (buckets.length - 1)]; s >= 0; s = next[s]) {
+				if (hashes[s] == hash && matches(s, key)) {
+					return s;
+				}
+			}
+
+			return -1;
+		}
+
+		private boolean matches(int slot, int[] key) {
+			for (int i = 0, off = slot * inputs; i < inputs; i++) {
+				if (keys[off + i] != key[i]) {
+					return false;
+				}
+			}
+
+			return true;
+		}
+
+		private void unlink(int slot) {
+			int b = hashes[slot] & (buckets.length - 1);
+			if (buckets[b] == slot) {
+				buckets[b] = next[slot];
+				return;
+			}
+
+			for (int s = buckets[b]; s >= 0; s = next[s]) {
+				if (next[s] == slot) {
+					next[s] = next[slot];
+					return;
+				}
+			}
+		}
+	}
+}
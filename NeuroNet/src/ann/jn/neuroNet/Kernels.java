@@ -0,0 +1,129 @@
+package ann.jn.neuroNet;
+
+/**
+ * <p>
+ * The arithmetic kernels shared by {@link Layer} and the teachers in {@link ann.jn.teach}.
+ * </p>
+ * <p>
+ * Two implementations of the dot product are available, and one is selected when this
+ * class is loaded from the system property <code>ann.jn.neuroNet.kernels</code>:
+ * </p>
+ * <ul>
+ * <li><code>unrolled</code> (the default) sums into four independent accumulators, so that
+ * consecutive multiply-adds do not wait on each other and the loop can be compiled
+ * to packed instructions.</li>
+ * <li><code>scalar</code> sums strictly from left to right, one element at a time.</li>
+ * </ul>
+ * <p>
+ * The unrolled kernel adds the same products in a different order, so its result may
+ * differ from the scalar kernel by rounding only: for <code>n</code> elements the two results
+ * are within <code>n * 2^-23 * sum(|a[i] * b[i]|)</code> of each other. The element-wise
+ * kernels give identical results in either mode.
+ * </p>
+ */
+public final class Kernels {
+	/**
+	 * Whether the unrolled dot product is used.  The value is constant so that the
+	 * unused kernel is compiled away.
+	 */
+	public static final boolean UNROLLED = !"scalar".equals(System.getProperty("ann.jn.neuroNet.kernels"));
+
+	private Kernels() {
+	}
+
+	/**
+	 * Returns the sum of <code>a[aOff + i] * b[bOff + i]</code> for <code>i</code> from 0 to <code>n - 1</code>.
+	 * @param a the first vector
+	 * @param aOff the index of the first element of <code>a</code>
+	 * @param b the second vector
+	 * @param bOff the index of the first element of <code>b</code>
+	 * @param n the number of elements
+	 * @return the dot product
+	 */
+	public static float dot(float[] a, int aOff, float[] b, int bOff, int n) {
+		if (UNROLLED) {
+			return dotUnrolled(a, aOff, b, bOff, n);
+		}
+
+		return dotScalar(a, aOff, b, bOff, n);
+	}
+
+	/**
+	 * The scalar dot product, summed strictly from left to right.
+	 * @see #dot(float[], int, float[], int, int)
+	 */
+	public static float dotScalar(float[] a, int aOff, float[] b, int bOff, int n) {
+		float sum = 0;
+		for (int i = 0; i < n; i++) {
+			sum += a[aOff + i] * b[bOff + i];
+		}
+
+		return sum;
+	}
+
+	/**
+	 * The unrolled dot product, summed into four independent accumulators.
+	 * @see #dot(float[], int, float[], int, int)
+	 */
+	public static float dotUnrolled(float[] a, int aOff, float[] b, int bOff, int n) {
+		float s0 = 0;
+		float s1 = 0;
+		float s2 = 0;
+		float s3 = 0;
+
+		int i = 0;
+		for (; i + 3 < n; i += 4) {
+			s0 += a[aOff + i] * b[bOff + i];
+			s1 += a[aOff + i + 1] * b[bOff + i + 1];
+			s2 += a[aOff + i + 2] * b[bOff + i + 2];
+			s3 += a[aOff + i + 3] * b[bOff + i + 3];
+		}
+
+		for (; i < n; i++) {
+			s0 += a[aOff + i] * b[bOff + i];
+		}
+
+		return (s0 + s1) + (s2 + s3);
+	}
+
+	/**
+	 * Adds <code>alpha * x[xOff + i]</code> to <code>y[yOff + i]</code> for <code>i</code> from 0 to <code>n - 1</code>.
+	 * @param alpha the scale of <code>x</code>
+	 * @param x the vector to add
+	 * @param xOff the index of the first element of <code>x</code>
+	 * @param y the vector to add to
+	 * @param yOff the index of the first element of <code>y</code>
+	 * @param n the number of elements
+	 */
+	public static void axpy(float alpha, float[] x, int xOff, float[] y, int yOff, int n) {
+		for (int i = 0; i < n; i++) {
+			y[yOff + i] += alpha * x[xOff + i];
+		}
+	}
+
+	/**
+	 * <p>
+	 * Applies one step of gradient descent with classic momentum to <code>n</code> weights.
+	 * For each <code>i</code> from 0 to <code>n - 1</code>:
+	 * </p>
+	 * <pre>
+	 * change[off + i] = scale * in[inOff + i] + momentum * change[off + i]
+	 * w[off + i] += change[off + i]
+	 * </pre>
+	 * @param w the weights
+	 * @param change the previous changes of the weights, updated in place
+	 * @param off the index of the first weight and change
+	 * @param in the inputs that the weights are applied to
+	 * @param inOff the index of the first input
+	 * @param scale the learning rate multiplied by the Neuron's error
+	 * @param momentum the fraction of the previous change to keep
+	 * @param n the number of weights
+	 */
+	public static void momentumStep(float[] w, float[] change, int off, float[] in, int inOff, float scale, float momentum, int n) {
+		for (int i = 0; i < n; i++) {
+			float ch = (scale * in[inOff + i]) + (change[off + i] * momentum);
+			change[off + i] = ch;
+			w[off + i] += ch;
+		}
+	}
+}
@@ -0,0 +1,578 @@
+package ann.jn.neuroNet;
+
+import java.io.Serializable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * <p>
+ * Stores one layer of a {@link NeuralNet} as dense, contiguous arrays.
+ * </p>
+ * <p>
+ * The weights of every {@link Neuron} in the layer are kept in a single row-major
+ * matrix, with one row per Neuron and one column per input. The biases and the
+ * outputs of the last update are each kept in a single vector. {@link Neuron}s
+ * obtained from a Layer are views onto these arrays rather than copies.
+ * </p>
+ */
+public class Layer implements Serializable {
+	private static final long serialVersionUID = -2911725329871263553L;
+
+	/**
+	 * The number of weight rows applied to a whole batch before moving on, see
+	 * {@link #updateBatch(float[], float[], int)}.
+	 */
+	public static final int BATCH_TILE = 32;
+
+	/**
+	 * The fewest multiply-adds a Layer must need before {@link #update(float[], ForkJoinPool)}
+	 * splits it across threads.  Below this, forking costs more than it saves.
+	 */
+	public static final int PARALLEL_MIN_WORK = 1 << 15;
+
+	/**
+	 * The fewest multiply-adds given to a single fork/join task.
+	 */
+	public static final int PARALLEL_GRAIN = 1 << 13;
+
+	/**
+	 * The number of Neurons in this Layer.
+	 */
+	private final int size;
+
+	/**
+	 * The number of inputs of each Neuron in this Layer.
+	 */
+	private final int inputs;
+
+	/**
+	 * The input weights of every Neuron, row-major with <code>inputs</code> columns.
+	 */
+	private final float[] weights;
+
+	/**
+	 * The bias of every Neuron.
+	 */
+	private final float[] biases;
+
+	/**
+	 * The outputs that resulted from the last update of each Neuron.
+	 */
+	private final float[] outputs;
+
+	/**
+	 * The weighted sums of the last update of each Neuron, before they were activated.
+	 * Created on first use, so that Layers read from old streams get them too.
+	 */
+	private transient float[] sums;
+
+	/**
+	 * The activation function shared by every Neuron in this Layer.
+	 */
+	private final Neuron.INeuronActivationFunction function;
+
+	/**
+	 * The built in kind of {@link #function}, or null if it is a custom function.
+	 */
+	private final Activation kind;
+
+	/**
+	 * Lazily created {@link Neuron} views, see {@link #getNeurons()}.
+	 */
+	private transient Neuron[] neurons;
+
+	/**
+	 * The number of times the weights or biases were changed through a {@link Neuron}.
+	 */
+	private transient volatile long version;
+
+	/**
+	 * <p>
+	 * Creates a new Layer of <code>size</code> Neurons, each with <code>inputs</code> input weights.
+	 * </p>
+	 * <p>
+	 * <b>Note:</b> The default value for all weights is 1.0, and for all biases 0.0
+	 * </p>
+	 * @param size the number of Neurons
+	 * @param inputs the number of inputs of each Neuron
+	 * @param func the activation function of the Neurons, or null for {@link Neuron#DEFAULT_FUNCTION}
+	 */
+	public Layer(int size, int inputs, Neuron.INeuronActivationFunction func) {
+		if (size < 0 || inputs < 0) {
+			throw new IllegalArgumentException("Layer dimensions cannot be negative.");
+		}
+
+		this.size = size;
+		this.inputs = inputs;
+		this.weights = new float[size * inputs];
+		this.biases = new float[size];
+		this.outputs = new float[size];
+		this.function = func != null ? func : Neuron.DEFAULT_FUNCTION;
+		this.kind = function instanceof Activation ? (Activation) function : null;
+
+		for (int i = 0; i < weights.length; i++) {
+			weights[i] = 1.0f;
+		}
+	}
+
+	/**
+	 * Returns the number of Neurons in this Layer.
+	 * @return number of Neurons
+	 */
+	public int getSize() {
+		return size;
+	}
+
+	/**
+	 * Returns the number of inputs of each Neuron in this Layer.
+	 * @return number of inputs per Neuron
+	 */
+	public int getNumInputs() {
+		return inputs;
+	}
+
+	/**
+	 * <p>
+	 * Returns the weight matrix of this Layer. The weight of input <code>j</code> of
+	 * Neuron <code>i</code> is stored at <code>i * getNumInputs() + j</code>.
+	 * </p>
+	 * <p>
+	 * <b>Note:</b> The returned array is the backing storage of this Layer, not a copy.
+	 * </p>
+	 * @return the weight matrix
+	 */
+	public float[] getWeights() {
+		return weights;
+	}
+
+	/**
+	 * Returns the bias vector of this Layer. The returned array is the backing storage, not a copy.
+	 * @return the biases
+	 */
+	public float[] getBiases() {
+		return biases;
+	}
+
+	/**
+	 * Returns the outputs of the last update of this Layer. The returned array is the
+	 * backing storage, not a copy.
+	 * @return the outputs
+	 */
+	public float[] getOutputs() {
+		return outputs;
+	}
+
+	/**
+	 * Returns the weighted sums of the last update of this Layer, from which its outputs
+	 * were activated, so that training can find the slope of the activation function
+	 * without summing again. The returned array is the backing storage, not a copy.
+	 * @return the weighted sums
+	 */
+	public float[] getSums() {
+		float[] s = sums;
+		if (s == null) {
+			s = new float[size];
+			sums = s;
+		}
+
+		return s;
+	}
+
+	/**
+	 * Returns the activation function shared by the Neurons of this Layer.
+	 * @return the function
+	 */
+	public Neuron.INeuronActivationFunction getFunction() {
+		return function;
+	}
+
+	/**
+	 * Returns the built in kind of the activation function of this Layer.
+	 * @return the kind, or null if the Layer uses a custom function
+	 */
+	public Activation getActivation() {
+		return kind;
+	}
+
+	/**
+	 * Returns {@link Neuron} views onto the Neurons of this Layer. Changes made through
+	 * the Neurons are reflected in this Layer, and vice versa.
+	 * @return the Neurons
+	 */
+	public Neuron[] getNeurons() {
+		Neuron[] ns = neurons;
+		if (ns == null) {
+			ns = new Neuron[size];
+			for (int i = 0; i < size; i++) {
+				ns[i] = new Neuron(this, i);
+			}
+
+			neurons = ns;
+		}
+
+		return ns;
+	}
+
+	/**
+	 * Evaluates every Neuron of this Layer for the given input values, which are shared
+	 * by all of the Neurons.
+	 * @param in the values of the inputs, one per input weight
+	 * @return the outputs of this Layer
+	 */
+	public float[] update(float[] in) {
+		if (in.length != inputs) {
+			throw new IllegalArgumentException("There must be the same number of input values as there are weights");
+		}
+
+		updateRows(in, getSums(), 0, size);
+		return outputs;
+	}
+
+	/**
+	 * <p>
+	 * Evaluates every Neuron of this Layer like {@link #update(float[])}, splitting the
+	 * Neurons into chunks that are evaluated in parallel on <code>pool</code>.
+	 * </p>
+	 * <p>
+	 * The Layer is only split when {@link #isWorthSplitting(int)} says so; otherwise it is
+	 * evaluated on the calling thread.  The activation function must be safe to call
+	 * from several threads at once.
+	 * </p>
+	 * @param in the values of the inputs, one per input weight
+	 * @param pool the pool to evaluate the chunks on
+	 * @return the outputs of this Layer
+	 */
+	public float[] update(float[] in, ForkJoinPool pool) {
+		if (in.length != inputs) {
+			throw new IllegalArgumentException("There must be the same number of input values as there are weights");
+		}
+
+		int parallelism = pool.getParallelism();
+		float[] s = getSums();
+		if (!isWorthSplitting(parallelism)) {
+			updateRows(in, s, 0, size);
+		} else {
+			// Aim for a few chunks per thread so that stragglers can be stolen
+			int grain = Math.max(PARALLEL_GRAIN, size * inputs / (parallelism * 4));
+			pool.invoke(new RowTask(in, s, 0, size, Math.max(1, grain / Math.max(1, inputs))));
+		}
+
+		return outputs;
+	}
+
+	/**
+	 * Decides whether evaluating this Layer on <code>parallelism</code> threads is expected
+	 * to be faster than evaluating it on one.  It is when there is more than one thread,
+	 * the Layer needs at least {@link #PARALLEL_MIN_WORK} multiply-adds, and it can be cut
+	 * into at least two chunks of {@link #PARALLEL_GRAIN} multiply-adds.
+	 * @param parallelism the number of threads available
+	 * @return whether to split this Layer
+	 */
+	public boolean isWorthSplitting(int parallelism) {
+		long work = (long) size * inputs;
+		return parallelism > 1 && size > 1 && work >= PARALLEL_MIN_WORK && work >= 2L * PARALLEL_GRAIN;
+	}
+
+	/**
+	 * Evaluates the Neurons from <code>lo</code> up to but not including <code>hi</code>.
+	 */
+	private void updateRows(float[] in, float[] s, int lo, int hi) {
+		for (int i = lo, row = lo * inputs; i < hi; i++, row += inputs) {
+			s[i] = biases[i] + Kernels.dot(weights, row, in, 0, inputs);
+		}
+
+		System.arraycopy(s, lo, outputs, lo, hi - lo);
+		activate(function, outputs, lo, hi - lo);
+	}
+
+	/**
+	 * <p>
+	 * Replaces each of <code>n</code> weighted sums, starting at <code>off</code>, with the result
+	 * of evaluating <code>func</code> for it.
+	 * </p>
+	 * <p>
+	 * Layers compute all of their weighted sums first and then activate them here in one
+	 * call.  A built in {@link Activation} is applied by its own loop, in which the function is
+	 * known and can be inlined, rather than by one interface call per Neuron.
+	 * </p>
+	 * @param func the activation function
+	 * @param values the weighted sums
+	 * @param off the index of the first sum
+	 * @param n the number of sums
+	 */
+	static void activate(Neuron.INeuronActivationFunction func, float[] values, int off, int n) {
+		if (func instanceof Activation) {
+			((Activation) func).apply(values, off, n);
+		} else {
+			for (int i = off; i < off + n; i++) {
+				values[i] = func.evaluate(values[i]);
+			}
+		}
+	}
+
+	/**
+	 * <p>
+	 * Multiplies each of <code>n</code> errors, starting at <code>errOff</code>, by the slope
+	 * of <code>func</code> at the matching weighted sum and output, starting at
+	 * <code>off</code>, turning the errors of a layer's outputs into the errors of its sums.
+	 * </p>
+	 * <p>
+	 * Functions that implement {@link Neuron.IDifferentiableActivationFunction} give their
+	 * own slope.  The slope of any other function is estimated from two evaluations either
+	 * side of the sum, which is slower and less exact but lets nets with any function be
+	 * trained.
+	 * </p>
+	 * @param func the activation function
+	 * @param sums the weighted sums
+	 * @param outs the outputs activated from the sums
+	 * @param off the index of the first sum and output
+	 * @param err the errors
+	 * @param errOff the index of the first error
+	 * @param n the number of errors
+	 */
+	public static void scaleByDerivative(Neuron.INeuronActivationFunction func, float[] sums, float[] outs, int off,
+			float[] err, int errOff, int n) {
+		if (func instanceof Activation) {
+			((Activation) func).scaleByDerivative(sums, outs, off, err, errOff, n);
+		} else if (func instanceof Neuron.IDifferentiableActivationFunction) {
+			Neuron.IDifferentiableActivationFunction f = (Neuron.IDifferentiableActivationFunction) func;
+			for (int i = 0; i < n; i++) {
+				err[errOff + i] *= f.derivative(sums[off + i], outs[off + i]);
+			}
+		} else {
+			for (int i = 0; i < n; i++) {
+				float x = sums[off + i];
+				float h = 1e-3f * Math.max(1, Math.abs(x));
+				err[errOff + i] *= (func.evaluate(x + h) - func.evaluate(x - h)) / (2 * h);
+			}
+		}
+	}
+
+	/**
+	 * Evaluates a range of Neurons, halving it until it is no more than <code>rows</code> long.
+	 */
+	private final class RowTask extends RecursiveAction {
+		private static final long serialVersionUID = 2252862133151337411L;
+
+		private final float[] in;
+		private final float[] s;
+		private final int lo;
+		private final int hi;
+		private final int rows;
+
+		RowTask(float[] in, float[] s, int lo, int hi, int rows) {
+			this.in = in;
+			this.s = s;
+			this.lo = lo;
+			this.hi = hi;
+			this.rows = rows;
+		}
+
+		@Override
+		protected void compute() {
+			if (hi - lo <= rows) {
+				updateRows(in, s, lo, hi);
+			} else {
+				int mid = (lo + hi) >>> 1;
+				invokeAll(new RowTask(in, s, lo, mid, rows), new RowTask(in, s, mid, hi, rows));
+			}
+		}
+	}
+
+	/**
+	 * Evaluates every Neuron of this Layer for its own single input value, as done
+	 * by the input layer of a {@link NeuralNet}. Each Neuron must have exactly one input weight.
+	 * @param in the values of the inputs, one per Neuron
+	 * @return the outputs of this Layer
+	 */
+	public float[] updateEach(float[] in) {
+		if (inputs != 1 || in.length != size) {
+			throw new IllegalArgumentException("There must be one input value per single-input neuron");
+		}
+
+		float[] s = getSums();
+		for (int i = 0; i < size; i++) {
+			s[i] = biases[i] + in[i] * weights[i];
+		}
+
+		System.arraycopy(s, 0, outputs, 0, size);
+		activate(function, outputs, 0, size);
+		return outputs;
+	}
+
+	/**
+	 * <p>
+	 * Evaluates every Neuron of this Layer for <code>rows</code> samples at once. Both
+	 * <code>in</code> and <code>out</code> are row-major, with one row per sample;
+	 * <code>in</code> has {@link #getNumInputs()} columns and <code>out</code> has
+	 * {@link #getSize()} columns. The outputs of this Layer are not changed.
+	 * </p>
+	 * <p>
+	 * The weight matrix is walked in tiles of {@link #BATCH_TILE} rows so that each tile
+	 * stays in cache while it is applied to every sample, and four Neurons are summed
+	 * per pass over a sample so that each input value is loaded once for all four.
+	 * Each Neuron is summed from left to right, so the results are within the tolerance
+	 * documented in {@link Kernels} of those of {@link #update(float[])}.
+	 * </p>
+	 * @param in the input values of every sample
+	 * @param out receives the output values of every sample
+	 * @param rows the number of samples
+	 */
+	public void updateBatch(float[] in, float[] out, int rows) {
+		if (rows < 0 || in.length < rows * inputs || out.length < rows * size) {
+			throw new IllegalArgumentException("Batch buffers are too small for " + rows + " rows");
+		}
+
+		sumBatch(in, out, rows);
+		activate(function, out, 0, rows * size);
+	}
+
+	/**
+	 * Evaluates every Neuron of this Layer for <code>rows</code> samples at once, like
+	 * {@link #updateBatch(float[], float[], int)}, and also keeps the weighted sums from
+	 * which the outputs were activated, for training.
+	 * @param in the input values of every sample
+	 * @param sums receives the weighted sums of every sample, row-major like <code>out</code>
+	 * @param out receives the output values of every sample
+	 * @param rows the number of samples
+	 */
+	public void updateBatch(float[] in, float[] sums, float[] out, int rows) {
+		if (rows < 0 || in.length < rows * inputs || sums.length < rows * size || out.length < rows * size) {
+			throw new IllegalArgumentException("Batch buffers are too small for " + rows + " rows");
+		}
+
+		sumBatch(in, sums, rows);
+		System.arraycopy(sums, 0, out, 0, rows * size);
+		activate(function, out, 0, rows * size);
+	}
+
+	/**
+	 * Writes the weighted sums of every Neuron for <code>rows</code> samples to <code>out</code>.
+	 */
+	private void sumBatch(float[] in, float[] out, int rows) {
+		final float[] w = weights;
+		final int cols = inputs;
+
+		for (int n0 = 0; n0 < size; n0 += BATCH_TILE) {
+			int n1 = Math.min(size, n0 + BATCH_TILE);
+
+			for (int r = 0; r < rows; r++) {
+				int inRow = r * cols;
+				int outRow = r * size;
+				int n = n0;
+
+				for (; n + 3 < n1; n += 4) {
+					int w0 = n * cols;
+					int w1 = w0 + cols;
+					int w2 = w1 + cols;
+					int w3 = w2 + cols;
+					float s0 = biases[n];
+					float s1 = biases[n + 1];
+					float s2 = biases[n + 2];
+					float s3 = biases[n + 3];
+
+					for (int j = 0; j < cols; j++) {
+						float x = in[inRow + j];
+						s0 += x * w[w0 + j];
+						s1 += x * w[w1 + j];
+						s2 += x * w[w2 + j];
+						s3 += x * w[w3 + j];
+					}
+
+					out[outRow + n] = s0;
+					out[outRow + n + 1] = s1;
+					out[outRow + n + 2] = s2;
+					out[outRow + n + 3] = s3;
+				}
+
+				for (; n < n1; n++) {
+					out[outRow + n] = biases[n] + Kernels.dot(w, n * cols, in, inRow, cols);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Evaluates every Neuron of this Layer for <code>rows</code> samples at once, giving
+	 * each Neuron its own single input value as in {@link #updateEach(float[])}. Both
+	 * <code>in</code> and <code>out</code> are row-major with {@link #getSize()} columns.
+	 * The outputs of this Layer are not changed.
+	 * @param in the input values of every sample
+	 * @param out receives the output values of every sample
+	 * @param rows the number of samples
+	 */
+	public void updateEachBatch(float[] in, float[] out, int rows) {
+		if (inputs != 1) {
+			throw new IllegalArgumentException("There must be one input value per single-input neuron");
+		} else if (rows < 0 || in.length < rows * size || out.length < rows * size) {
+			throw new IllegalArgumentException("Batch buffers are too small for " + rows + " rows");
+		}
+
+		for (int r = 0, row = 0; r < rows; r++, row += size) {
+			for (int i = 0; i < size; i++) {
+				out[row + i] = biases[i] + in[row + i] * weights[i];
+			}
+		}
+
+		activate(function, out, 0, rows * size);
+	}
+
+	/**
+	 * Evaluates every Neuron of this Layer for <code>rows</code> samples at once, like
+	 * {@link #updateEachBatch(float[], float[], int)}, and also keeps the weighted sums from
+	 * which the outputs were activated, for training.
+	 * @param in the input values of every sample
+	 * @param sums receives the weighted sums of every sample, row-major like <code>out</code>
+	 * @param out receives the output values of every sample
+	 * @param rows the number of samples
+	 */
+	public void updateEachBatch(float[] in, float[] sums, float[] out, int rows) {
+		if (inputs != 1) {
+			throw new IllegalArgumentException("There must be one input value per single-input neuron");
+		} else if (rows < 0 || in.length < rows * size || sums.length < rows * size || out.length < rows * size) {
+			throw new IllegalArgumentException("Batch buffers are too small for " + rows + " rows");
+		}
+
+		for (int r = 0, row = 0; r < rows; r++, row += size) {
+			for (int i = 0; i < size; i++) {
+				sums[row + i] = biases[i] + in[row + i] * weights[i];
+			}
+		}
+
+		System.arraycopy(sums, 0, out, 0, rows * size);
+		activate(function, out, 0, rows * size);
+	}
+
+	/**
+	 * Evaluates a single Neuron of this Layer for the given input values.
+	 * @param neuron the index of the Neuron
+	 * @param in the values of the Neuron's inputs
+	 * @return the output of the Neuron
+	 */
+	float update(int neuron, float[] in) {
+		if (in.length != inputs) {
+			throw new IllegalArgumentException("There must be the same number of input values as there are weights +\n" +
+													"\t\tinputs=" + in.length + "\n" +
+													"\t\tweights=" + inputs);
+		}
+
+		float sum = biases[neuron] + Kernels.dot(weights, neuron * inputs, in, 0, inputs);
+		getSums()[neuron] = sum;
+		outputs[neuron] = function.evaluate(sum);
+		return outputs[neuron];
+	}
+
+	/**
+	 * Records that the weights or biases of this Layer were changed.
+	 */
+	void touch() {
+		version++;
+	}
+
+	/**
+	 * Returns the number of times {@link #touch()} was called.
+	 */
+	long getVersion() {
+		return version;
+	}
+}
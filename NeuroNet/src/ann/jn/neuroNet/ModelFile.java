@@ -0,0 +1,375 @@
+package ann.jn.neuroNet;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.CRC32;
+
+/**
+ * <p>
+ * Reads and writes {@link NeuralNet}s in a compact, versioned binary format.
+ * </p>
+ * <p>
+ * A model file starts with a header describing the topology of the net, followed by one
+ * block of data per layer.  Every value is little-endian.  The header is:
+ * </p>
+ * <pre>
+ * int    magic, the bytes "NNET"
+ * int    version, currently {@value #VERSION}
+ * int    number of layers
+ * int    flags, currently 0
+ * for each layer:
+ *   int    number of neurons
+ *   short  length of the activation name, then that many ASCII bytes; the name of a
+ *          built in {@link Activation}, or empty for a custom function
+ *   long   offset of the layer's block from the start of the file
+ *   int    CRC-32 of the layer's block
+ * int    CRC-32 of the header up to here
+ * </pre>
+ * <p>
+ * Each layer's block holds the layer's row-major weight matrix followed by its biases, as
+ * 32 bit floats, exactly as a {@link Layer} stores them.  Blocks start on
+ * {@value #ALIGNMENT} byte boundaries so that they can be mapped into memory and read in
+ * place: {@link #map(File)} returns a {@link DirectNet} that evaluates the mapped file without
+ * reading it onto the heap, so that a large model is ready as soon as it is mapped and several
+ * processes on one machine share a single copy of it in the page cache.
+ * </p>
+ */
+public final class ModelFile {
+	/**
+	 * The bytes "NNET" read as a little-endian int.
+	 */
+	public static final int MAGIC = 0x54454E4E;
+
+	/**
+	 * The newest version of the format, which is the version written.
+	 */
+	public static final int VERSION = 1;
+
+	/**
+	 * The alignment of each layer's block, in bytes.
+	 */
+	public static final int ALIGNMENT = 64;
+
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+
+	private ModelFile() {
+	}
+
+	/**
+	 * Writes the current weights of the given net to <code>file</code>.  The file is written
+	 * beside its destination first and then moved into place, so a reader never sees a
+	 * partly written model.
+	 * @param net the net to write
+	 * @param file the destination
+	 * @throws IOException if the file cannot be written
+	 */
+	public static void write(NeuralNet net, File file) throws IOException {
+		write(net.snapshot(), file);
+	}
+
+	/**
+	 * Writes the weights of the given snapshot to <code>file</code>, see {@link #write(NeuralNet, File)}.
+	 * @param net the snapshot to write
+	 * @param file the destination
+	 * @throws IOException if the file cannot be written
+	 */
+	public static void write(NeuralNetSnapshot net, File file) throws IOException {
+		int layers = net.getNumLayers();
+		byte[][] names = new byte[layers][];
+		int headerSize = 16 + 4;
+
+		for (int i = 0; i < layers; i++) {
+			Neuron.INeuronActivationFunction f = net.getFunction(i);
+			names[i] = (f instanceof Activation ? ((Activation) f).name() : "").getBytes(ASCII);
+			headerSize += 4 + 2 + names[i].length + 8 + 4;
+		}
+
+		File tmp = new File(file.getPath() + ".tmp");
+		long[] offsets = new long[layers];
+		int[] crcs = new int[layers];
+
+		try (RandomAccessFile raf = new RandomAccessFile(tmp, "rw")) {
+			raf.setLength(0);
+			FileChannel ch = raf.getChannel();
+			ByteBuffer buf = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+
+			// Write the blocks first, so that their checksums are known when the header is written
+			long pos = align(headerSize);
+			for (int i = 0; i < layers; i++) {
+				offsets[i] = pos;
+				CRC32 crc = new CRC32();
+				pos += writeFloats(ch, pos, buf, crc, net.getWeights(i));
+				pos += writeFloats(ch, pos, buf, crc, net.getBiases(i));
+				crcs[i] = (int) crc.getValue();
+				pos = align(pos);
+			}
+
+			ByteBuffer header = ByteBuffer.allocate(headerSize).order(ByteOrder.LITTLE_ENDIAN);
+			header.putInt(MAGIC).putInt(VERSION).putInt(layers).putInt(0);
+			for (int i = 0; i < layers; i++) {
+				header.putInt(net.getLayerSize(i));
+				header.putShort((short) names[i].length).put(names[i]);
+				header.putLong(offsets[i]).putInt(crcs[i]);
+			}
+
+			CRC32 crc = new CRC32();
+			crc.update(header.array(), 0, header.position());
+			header.putInt((int) crc.getValue());
+			header.flip();
+
+			// The header starts the file, so its position in the buffer is its position in the file
+			while (header.hasRemaining()) {
+				ch.write(header, header.position());
+			}
+
+			raf.setLength(pos);
+			ch.force(true);
+		}
+
+		try {
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	/**
+	 * Reads a model file onto the heap as a new NeuralNet.  Every block is checked against
+	 * its checksum.
+	 * @param file the model file
+	 * @return the net
+	 * @throws IOException if the file cannot be read or is not a valid model
+	 */
+	public static NeuralNet read(File file) throws IOException {
+		return read(file, null);
+	}
+
+	/**
+	 * Reads a model file onto the heap as a new NeuralNet, using the given activation
+	 * functions for layers that were written with custom functions.
+	 * @param file the model file
+	 * @param custom the activation function of each layer with a custom function, or null
+	 * @return the net
+	 * @throws IOException if the file cannot be read or is not a valid model
+	 */
+	public static NeuralNet read(File file, Neuron.INeuronActivationFunction[] custom) throws IOException {
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+			FileChannel ch = raf.getChannel();
+			Header h = readHeader(ch, custom);
+			NeuralNet net = new NeuralNet(h.sizes, h.funcs);
+
+			for (int i = 0; i < h.sizes.length; i++) {
+				Layer l = net.getDenseLayer(i);
+				ByteBuffer block = ch.map(FileChannel.MapMode.READ_ONLY, h.offsets[i], h.lengths[i]);
+				block.order(ByteOrder.LITTLE_ENDIAN);
+
+				try {
+					verify(block, h.crcs[i], i);
+					FloatBuffer fs = block.asFloatBuffer();
+					fs.get(l.getWeights());
+					fs.get(l.getBiases());
+				} finally {
+					DirectMemory.free(block);
+				}
+			}
+
+			return net;
+		}
+	}
+
+	/**
+	 * Maps a model file into memory, read only, and returns a {@link DirectNet} that evaluates
+	 * it in place.  The blocks are not checked against their checksums, so that no more of the
+	 * file is read than inference needs; see {@link #map(File, Neuron.INeuronActivationFunction[], boolean)}.
+	 * The file is unmapped when the DirectNet is closed.
+	 * @param file the model file
+	 * @return the mapped net
+	 * @throws IOException if the file cannot be mapped or its header is not valid
+	 */
+	public static DirectNet map(File file) throws IOException {
+		return map(file, null, false);
+	}
+
+	/**
+	 * Maps a model file into memory, read only, and returns a {@link DirectNet} that evaluates
+	 * it in place.  The file is unmapped when the DirectNet is closed.  A mapped net cannot
+	 * be trained.
+	 * @param file the model file
+	 * @param custom the activation function of each layer with a custom function, or null
+	 * @param verify whether to check every block against its checksum, which reads the whole file
+	 * @return the mapped net
+	 * @throws IOException if the file cannot be mapped or is not a valid model
+	 */
+	public static DirectNet map(File file, Neuron.INeuronActivationFunction[] custom, boolean verify) throws IOException {
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+			FileChannel ch = raf.getChannel();
+			Header h = readHeader(ch, custom);
+			ByteBuffer[] blocks = new ByteBuffer[h.sizes.length];
+
+			try {
+				for (int i = 0; i < blocks.length; i++) {
+					blocks[i] = ch.map(FileChannel.MapMode.READ_ONLY, h.offsets[i], h.lengths[i]);
+					blocks[i].order(ByteOrder.LITTLE_ENDIAN);
+
+					if (verify) {
+						verify(blocks[i], h.crcs[i], i);
+					}
+				}
+
+				return new DirectNet(blocks, h.sizes, h.funcs);
+			} catch (IOException | RuntimeException e) {
+				for (int i = 0; i < blocks.length; i++) {
+					DirectMemory.free(blocks[i]);
+				}
+
+				throw e;
+			}
+		}
+	}
+
+	// Private methods
+	private static long align(long pos) {
+		return (pos + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+	}
+
+	private static long writeFloats(FileChannel ch, long pos, ByteBuffer buf, CRC32 crc, float[] values) throws IOException {
+		long start = pos;
+		for (int i = 0; i < values.length;) {
+			buf.clear();
+			while (i < values.length && buf.remaining() >= 4) {
+				buf.putFloat(values[i++]);
+			}
+
+			crc.update(buf.array(), 0, buf.position());
+			buf.flip();
+			while (buf.hasRemaining()) {
+				pos += ch.write(buf, pos);
+			}
+		}
+
+		return pos - start;
+	}
+
+	private static void verify(ByteBuffer block, int expected, int layer) throws IOException {
+		CRC32 crc = new CRC32();
+		ByteBuffer b = block.duplicate();
+		byte[] chunk = new byte[1 << 16];
+
+		while (b.hasRemaining()) {
+			int n = Math.min(chunk.length, b.remaining());
+			b.get(chunk, 0, n);
+			crc.update(chunk, 0, n);
+		}
+
+		if ((int) crc.getValue() != expected) {
+			throw new IOException("The data of layer " + layer + " is corrupt");
+		}
+	}
+
+	private static Header readHeader(FileChannel ch, Neuron.INeuronActivationFunction[] custom) throws IOException {
+		long fileSize = ch.size();
+		ByteBuffer fixed = readFully(ch, 0, 16);
+		if (fixed.getInt() != MAGIC) {
+			throw new IOException("Not a model file");
+		}
+
+		int version = fixed.getInt();
+		int layers = fixed.getInt();
+		if (version < 1 || version > VERSION) {
+			throw new IOException("Unsupported model version " + version);
+		} else if (layers < 2 || layers > 1 << 16) {
+			throw new IOException("Invalid number of layers " + layers);
+		}
+
+		// The header is at most this long, since names are at most 32767 bytes
+		int max = (int) Math.min(fileSize, 16 + 4 + (long) layers * (4 + 2 + Short.MAX_VALUE + 8 + 4));
+		ByteBuffer header = readFully(ch, 0, max);
+		header.position(16);
+
+		Header h = new Header(layers);
+		byte[][] names = new byte[layers][];
+		try {
+			for (int i = 0; i < layers; i++) {
+				h.sizes[i] = header.getInt();
+				names[i] = new byte[header.getShort() & 0xffff];
+				header.get(names[i]);
+				h.offsets[i] = header.getLong();
+				h.crcs[i] = header.getInt();
+			}
+		} catch (BufferUnderflowException e) {
+			throw new IOException("Unexpected end of model header");
+		}
+
+		CRC32 crc = new CRC32();
+		crc.update(header.array(), 0, header.position());
+		if (header.remaining() < 4 || header.getInt() != (int) crc.getValue()) {
+			throw new IOException("The model header is corrupt");
+		}
+
+		for (int i = 0; i < layers; i++) {
+			byte[] name = names[i];
+
+			if (name.length > 0) {
+				try {
+					h.funcs[i] = Activation.valueOf(new String(name, ASCII));
+				} catch (IllegalArgumentException e) {
+					throw new IOException("Unknown activation function " + new String(name, ASCII));
+				}
+			} else if (custom != null && i < custom.length && custom[i] != null) {
+				h.funcs[i] = custom[i];
+			} else {
+				throw new IOException("The custom activation function of layer " + i + " must be given");
+			}
+
+			long cols = i == 0 ? 1 : h.sizes[i - 1];
+			h.lengths[i] = 4 * (h.sizes[i] * cols + h.sizes[i]);
+
+			if (h.sizes[i] < 0 || h.offsets[i] < 0 || h.offsets[i] + h.lengths[i] > fileSize || h.lengths[i] > Integer.MAX_VALUE) {
+				throw new IOException("The block of layer " + i + " is out of bounds");
+			}
+		}
+
+		return h;
+	}
+
+	private static ByteBuffer readFully(FileChannel ch, long pos, int n) throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate(n).order(ByteOrder.LITTLE_ENDIAN);
+		while (buf.hasRemaining()) {
+			if (ch.read(buf, pos + buf.position()) < 0) {
+				throw new IOException("Unexpected end of model file");
+			}
+		}
+
+		buf.flip();
+		return buf;
+	}
+
+	/**
+	 * The topology read from the header of a model file.
+	 */
+	private static final class Header {
+		final int[] sizes;
+		final Neuron.INeuronActivationFunction[] funcs;
+		final long[] offsets;
+		final long[] lengths;
+		final int[] crcs;
+
+		Header(int layers) {
+			sizes = new int[layers];
+			funcs = new Neuron.INeuronActivationFunction[layers];
+			offsets = new long[layers];
+			lengths = new long[layers];
+			crcs = new int[layers];
+		}
+	}
+}
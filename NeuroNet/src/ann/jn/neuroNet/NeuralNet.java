@@ -1,372 +1,932 @@
-package ann.jn.neuroNet;
-
-/**
- * The core of the Artificial neural network.  The NeuralNet
- * controls the creation and updates of the network.
- */
-public class NeuralNet {
-	private Neuron.INeuronActivationFunction func;
-	private Neuron[][] net;
-	private Object updateLock;
-	private volatile boolean updating;
-	private volatile int threads;
-
-	private float[] storedInputs;
-
-	/**
-	 * Creates a NeuralNet with the specified number of neurons in each layer.
-	 * The first listed layer is the number of input neurons, and the last layer
-	 * is the number of output neurons.
-	 * 
-	 * for example, <code>NeuralNet(3, 4, 1)<code>
-	 * will create a NeuralNet with 3 input neurons, 4 hidden neurons,
-	 * and 1 output neuron.
-	 * 
-	 * @param layers the number neurons each layer should have.
-	 */
-	public NeuralNet(int... layers) {
-		this(null, layers);
-	}
-	
-	/**
-	 * Creates a NeuralNet with the specified number of neurons in each layer, and
-	 * the specified neuron activation, which defaults to a logistic function.
-	 * The first listed layer is the number of input neurons, and the last layer
-	 * is the number of output neurons.
-	 * 
-	 * for example, <code>NeuralNet(3, 4, 1)<code>
-	 * will create a NeuralNet with 3 input neurons, 4 hidden neurons,
-	 * and 1 output neuron.
-	 * 
-	 * @param layers the number neurons each layer should have.
-	 */
-	public NeuralNet(Neuron.INeuronActivationFunction func, int... layers) {
-		if (layers == null || layers.length < 2) {
-			throw new IllegalArgumentException("Invalid layers!");
-		}
-
-		// Create the net
-		net = new Neuron[layers.length][];
-		for (int i = 0; i < net.length; i++) {
-			net[i] = new Neuron[layers[i]];
-			
-			for (int j = 0; j < net[i].length; j++) {
-				int ins = i == 0 ? 1 : layers[i - 1];
-				
-				if (func != null) {
-					net[i][j] = new Neuron(ins, func);
-				} else {
-					net[i][j] = new Neuron(ins);
-				}
-			}
-		}
-
-		this.func = func;
-		storedInputs = new float[layers[0]];
-		updateLock = new Object();
-		updating = false;
-		threads = 0;
-	}
-
-	/**
-	 * Randomizes the weights of each input for each Neuron.
-	 * Each input is between 0 and 1.
-	 */
-	public void randomizeWeights() {
-		synchronized (updateLock) {
-			for (int i = 0; i < 0; i++) {
-				net[0][i].setWeights(new float[]{rand()});
-				net[0][i].setBias(rand());
-			}
-			
-			for (int layer = 1; layer < net.length; layer++) {
-				for (int i = 0; i < net[layer].length; i++) {
-					float[] weights = new float[net[layer - 1].length];
-					
-					for (int j = 0; j < weights.length; j++) {
-						weights[j] = rand();
-					}
-					
-					net[layer][i].setWeights(weights);
-					net[layer][i].setBias(rand());
-				}
-			}
-		}
-	}
-	
-	private float rand() {
-		return (float) (Math.random());
-	}
-
-	/**
-	 * Sets the weight of each input to zero for each Neuron.
-	 */
-	public void zeroWeights() {
-		synchronized (updateLock) {
-			for (int i = 0; i < 0; i++) {
-				net[0][i].setWeights(new float[]{0});
-				net[0][i].setBias(0);
-			}
-			
-			for (int layer = 1; layer < net.length; layer++) {
-				for (int i = 0; i < net[layer].length; i++) {
-					float[] weights = new float[net[layer - 1].length];
-					net[layer][i].setWeights(weights);
-					net[layer][i].setBias(0);
-				}
-			}
-		}
-	}
-
-	/**
-	 * Sets the input of the specified neuron on the input
-	 * layer.  This has no effect on the weights or inputs
-	 * of other neurons until update() is called.
-	 * 
-	 * @param input the number of the neuron
-	 * @param value the value to set it to
-	 */
-	public void setInput(int input, float value) {
-		if (input >= storedInputs.length) {
-			throw new IllegalArgumentException("Invalid neuron number!");
-		}
-
-		synchronized (updateLock) {
-			storedInputs[input] = value;
-		}
-	}
-
-	/**
-	 * Sets the inputs for this neural network. This has no effect
-	 * on the weights or inputs of other neurons until update() is called.
-	 * 
-	 * @param value the values for each input neuron.
-	 */
-	public void setInputs(float[] value) {
-		if (value == null || value.length != net[0].length) {
-			throw new IllegalArgumentException("Invalid value length!");
-		}
-
-		synchronized (updateLock) {
-			for (int i = 0; i < storedInputs.length; i++) {
-				storedInputs[i] = value[i];
-			}
-		}
-	}
-
-	/**
-	 * Updates the neural network and returns the output's values.
-	 * 
-	 * @return the outputs
-	 */
-	public float[] update() {
-		doUpdate();
-
-		return getOutputs();
-	}
-
-	/**
-	 * Updates the neural network and returns the output's values.
-	 * Additionally, it calls the specified callback when done.
-	 * 
-	 * @param cb the callback
-	 * @return the outputs
-	 */
-	public float[] update(INeuralNetCallback cb) {
-		doUpdate();
-		cb.onFinish();
-
-		return getOutputs();
-	}
-
-	/**
-	 * Updates the neural network on a different thread.
-	 */
-	public void updateAsync() {
-		new NeuralNetUpdateThread(null);
-	}
-
-	/**
-	 * Updates the neural network on a different thread and
-	 * calls the specified callback when done.
-	 * 
-	 * @param cb the callback
-	 */
-	public void updateAsync(INeuralNetCallback cb) {
-		new NeuralNetUpdateThread(cb);
-	}
-
-	/**
-	 * Determines whether the neural network is currently updating.
-	 * 
-	 * @return whether the neural network is updating
-	 */
-	public boolean isUpdating() {
-		return updating;
-	}
-	
-	/**
-	 * Gets an input
-	 * 
-	 * @param input the input number
-	 * @return the input value
-	 */
-	public float getInput(int input) {
-		if (input >= net[0].length) {
-			throw new IllegalArgumentException("Neuron number is invalid");
-		}
-		
-		return (storedInputs[input]);
-	}
-	
-	/**
-	 * Gets all of the inputs.
-	 * 
-	 * @return the inputs
-	 */
-	public float[] getInputs() {
-		return (storedInputs);
-	}
-
-	/**
-	 * Gets the last output for the specified neuron.
-	 * 
-	 * @param output the output number
-	 * @return the neuron's output
-	 */
-	public float getOutput(int output) {
-		if (output >= net[net.length - 1].length) {
-			throw new IllegalArgumentException("Neuron number is invalid");
-		}
-		
-		synchronized (updateLock) {
-			return (net[net.length - 1][output].getOutput());
-		}
-	}
-
-	/**
-	 * Gets the last outputs in the neural network.
-	 * 
-	 * @return an array of outputs.
-	 */
-	public float[] getOutputs() {
-		synchronized (updateLock) {
-			float[] outs = new float[net[net.length - 1].length];
-			
-			for (int i = 0; i < outs.length; i++) {
-				outs[i] = net[net.length - 1][i].getOutput();
-			}
-			
-			return (outs);
-		}
-	}
-	
-	/**
-	 * Returns the number of neural layers in this net.
-	 * 
-	 * @return the number of layers
-	 */
-	public int getNumLayers() {
-		return (net.length);
-	}
-
-	/**
-	 * Gets an array consisting of all the neurons in the specified layer.
-	 * 
-	 * @param layer the layer
-	 * @return the neurons
-	 */
-	public Neuron[] getLayer(int layer) {
-		if (layer >= net.length) {
-			throw new IllegalArgumentException("The layer doesn't exist");
-		}
-		
-		return net[layer];
-	}
-
-	/**
-	 * Gets the neuron at the specified layer and position.
-	 * 
-	 * @param layer the layer
-	 * @param num the number of the neuron
-	 * @return the neuron
-	 */
-	public Neuron getNeuron(int layer, int num) {
-		if (layer >= net.length) {
-			throw new IllegalArgumentException("The neuron doesn't exist");
-		}
-		
-		return net[layer][num];
-	}
-
-	/**
-	 * Returns the {@link ann.jn.neuroNet.Neuron.INeuronActivationFunction} used to create the
-	 * {@link Neuron}s in this net.
-	 * @return activation function of neurons
-	 */
-	public Neuron.INeuronActivationFunction getActivationFunction() {
-		return func;
-	}
-	
-	// Private methods
-	private void doUpdate() {
-		synchronized (updateLock) {
-			updating = true;
-			
-			// Feed the inputs into the input layer
-			float[] inputs = new float[net[0].length];
-			for (int i = 0; i < net[0].length; i++) {
-				inputs[i] = net[0][i].update(new float[]{storedInputs[i]});
-			}
-			
-			// Update the rest of the layers
-			for (int layer = 1; layer < net.length; layer++) {
-				float[] outputs = new float[net[layer].length];
-				
-				for (int i = 0; i < net[layer].length; i++) {
-					outputs[i] = net[layer][i].update(inputs);
-				}
-				
-				inputs = outputs;
-			}
-			
-			updating = false;
-		}
-	}
-	
-	/**
-	 * A callback that is accessed when NeuralNet is done updating.
-	 */
-	public interface INeuralNetCallback {
-		/**
-		 * Called when NeuralNet is finished updating.
-		 */
-		public abstract void onFinish();
-	}
-
-	private class NeuralNetUpdateThread implements Runnable {
-		private INeuralNetCallback cb;
-
-		public NeuralNetUpdateThread(INeuralNetCallback cb) {
-			this.cb = cb;
-
-			Thread th = new Thread();
-			th.setName("NeuralNet Update thread #" + threads++);
-			th.setDaemon(true);
-
-			new Thread(this).start();
-		}
-
-		@Override
-		public void run() {
-			doUpdate();
-
-			if (cb != null) {
-				cb.onFinish();
-			}
-			
-			threads--;
-		}
-
-	}
-}
+package ann.jn.neuroNet;
+
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The core of the Artificial neural network.  The NeuralNet
+ * controls the creation and updates of the network.  Each layer
+ * of the network is stored densely in a {@link Layer}.
+ */
+public class NeuralNet {
+	/**
+	 * The number of samples evaluated together by {@link #updateBatch(float[], float[], int)}.
+	 */
+	public static final int BATCH_ROWS = 64;
+	
+	/**
+	 * The number of updates the default executor queues before it makes
+	 * callers run their own updates.
+	 */
+	public static final int ASYNC_QUEUE_SIZE = 1024;
+	
+	/**
+	 * The number of passes {@link #updateIncremental()} makes from changes alone
+	 * before it recomputes the net in full, so that rounding errors in the first
+	 * hidden layer cannot build up.
+	 */
+	public static final int INCREMENTAL_REFRESH = 1024;
+	
+	private Neuron.INeuronActivationFunction func;
+	private Layer[] net;
+	private Object updateLock;
+	private volatile boolean updating;
+	private volatile Executor executor;
+	private volatile ForkJoinPool forkJoinPool;
+	private final AtomicLong weightVersion = new AtomicLong();
+
+	private float[] storedInputs;
+	private float[] batchA;
+	private float[] batchB;
+	
+	// Incremental update state, see updateIncremental()
+	private boolean[] dirty;
+	private int[] dirtyList;
+	private int dirtyCount;
+	private float[] firstSums;
+	private boolean incrementalValid;
+	private long incrementalVersion;
+	private int incrementalPasses;
+	private long savedMultiplyAdds;
+
+	/**
+	 * Creates a NeuralNet with the specified number of neurons in each layer.
+	 * The first listed layer is the number of input neurons, and the last layer
+	 * is the number of output neurons.
+	 * 
+	 * for example, <code>NeuralNet(3, 4, 1)<code>
+	 * will create a NeuralNet with 3 input neurons, 4 hidden neurons,
+	 * and 1 output neuron.
+	 * 
+	 * @param layers the number neurons each layer should have.
+	 */
+	public NeuralNet(int... layers) {
+		this(null, layers);
+	}
+	
+	/**
+	 * Creates a NeuralNet with the specified number of neurons in each layer, and
+	 * the specified neuron activation, which defaults to a logistic function.
+	 * The first listed layer is the number of input neurons, and the last layer
+	 * is the number of output neurons.
+	 * 
+	 * for example, <code>NeuralNet(3, 4, 1)<code>
+	 * will create a NeuralNet with 3 input neurons, 4 hidden neurons,
+	 * and 1 output neuron.
+	 * 
+	 * @param layers the number neurons each layer should have.
+	 */
+	public NeuralNet(Neuron.INeuronActivationFunction func, int... layers) {
+		this(layers, uniform(func, layers));
+		this.func = func;
+	}
+	
+	/**
+	 * Creates a NeuralNet with the specified number of neurons in each layer, and
+	 * the specified neuron activation for each layer.  The neurons of a layer
+	 * whose activation is null use a logistic function.
+	 * 
+	 * Layers that use a built in {@link Activation} are activated by a loop
+	 * specialised for that function, rather than by one call per neuron.
+	 * 
+	 * @param layers the number neurons each layer should have.
+	 * @param funcs the activation function of each layer.
+	 */
+	public NeuralNet(int[] layers, Neuron.INeuronActivationFunction[] funcs) {
+		if (layers == null || layers.length < 2) {
+			throw new IllegalArgumentException("Invalid layers!");
+		} else if (funcs == null || funcs.length != layers.length) {
+			throw new IllegalArgumentException("There must be one activation function per layer!");
+		}
+
+		// Create the net
+		net = new Layer[layers.length];
+		for (int i = 0; i < net.length; i++) {
+			int ins = i == 0 ? 1 : layers[i - 1];
+			net[i] = new Layer(layers[i], ins, funcs[i]);
+		}
+
+		storedInputs = new float[layers[0]];
+		dirty = new boolean[layers[0]];
+		dirtyList = new int[layers[0]];
+		updateLock = new Object();
+		updating = false;
+	}
+	
+	private static Neuron.INeuronActivationFunction[] uniform(Neuron.INeuronActivationFunction func, int[] layers) {
+		Neuron.INeuronActivationFunction[] funcs = new Neuron.INeuronActivationFunction[layers == null ? 0 : layers.length];
+		Arrays.fill(funcs, func);
+		return funcs;
+	}
+
+	/**
+	 * Randomizes the weights of each input for each Neuron.
+	 * Each input is between 0 and 1.
+	 */
+	public void randomizeWeights() {
+		synchronized (updateLock) {
+			for (int layer = 1; layer < net.length; layer++) {
+				float[] weights = net[layer].getWeights();
+				float[] biases = net[layer].getBiases();
+				
+				for (int i = 0; i < weights.length; i++) {
+					weights[i] = rand();
+				}
+				
+				for (int i = 0; i < biases.length; i++) {
+					biases[i] = rand();
+				}
+			}
+		}
+		
+		weightsChanged();
+	}
+	
+	private float rand() {
+		return (float) (Math.random());
+	}
+
+	/**
+	 * Sets the weight of each input to zero for each Neuron.
+	 */
+	public void zeroWeights() {
+		synchronized (updateLock) {
+			for (int layer = 1; layer < net.length; layer++) {
+				Arrays.fill(net[layer].getWeights(), 0);
+				Arrays.fill(net[layer].getBiases(), 0);
+			}
+		}
+		
+		weightsChanged();
+	}
+
+	/**
+	 * Sets the input of the specified neuron on the input
+	 * layer.  This has no effect on the weights or inputs
+	 * of other neurons until update() is called.
+	 * 
+	 * @param input the number of the neuron
+	 * @param value the value to set it to
+	 */
+	public void setInput(int input, float value) {
+		if (input >= storedInputs.length) {
+			throw new IllegalArgumentException("Invalid neuron number!");
+		}
+
+		synchronized (updateLock) {
+			if (Float.floatToIntBits(storedInputs[input]) != Float.floatToIntBits(value)) {
+				storedInputs[input] = value;
+				markDirty(input);
+			}
+		}
+	}
+
+	/**
+	 * Sets the inputs for this neural network. This has no effect
+	 * on the weights or inputs of other neurons until update() is called.
+	 * 
+	 * @param value the values for each input neuron.
+	 */
+	public void setInputs(float[] value) {
+		if (value == null || value.length != net[0].getSize()) {
+			throw new IllegalArgumentException("Invalid value length!");
+		}
+
+		synchronized (updateLock) {
+			for (int i = 0; i < storedInputs.length; i++) {
+				if (Float.floatToIntBits(storedInputs[i]) != Float.floatToIntBits(value[i])) {
+					storedInputs[i] = value[i];
+					markDirty(i);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Updates the neural network and returns the output's values.
+	 * 
+	 * @return the outputs
+	 */
+	public float[] update() {
+		doUpdate();
+
+		return getOutputs();
+	}
+
+	/**
+	 * <p>
+	 * Updates the neural network from the inputs that changed since the last
+	 * incremental update, and returns the output's values.
+	 * </p>
+	 * <p>
+	 * Inputs changed through {@link #setInput(int, float)} or
+	 * {@link #setInputs(float[])} are remembered.  If none changed and the
+	 * weights did not either, the last outputs are returned without any work.
+	 * Otherwise only the changed input neurons are evaluated, and the change in
+	 * each of their outputs times its weight is added to the sums of the first
+	 * hidden layer, which are kept between updates.  The layers after it are
+	 * evaluated in full.
+	 * </p>
+	 * <p>
+	 * The whole net is recomputed on the first incremental update, after the
+	 * weights change, after {@link #update()}, and every
+	 * {@link #INCREMENTAL_REFRESH} passes.  Writes to the array returned by
+	 * {@link #getInputs()} are not noticed.
+	 * </p>
+	 * 
+	 * @return the outputs
+	 * @see #getSavedMultiplyAdds()
+	 */
+	public float[] updateIncremental() {
+		doUpdateIncremental();
+		
+		return getOutputs();
+	}
+	
+	/**
+	 * Returns the number of multiply-adds that {@link #updateIncremental()} has
+	 * skipped compared to updating the whole net each time.
+	 * 
+	 * @return the multiply-adds saved
+	 */
+	public long getSavedMultiplyAdds() {
+		synchronized (updateLock) {
+			return savedMultiplyAdds;
+		}
+	}
+
+	/**
+	 * Sets the inputs of the neural network, updates it, and writes the
+	 * output's values to <code>outputs</code>.  Unlike {@link #update()}, no
+	 * array is allocated.
+	 * 
+	 * @param inputs the values for each input neuron
+	 * @param outputs receives the value of each output neuron
+	 */
+	public void update(float[] inputs, float[] outputs) {
+		if (outputs == null || outputs.length != net[net.length - 1].getSize()) {
+			throw new IllegalArgumentException("Invalid output length!");
+		}
+		
+		long wait = lockStart();
+		synchronized (updateLock) {
+			Telemetry.lockAcquired(wait);
+			setInputs(inputs);
+			doUpdate();
+			System.arraycopy(net[net.length - 1].getOutputs(), 0, outputs, 0, outputs.length);
+		}
+	}
+
+	/**
+	 * Updates the neural network and returns the output's values.
+	 * Additionally, it calls the specified callback when done.
+	 * 
+	 * @param cb the callback
+	 * @return the outputs
+	 */
+	public float[] update(INeuralNetCallback cb) {
+		doUpdate();
+		cb.onFinish();
+
+		return getOutputs();
+	}
+
+	/**
+	 * <p>
+	 * Updates the neural network for many samples at once.  Each element of
+	 * <code>inputs</code> holds the input values of one sample, and the outputs
+	 * of that sample are written to the element of <code>outputs</code> with the
+	 * same index.
+	 * </p>
+	 * <p>
+	 * The stored inputs and outputs of the network are not changed.
+	 * </p>
+	 * 
+	 * @param inputs the input values of each sample
+	 * @param outputs receives the output values of each sample
+	 */
+	public void updateBatch(float[][] inputs, float[][] outputs) {
+		int ins = net[0].getSize();
+		int outs = net[net.length - 1].getSize();
+		if (inputs == null || outputs == null || outputs.length < inputs.length) {
+			throw new IllegalArgumentException("Invalid batch!");
+		}
+		
+		long wait = lockStart();
+		synchronized (updateLock) {
+			Telemetry.lockAcquired(wait);
+			long start = Telemetry.start();
+			ensureBatchBuffers();
+			
+			for (int r0 = 0; r0 < inputs.length; r0 += BATCH_ROWS) {
+				int rows = Math.min(BATCH_ROWS, inputs.length - r0);
+				
+				for (int r = 0; r < rows; r++) {
+					if (inputs[r0 + r].length != ins || outputs[r0 + r].length != outs) {
+						throw new IllegalArgumentException("Invalid value length in row " + (r0 + r) + "!");
+					}
+					
+					System.arraycopy(inputs[r0 + r], 0, batchA, r * ins, ins);
+				}
+				
+				float[] res = doUpdateBatch(rows);
+				for (int r = 0; r < rows; r++) {
+					System.arraycopy(res, r * outs, outputs[r0 + r], 0, outs);
+				}
+			}
+			
+			Telemetry.forwardPass(net.length, inputs.length, start);
+		}
+	}
+	
+	/**
+	 * <p>
+	 * Updates the neural network for <code>rows</code> samples at once.  Both
+	 * <code>inputs</code> and <code>outputs</code> are row-major with one row per
+	 * sample, holding one value per input neuron and output neuron respectively.
+	 * </p>
+	 * <p>
+	 * The stored inputs and outputs of the network are not changed.
+	 * </p>
+	 * 
+	 * @param inputs the input values of each sample
+	 * @param outputs receives the output values of each sample
+	 * @param rows the number of samples
+	 */
+	public void updateBatch(float[] inputs, float[] outputs, int rows) {
+		int ins = net[0].getSize();
+		int outs = net[net.length - 1].getSize();
+		if (inputs == null || outputs == null || rows < 0 ||
+			inputs.length < rows * ins || outputs.length < rows * outs) {
+			throw new IllegalArgumentException("Invalid batch!");
+		}
+		
+		long wait = lockStart();
+		synchronized (updateLock) {
+			Telemetry.lockAcquired(wait);
+			long start = Telemetry.start();
+			ensureBatchBuffers();
+			
+			for (int r0 = 0; r0 < rows; r0 += BATCH_ROWS) {
+				int n = Math.min(BATCH_ROWS, rows - r0);
+				
+				System.arraycopy(inputs, r0 * ins, batchA, 0, n * ins);
+				System.arraycopy(doUpdateBatch(n), 0, outputs, r0 * outs, n * outs);
+			}
+			
+			Telemetry.forwardPass(net.length, rows, start);
+		}
+	}
+
+	/**
+	 * Updates the neural network on the executor of this net.
+	 * 
+	 * @return a future holding the outputs
+	 * @see #setExecutor(Executor)
+	 */
+	public Future<float[]> updateAsync() {
+		return updateAsync((INeuralNetCallback) null);
+	}
+
+	/**
+	 * Updates the neural network on the executor of this net and
+	 * calls the specified callback when done.
+	 * 
+	 * @param cb the callback, or null
+	 * @return a future holding the outputs
+	 * @see #setExecutor(Executor)
+	 */
+	public Future<float[]> updateAsync(final INeuralNetCallback cb) {
+		return submit(new Callable<float[]>() {
+			@Override
+			public float[] call() {
+				doUpdate();
+				
+				if (cb != null) {
+					cb.onFinish();
+				}
+				
+				return getOutputs();
+			}
+		});
+	}
+	
+	/**
+	 * <p>
+	 * Evaluates the neural network for the given inputs on the executor
+	 * of this net.  The inputs are copied before this method returns.
+	 * </p>
+	 * <p>
+	 * The stored inputs and outputs of the network are not changed, so
+	 * any number of these updates may be pending at once.  An update that
+	 * has not started yet can be cancelled through the returned future.
+	 * </p>
+	 * 
+	 * @param inputs the values for each input neuron
+	 * @return a future holding the outputs
+	 * @see #setExecutor(Executor)
+	 */
+	public Future<float[]> updateAsync(float[] inputs) {
+		if (inputs == null || inputs.length != net[0].getSize()) {
+			throw new IllegalArgumentException("Invalid value length!");
+		}
+		
+		final float[] ins = inputs.clone();
+		return submit(new Callable<float[]>() {
+			@Override
+			public float[] call() {
+				float[] outs = new float[net[net.length - 1].getSize()];
+				updateBatch(ins, outs, 1);
+				return outs;
+			}
+		});
+	}
+	
+	/**
+	 * Sets the executor that runs the asynchronous updates of this net.
+	 * 
+	 * @param executor the executor, or null to use {@link #getDefaultExecutor()}
+	 */
+	public void setExecutor(Executor executor) {
+		this.executor = executor;
+	}
+	
+	/**
+	 * Returns the executor that runs the asynchronous updates of this net.
+	 * 
+	 * @return the executor
+	 */
+	public Executor getExecutor() {
+		Executor ex = executor;
+		return ex != null ? ex : getDefaultExecutor();
+	}
+	
+	/**
+	 * <p>
+	 * Sets the pool used to evaluate the neurons of wide layers in parallel
+	 * during {@link #update()}.  Each layer is only split when
+	 * {@link Layer#isWorthSplitting(int)} expects it to be faster, so small
+	 * layers are still evaluated on the updating thread.
+	 * </p>
+	 * <p>
+	 * Parallel updates are off by default.
+	 * </p>
+	 * 
+	 * @param pool the pool, or null to evaluate every layer on the updating thread
+	 */
+	public void setForkJoinPool(ForkJoinPool pool) {
+		this.forkJoinPool = pool;
+	}
+	
+	/**
+	 * Returns the pool used to evaluate wide layers in parallel.
+	 * 
+	 * @return the pool, or null if parallel updates are off
+	 */
+	public ForkJoinPool getForkJoinPool() {
+		return forkJoinPool;
+	}
+	
+	/**
+	 * <p>
+	 * Returns the executor shared by every net that has not been given its own.
+	 * It runs one daemon thread per processor and queues up to
+	 * {@link #ASYNC_QUEUE_SIZE} updates.  When the queue is full, the update runs on
+	 * the thread that requested it, which slows the requester down
+	 * until the queue drains.
+	 * </p>
+	 * 
+	 * @return the shared executor
+	 */
+	public static Executor getDefaultExecutor() {
+		return DefaultExecutor.INSTANCE;
+	}
+
+	/**
+	 * Determines whether the neural network is currently updating.
+	 * 
+	 * @return whether the neural network is updating
+	 */
+	public boolean isUpdating() {
+		return updating;
+	}
+	
+	/**
+	 * Gets an input
+	 * 
+	 * @param input the input number
+	 * @return the input value
+	 */
+	public float getInput(int input) {
+		if (input >= net[0].getSize()) {
+			throw new IllegalArgumentException("Neuron number is invalid");
+		}
+		
+		return (storedInputs[input]);
+	}
+	
+	/**
+	 * Gets all of the inputs.
+	 * 
+	 * @return the inputs
+	 */
+	public float[] getInputs() {
+		return (storedInputs);
+	}
+
+	/**
+	 * Gets the last output for the specified neuron.
+	 * 
+	 * @param output the output number
+	 * @return the neuron's output
+	 */
+	public float getOutput(int output) {
+		if (output >= net[net.length - 1].getSize()) {
+			throw new IllegalArgumentException("Neuron number is invalid");
+		}
+		
+		synchronized (updateLock) {
+			return (net[net.length - 1].getOutputs()[output]);
+		}
+	}
+
+	/**
+	 * Gets the last outputs in the neural network.
+	 * 
+	 * @return an array of outputs.
+	 */
+	public float[] getOutputs() {
+		synchronized (updateLock) {
+			return (net[net.length - 1].getOutputs().clone());
+		}
+	}
+	
+	/**
+	 * Returns the number of neural layers in this net.
+	 * 
+	 * @return the number of layers
+	 */
+	public int getNumLayers() {
+		return (net.length);
+	}
+
+	/**
+	 * Gets an array consisting of all the neurons in the specified layer.
+	 * The neurons are views onto the layer's storage.
+	 * 
+	 * @param layer the layer
+	 * @return the neurons
+	 */
+	public Neuron[] getLayer(int layer) {
+		if (layer >= net.length) {
+			throw new IllegalArgumentException("The layer doesn't exist");
+		}
+		
+		return net[layer].getNeurons();
+	}
+	
+	/**
+	 * Gets the dense storage of the specified layer.
+	 * 
+	 * @param layer the layer
+	 * @return the layer's weights, biases and outputs
+	 */
+	public Layer getDenseLayer(int layer) {
+		if (layer >= net.length) {
+			throw new IllegalArgumentException("The layer doesn't exist");
+		}
+		
+		return net[layer];
+	}
+	
+	/**
+	 * Gets the number of neurons in the specified layer.
+	 * 
+	 * @param layer the layer
+	 * @return the number of neurons
+	 */
+	public int getLayerSize(int layer) {
+		if (layer >= net.length) {
+			throw new IllegalArgumentException("The layer doesn't exist");
+		}
+		
+		return net[layer].getSize();
+	}
+
+	/**
+	 * Gets the neuron at the specified layer and position.
+	 * 
+	 * @param layer the layer
+	 * @param num the number of the neuron
+	 * @return the neuron
+	 */
+	public Neuron getNeuron(int layer, int num) {
+		if (layer >= net.length) {
+			throw new IllegalArgumentException("The neuron doesn't exist");
+		}
+		
+		return net[layer].getNeurons()[num];
+	}
+
+	/**
+	 * Creates an immutable copy of the current weights of this net that can
+	 * be updated by many threads at once without locking.
+	 * 
+	 * @return the snapshot
+	 */
+	public NeuralNetSnapshot snapshot() {
+		synchronized (updateLock) {
+			return new NeuralNetSnapshot(net);
+		}
+	}
+
+	/**
+	 * Returns a number that changes whenever the weights or biases of this net
+	 * change.  Changes made through a {@link Neuron}, or by this net, are counted
+	 * automatically.  Code that writes to the arrays of a {@link Layer} directly
+	 * must call {@link #weightsChanged()} afterwards.
+	 * 
+	 * @return the weight version
+	 */
+	public long getWeightVersion() {
+		long v = weightVersion.get();
+		for (int i = 0; i < net.length; i++) {
+			v += net[i].getVersion();
+		}
+		
+		return v;
+	}
+	
+	/**
+	 * Records that the weights or biases of this net were changed through the
+	 * arrays of its {@link Layer}s, so that anything derived from them, such as
+	 * an {@link InferenceCache}, is recomputed.
+	 */
+	public void weightsChanged() {
+		weightVersion.incrementAndGet();
+	}
+
+	/**
+	 * Generates an evaluator specialised to the current shape and weights of this
+	 * net.  For small nets it is many times faster than {@link #update()}.
+	 *
+	 * @return the compiled net
+	 * @see CompiledNet
+	 */
+	public CompiledNet compile() {
+		return CompiledNet.compile(snapshot());
+	}
+
+	/**
+	 * Returns the {@link ann.jn.neuroNet.Neuron.INeuronActivationFunction} used to create the
+	 * {@link Neuron}s in this net.
+	 * @return activation function of neurons, or null if it was not given or differs between layers
+	 */
+	public Neuron.INeuronActivationFunction getActivationFunction() {
+		return func;
+	}
+	
+	/**
+	 * Returns the activation function of the neurons in the specified layer.
+	 * 
+	 * @param layer the layer
+	 * @return the activation function
+	 */
+	public Neuron.INeuronActivationFunction getActivationFunction(int layer) {
+		if (layer >= net.length) {
+			throw new IllegalArgumentException("The layer doesn't exist");
+		}
+		
+		return net[layer].getFunction();
+	}
+	
+	// Private methods
+	private void doUpdate() {
+		long wait = lockStart();
+		synchronized (updateLock) {
+			Telemetry.lockAcquired(wait);
+			long start = Telemetry.start();
+			updating = true;
+			
+			// Feed the inputs into the input layer
+			float[] inputs = net[0].updateEach(storedInputs);
+			
+			// Update the rest of the layers
+			updateFrom(1, inputs);
+			
+			// The first hidden layer's sums no longer match its inputs
+			incrementalValid = false;
+			clearDirty();
+			updating = false;
+			Telemetry.forwardPass(net.length, 1, start);
+		}
+	}
+	
+	private void doUpdateIncremental() {
+		long wait = lockStart();
+		synchronized (updateLock) {
+			Telemetry.lockAcquired(wait);
+			long start = Telemetry.start();
+			updating = true;
+			
+			Layer first = net[1];
+			int n0 = net[0].getSize();
+			int n1 = first.getSize();
+			long version = getWeightVersion();
+			
+			if (!incrementalValid || version != incrementalVersion || incrementalPasses >= INCREMENTAL_REFRESH) {
+				float[] ins = net[0].updateEach(storedInputs);
+				float[] ws = first.getWeights();
+				float[] bs = first.getBiases();
+				
+				if (firstSums == null) {
+					firstSums = new float[n1];
+				}
+				
+				for (int j = 0; j < n1; j++) {
+					firstSums[j] = bs[j] + Kernels.dot(ws, j * n0, ins, 0, n0);
+				}
+				
+				incrementalValid = true;
+				incrementalVersion = version;
+				incrementalPasses = 0;
+			} else if (dirtyCount == 0) {
+				savedMultiplyAdds += multiplyAdds();
+				updating = false;
+				Telemetry.forwardPass(net.length, 1, start);
+				return;
+			} else {
+				Neuron.INeuronActivationFunction f = net[0].getFunction();
+				float[] w0 = net[0].getWeights();
+				float[] b0 = net[0].getBiases();
+				float[] o0 = net[0].getOutputs();
+				float[] s0 = net[0].getSums();
+				float[] ws = first.getWeights();
+				
+				// Add the change of each changed input neuron to every sum it feeds
+				for (int d = 0; d < dirtyCount; d++) {
+					int i = dirtyList[d];
+					s0[i] = b0[i] + storedInputs[i] * w0[i];
+					float out = f.evaluate(s0[i]);
+					float delta = out - o0[i];
+					o0[i] = out;
+					
+					if (delta != 0) {
+						for (int j = 0, k = i; j < n1; j++, k += n0) {
+							firstSums[j] += ws[k] * delta;
+						}
+					}
+				}
+				
+				savedMultiplyAdds += (long) (n0 - dirtyCount) * (n1 + 1);
+				incrementalPasses++;
+			}
+			
+			float[] outs = first.getOutputs();
+			System.arraycopy(firstSums, 0, first.getSums(), 0, n1);
+			System.arraycopy(firstSums, 0, outs, 0, n1);
+			Layer.activate(first.getFunction(), outs, 0, n1);
+			updateFrom(2, outs);
+			
+			clearDirty();
+			updating = false;
+			Telemetry.forwardPass(net.length, 1, start);
+		}
+	}
+	
+	/**
+	 * Returns the time to pass to {@link Telemetry#lockAcquired(long)}, or 0 if this
+	 * thread holds the update lock already, so that only the outermost taking of
+	 * the lock is counted.
+	 */
+	private long lockStart() {
+		long start = Telemetry.start();
+		return start != 0 && Thread.holdsLock(updateLock) ? 0 : start;
+	}
+	
+	/**
+	 * Evaluates every layer from <code>layer</code> on, given the outputs of the
+	 * layer before it.
+	 */
+	private void updateFrom(int layer, float[] inputs) {
+		ForkJoinPool pool = forkJoinPool;
+		for (; layer < net.length; layer++) {
+			if (pool != null) {
+				inputs = net[layer].update(inputs, pool);
+			} else {
+				inputs = net[layer].update(inputs);
+			}
+		}
+	}
+	
+	/**
+	 * Returns the number of multiply-adds in a full update of this net.
+	 */
+	private long multiplyAdds() {
+		long n = net[0].getSize();
+		for (int i = 1; i < net.length; i++) {
+			n += (long) net[i].getSize() * net[i].getNumInputs();
+		}
+		
+		return n;
+	}
+	
+	private void markDirty(int input) {
+		if (!dirty[input]) {
+			dirty[input] = true;
+			dirtyList[dirtyCount++] = input;
+		}
+	}
+	
+	private void clearDirty() {
+		for (int d = 0; d < dirtyCount; d++) {
+			dirty[dirtyList[d]] = false;
+		}
+		
+		dirtyCount = 0;
+	}
+	
+	private void ensureBatchBuffers() {
+		if (batchA == null) {
+			int width = 0;
+			for (int i = 0; i < net.length; i++) {
+				width = Math.max(width, net[i].getSize());
+			}
+			
+			batchA = new float[BATCH_ROWS * width];
+			batchB = new float[BATCH_ROWS * width];
+		}
+	}
+	
+	/**
+	 * Runs <code>rows</code> samples held in batchA through every layer, and
+	 * returns the scratch buffer that holds the outputs.
+	 */
+	private float[] doUpdateBatch(int rows) {
+		float[] in = batchA;
+		float[] out = batchB;
+		
+		net[0].updateEachBatch(in, out, rows);
+		for (int layer = 1; layer < net.length; layer++) {
+			float[] t = in;
+			in = out;
+			out = t;
+			
+			net[layer].updateBatch(in, out, rows);
+		}
+		
+		return out;
+	}
+	
+	/**
+	 * A callback that is accessed when NeuralNet is done updating.
+	 */
+	public interface INeuralNetCallback {
+		/**
+		 * Called when NeuralNet is finished updating.
+		 */
+		public abstract void onFinish();
+	}
+
+	private Future<float[]> submit(Callable<float[]> task) {
+		FutureTask<float[]> future = new FutureTask<float[]>(task);
+		getExecutor().execute(future);
+		return future;
+	}
+	
+	/**
+	 * Holds the executor shared by all nets, created on first use.
+	 */
+	private static class DefaultExecutor {
+		private static final ThreadPoolExecutor INSTANCE;
+		
+		static {
+			final AtomicInteger threads = new AtomicInteger();
+			int n = Runtime.getRuntime().availableProcessors();
+			
+			INSTANCE = new ThreadPoolExecutor(n, n, 30, TimeUnit.SECONDS,
+					new ArrayBlockingQueue<Runnable>(ASYNC_QUEUE_SIZE),
+					new ThreadFactory() {
+						@Override
+						public Thread newThread(Runnable r) {
+							Thread th = new Thread(r);
+							th.setName("NeuralNet Update thread #" + threads.getAndIncrement());
+							th.setDaemon(true);
+							return th;
+						}
+					},
+					new ThreadPoolExecutor.CallerRunsPolicy());
+			INSTANCE.allowCoreThreadTimeOut(true);
+		}
+	}
+}
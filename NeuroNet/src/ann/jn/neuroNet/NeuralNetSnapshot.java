@@ -0,0 +1,145 @@
+package ann.jn.neuroNet;
+
+/**
+ * <p>
+ * An immutable copy of the weights, biases and activation functions of a {@link NeuralNet},
+ * created with {@link NeuralNet#snapshot()}.
+ * </p>
+ * <p>
+ * A NeuralNetSnapshot holds no inputs or outputs of its own, so any number of threads may
+ * call {@link #update(float[])} at the same time without locking.  Each thread evaluates
+ * the network in its own scratch buffers, which are created on the thread's first update.
+ * Later changes to the NeuralNet the snapshot was taken from have no effect on it.
+ * </p>
+ * <p>
+ * <b>Note:</b> The activation functions are shared with the NeuralNet, and must be safe to
+ * call from several threads at once.  The built in functions are.
+ * </p>
+ */
+public final class NeuralNetSnapshot {
+	private final int[] sizes;
+	private final float[][] weights;
+	private final float[][] biases;
+	private final Neuron.INeuronActivationFunction[] functions;
+	private final ThreadLocal<float[][]> scratch;
+
+	/**
+	 * Copies the current state of the given layers.  The caller must prevent the layers
+	 * from changing while they are copied.
+	 * @param layers the layers of a NeuralNet
+	 */
+	NeuralNetSnapshot(Layer[] layers) {
+		sizes = new int[layers.length];
+		weights = new float[layers.length][];
+		biases = new float[layers.length][];
+		functions = new Neuron.INeuronActivationFunction[layers.length];
+
+		int w = 0;
+		for (int i = 0; i < layers.length; i++) {
+			sizes[i] = layers[i].getSize();
+			weights[i] = layers[i].getWeights().clone();
+			biases[i] = layers[i].getBiases().clone();
+			functions[i] = layers[i].getFunction();
+			w = Math.max(w, sizes[i]);
+		}
+
+		final int width = w;
+		scratch = new ThreadLocal<float[][]>() {
+			@Override
+			protected float[][] initialValue() {
+				return new float[][]{new float[width], new float[width]};
+			}
+		};
+	}
+
+	/**
+	 * Evaluates the network for the given inputs and returns a new array of outputs.
+	 * @param inputs the values for each input neuron
+	 * @return the outputs
+	 */
+	public float[] update(float[] inputs) {
+		float[] outputs = new float[sizes[sizes.length - 1]];
+		update(inputs, outputs);
+		return outputs;
+	}
+
+	/**
+	 * Evaluates the network for the given inputs and writes the outputs to <code>outputs</code>.
+	 * @param inputs the values for each input neuron
+	 * @param outputs receives the value of each output neuron
+	 */
+	public void update(float[] inputs, float[] outputs) {
+		if (inputs == null || inputs.length != sizes[0]) {
+			throw new IllegalArgumentException("Invalid value length!");
+		} else if (outputs == null || outputs.length != sizes[sizes.length - 1]) {
+			throw new IllegalArgumentException("Invalid output length!");
+		}
+
+		float[][] buffers = scratch.get();
+		float[] in = buffers[0];
+		float[] out = buffers[1];
+
+		// The input layer gives each neuron its own input
+		for (int i = 0; i < sizes[0]; i++) {
+			in[i] = biases[0][i] + inputs[i] * weights[0][i];
+		}
+
+		Layer.activate(functions[0], in, 0, sizes[0]);
+
+		for (int layer = 1; layer < sizes.length; layer++) {
+			float[] ws = weights[layer];
+			float[] bs = biases[layer];
+			int cols = sizes[layer - 1];
+
+			for (int i = 0, row = 0; i < sizes[layer]; i++, row += cols) {
+				out[i] = bs[i] + Kernels.dot(ws, row, in, 0, cols);
+			}
+
+			Layer.activate(functions[layer], out, 0, sizes[layer]);
+
+			float[] t = in;
+			in = out;
+			out = t;
+		}
+
+		System.arraycopy(in, 0, outputs, 0, outputs.length);
+	}
+
+	/**
+	 * Returns the weight matrix of the specified layer.  The array must not be changed.
+	 */
+	float[] getWeights(int layer) {
+		return weights[layer];
+	}
+
+	/**
+	 * Returns the bias vector of the specified layer.  The array must not be changed.
+	 */
+	float[] getBiases(int layer) {
+		return biases[layer];
+	}
+
+	/**
+	 * Returns the activation function of the specified layer.
+	 */
+	Neuron.INeuronActivationFunction getFunction(int layer) {
+		return functions[layer];
+	}
+
+	/**
+	 * Returns the number of neural layers in this snapshot.
+	 * @return the number of layers
+	 */
+	public int getNumLayers() {
+		return sizes.length;
+	}
+
+	/**
+	 * Returns the number of neurons in the specified layer.
+	 * @param layer the layer
+	 * @return the number of neurons
+	 */
+	public int getLayerSize(int layer) {
+		return sizes[layer];
+	}
+}
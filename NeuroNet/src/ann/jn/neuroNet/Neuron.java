@@ -1,192 +1,214 @@
-package ann.jn.neuroNet;
-
-import java.io.Serializable;
-
-/**
- * <p>
- * Represents a single Neuron in a NeuralNet.
- * </p>
- * <p>
- * Each Neuron has a set of input weights, one for each 
- * Neuron of the previous layer of the NeuralNet. When the net
- * is updated, the resultant values from the previous layer are
- * multiplied by their corresponding weights, summed, and run through
- * the {@link INeuronActivationFunction} of each Neuron.
- * </p>
- * @author Nicholas Utz
- *
- */
-public class Neuron implements Serializable {
-	private static final long serialVersionUID = 4615544546133410494L;
-
-	/**
-	 * Defines the activation function of a {@link Neuron}.
-	 * @author Nicholas Utz
-	 */
-	public interface INeuronActivationFunction {
-		/**
-		 * Evaluates the INeuronActivationFunction for the given summation of input values.
-		 * @param x the summation of the inputs multiplied by their weights
-		 * @return the result of evaluating the activation function for the given weighted input
-		 */
-		public float evaluate(float x);
-	}
-
-	/**
-	 * Stores the values of the Neuron's input weights.
-	 */
-	private float[] weights;
-
-	/**
-	 * The {@link INeuronActivationFunction} that defines the activation 
-	 * function of the Neuron.
-	 */
-	private INeuronActivationFunction function;
-
-	/**
-	 * The output that resulted from the last call to {@link #update(float[])}.
-	 */
-	private float output = 0;
-	
-	/**
-	 * The bias of this neuron.
-	 */
-	private float bias = 0;
-	
-	/**
-	 * <p>
-	 * Creates a new Neuron with <code>inputs</code> input weights.
-	 * </p>
-	 * <p>
-	 * <b>Note:</b> The default value for all weights is 1.0
-	 * </p>
-	 * <p>
-	 * <b>Note:</b> The default activation function is f(x) = 1/(1+e^-x)
-	 * </p>
-	 * @param inputs number of inputs
-	 */
-	public Neuron(int inputs) {
-		weights = new float[inputs];
-		for (int i = 0; i < weights.length; i++) {
-			weights[i] = 1.0f;
-		}
-		function = DEFAULT_FUNCTION;
-	}
-
-	/**
-	 * <p>
-	 * Creates a new Neuron with <code>inputs</code> input weights and 
-	 * the {@link INeuronActivationFunction} <code>func</code>.
-	 * </p>
-	 * <p>
-	 * <b>Note:</b> The default value for all weights is 1.0
-	 * </p>
-	 * @param inputs the number of inputs
-	 * @param func the Neuron's activation function
-	 */
-	public Neuron(int inputs, INeuronActivationFunction func) {
-		weights = new float[inputs];
-		for (int i = 0; i < weights.length; i++) {
-			weights[i] = 1.0f;
-		}
-		function = func;
-	}
-
-	/**
-	 * Sets the values of this Neuron's input weights.
-	 * @param weights values of weights
-	 */
-	public void setWeights(float[] weights) {
-		if (weights.length != this.weights.length) {
-			throw new IllegalArgumentException("Cannot change number of input weights.");
-			
-		} else {
-			this.weights = weights;
-		}
-	}
-	
-	/**
-	 * Sets the value of one of this Neuron's input weights.
-	 * @param num the weight number
-	 * @param weight the weight value
-	 */
-	public void setWeight(int num, float weight) {
-		if (num >= weights.length) {
-			throw new IllegalArgumentException("Illegal weight number.");
-		}
-		
-		weights[num] = weight;
-	}
-	
-	/**
-	 * Sets this Neuron's bias.
-	 * @param b the bias
-	 */
-	public void setBias(float b) {
-		bias = b;
-	}
-
-	/**
-	 * Evaluates this Neuron for the given input values.
-	 * @param inputs values of Neuron's inputs.
-	 * @return resultant of Neuron for given input values.
-	 */
-	public float update(float[] inputs) {
-		//check that number of input values matches number of weights
-		if (inputs.length != weights.length) {
-			throw new IllegalArgumentException("There must be the same number of input values as there are weights +\n" +
-													"\t\tinputs=" + inputs.length + "\n" +
-													"\t\tweights=" + weights.length);
-		}
-		
-		//find summation of inputs multiplied by their respective weights
-		float sum = bias;
-		for (int i = 0; i < inputs.length; i++) {
-			sum += (inputs[i] * weights[i]);
-		}
-		//return evaluation of activation function for summed values
-		output = function.evaluate(sum);
-		return output;
-	}
-
-	/**
-	 * Returns the value produced by the last call to {@link #update(float[])}.
-	 * @return latest output
-	 */
-	public float getOutput() {
-		return output;
-	}
-	
-	/**
-	 * Returns the bias
-	 * @return the bias
-	 */
-	public float getBias() {
-		return bias;
-	}
-	
-	/**
-	 * Returns an array containing the values of this Neuron's weights.
-	 * @return the weight
-	 */
-	public float[] getWeights() {
-		return weights;
-	}
-	
-	/**
-	 * Returns the activation function used to calculate the output from the sum.
-	 * @return the function
-	 */
-	public INeuronActivationFunction getFunction() {
-		return (function);
-	}
-
-	/**
-	 * The default {@link Neuron} activation function f(x) = 1/(1 + e^-x).
-	 */
-	public static final INeuronActivationFunction DEFAULT_FUNCTION = new INeuronActivationFunction() {
-		@Override
-		public float evaluate(float x) {
-			return (float) (1 / (1 + Math.exp(-x)));
-		}};
+package ann.jn.neuroNet;
+
+import java.io.Serializable;
+
+/**
+ * <p>
+ * Represents a single Neuron in a NeuralNet.
+ * </p>
+ * <p>
+ * Each Neuron has a set of input weights, one for each 
+ * Neuron of the previous layer of the NeuralNet. When the net
+ * is updated, the resultant values from the previous layer are
+ * multiplied by their corresponding weights, summed, and run through
+ * the {@link INeuronActivationFunction} of each Neuron.
+ * </p>
+ * <p>
+ * A Neuron does not hold its own weights; it is a view onto one row
+ * of the {@link Layer} that stores it.
+ * </p>
+ * @author Nicholas Utz
+ *
+ */
+public class Neuron implements Serializable {
+	private static final long serialVersionUID = 4615544546133410494L;
+
+	/**
+	 * Defines the activation function of a {@link Neuron}.
+	 * @author Nicholas Utz
+	 */
+	public interface INeuronActivationFunction {
+		/**
+		 * Evaluates the INeuronActivationFunction for the given summation of input values.
+		 * @param x the summation of the inputs multiplied by their weights
+		 * @return the result of evaluating the activation function for the given weighted input
+		 */
+		public float evaluate(float x);
+	}
+
+	/**
+	 * An {@link INeuronActivationFunction} that knows its own slope, so that nets using it
+	 * can be trained exactly.  Every built in {@link Activation} is one.
+	 */
+	public interface IDifferentiableActivationFunction extends INeuronActivationFunction {
+		/**
+		 * Returns the slope of the function at <code>x</code>.  Both the weighted sum and the
+		 * result of evaluating the function for it are given, so that the slope can be worked
+		 * out from whichever is cheaper.
+		 * @param x the summation of the inputs multiplied by their weights
+		 * @param y the result of evaluating the function for <code>x</code>
+		 * @return the derivative of the function at <code>x</code>
+		 */
+		public float derivative(float x, float y);
+	}
+
+	/**
+	 * The {@link Layer} whose storage holds this Neuron's weights, bias and output.
+	 */
+	private final Layer layer;
+
+	/**
+	 * The index of this Neuron in its {@link Layer}.
+	 */
+	private final int index;
+	
+	/**
+	 * <p>
+	 * Creates a new Neuron with <code>inputs</code> input weights.
+	 * </p>
+	 * <p>
+	 * <b>Note:</b> The default value for all weights is 1.0
+	 * </p>
+	 * <p>
+	 * <b>Note:</b> The default activation function is f(x) = 1/(1+e^-x)
+	 * </p>
+	 * @param inputs number of inputs
+	 */
+	public Neuron(int inputs) {
+		this(new Layer(1, inputs, DEFAULT_FUNCTION), 0);
+	}
+
+	/**
+	 * <p>
+	 * Creates a new Neuron with <code>inputs</code> input weights and 
+	 * the {@link INeuronActivationFunction} <code>func</code>.
+	 * </p>
+	 * <p>
+	 * <b>Note:</b> The default value for all weights is 1.0
+	 * </p>
+	 * @param inputs the number of inputs
+	 * @param func the Neuron's activation function
+	 */
+	public Neuron(int inputs, INeuronActivationFunction func) {
+		this(new Layer(1, inputs, func), 0);
+	}
+
+	/**
+	 * Creates a Neuron that views the Neuron at <code>index</code> of <code>layer</code>.
+	 * @param layer the layer holding the Neuron's storage
+	 * @param index the index of the Neuron in the layer
+	 */
+	Neuron(Layer layer, int index) {
+		this.layer = layer;
+		this.index = index;
+	}
+
+	/**
+	 * Sets the values of this Neuron's input weights.  The values are copied
+	 * into this Neuron's {@link Layer}.
+	 * @param weights values of weights
+	 */
+	public void setWeights(float[] weights) {
+		if (weights.length != layer.getNumInputs()) {
+			throw new IllegalArgumentException("Cannot change number of input weights.");
+			
+		} else {
+			System.arraycopy(weights, 0, layer.getWeights(), index * weights.length, weights.length);
+			layer.touch();
+		}
+	}
+	
+	/**
+	 * Sets the value of one of this Neuron's input weights.
+	 * @param num the weight number
+	 * @param weight the weight value
+	 */
+	public void setWeight(int num, float weight) {
+		if (num >= layer.getNumInputs()) {
+			throw new IllegalArgumentException("Illegal weight number.");
+		}
+		
+		layer.getWeights()[index * layer.getNumInputs() + num] = weight;
+		layer.touch();
+	}
+	
+	/**
+	 * Sets this Neuron's bias.
+	 * @param b the bias
+	 */
+	public void setBias(float b) {
+		layer.getBiases()[index] = b;
+		layer.touch();
+	}
+
+	/**
+	 * Evaluates this Neuron for the given input values.
+	 * @param inputs values of Neuron's inputs.
+	 * @return resultant of Neuron for given input values.
+	 */
+	public float update(float[] inputs) {
+		return layer.update(index, inputs);
+	}
+
+	/**
+	 * Returns the value produced by the last call to {@link #update(float[])}.
+	 * @return latest output
+	 */
+	public float getOutput() {
+		return layer.getOutputs()[index];
+	}
+	
+	/**
+	 * Returns the bias
+	 * @return the bias
+	 */
+	public float getBias() {
+		return layer.getBiases()[index];
+	}
+	
+	/**
+	 * Returns a copy of the values of this Neuron's weights.  Changes to the
+	 * returned array must be applied with {@link #setWeights(float[])}.
+	 * @return the weights
+	 */
+	public float[] getWeights() {
+		float[] ws = new float[layer.getNumInputs()];
+		System.arraycopy(layer.getWeights(), index * ws.length, ws, 0, ws.length);
+		return ws;
+	}
+	
+	/**
+	 * Returns the value of one of this Neuron's input weights.
+	 * @param num the weight number
+	 * @return the weight value
+	 */
+	public float getWeight(int num) {
+		if (num >= layer.getNumInputs()) {
+			throw new IllegalArgumentException("Illegal weight number.");
+		}
+		
+		return layer.getWeights()[index * layer.getNumInputs() + num];
+	}
+	
+	/**
+	 * Returns the number of input weights of this Neuron.
+	 * @return number of weights
+	 */
+	public int getNumWeights() {
+		return layer.getNumInputs();
+	}
+	
+	/**
+	 * Returns the activation function used to calculate the output from the sum.
+	 * @return the function
+	 */
+	public INeuronActivationFunction getFunction() {
+		return (layer.getFunction());
+	}
+
+	/**
+	 * The default {@link Neuron} activation function f(x) = 1/(1 + e^-x), which is
+	 * {@link Activation#LOGISTIC}.
+	 */
+	public static final INeuronActivationFunction DEFAULT_FUNCTION = Activation.LOGISTIC;
 }
\ No newline at end of file
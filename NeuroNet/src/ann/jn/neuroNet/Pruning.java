@@ -0,0 +1,133 @@
+package ann.jn.neuroNet;
+
+import java.util.Arrays;
+
+/**
+ * <p>
+ * Removes the weights of smallest magnitude from a trained {@link NeuralNet} by setting them
+ * to zero.
+ * </p>
+ * <p>
+ * Only the weight matrices after the input layer are pruned; the input layer's single weight
+ * per neuron and every bias are left alone.  Weights can be pruned below one threshold for the
+ * whole net, below a threshold for each layer, or until a target fraction of them is zero,
+ * counted over the whole net or layer by layer.  A pruned net is evaluated without its zero
+ * weights by converting it to a {@link SparseNet}.
+ * </p>
+ * <p>
+ * The net must not be updated or trained while it is pruned.
+ * </p>
+ */
+public final class Pruning {
+	private Pruning() {
+	}
+
+	/**
+	 * Sets every weight whose magnitude is below <code>threshold</code> to zero.
+	 * @param net the net to prune
+	 * @param threshold the smallest magnitude that is kept
+	 * @return the fraction of the weights that are now zero
+	 */
+	public static float prune(NeuralNet net, float threshold) {
+		float[] thresholds = new float[net.getNumLayers()];
+		Arrays.fill(thresholds, threshold);
+		return prune(net, thresholds);
+	}
+
+	/**
+	 * Sets every weight of layer <code>l</code> whose magnitude is below
+	 * <code>thresholds[l]</code> to zero.  The threshold of the input layer is ignored.
+	 * @param net the net to prune
+	 * @param thresholds the smallest magnitude kept in each layer
+	 * @return the fraction of the weights that are now zero
+	 */
+	public static float prune(NeuralNet net, float[] thresholds) {
+		if (thresholds.length != net.getNumLayers()) {
+			throw new IllegalArgumentException("There must be one threshold per layer");
+		}
+
+		long zeros = 0;
+		long total = 0;
+		for (int l = 1; l < thresholds.length; l++) {
+			float[] ws = net.getDenseLayer(l).getWeights();
+			for (int k = 0; k < ws.length; k++) {
+				if (Math.abs(ws[k]) < thresholds[l]) {
+					ws[k] = 0;
+				}
+
+				if (ws[k] == 0) {
+					zeros++;
+				}
+			}
+
+			total += ws.length;
+		}
+
+		net.weightsChanged();
+
+		return total == 0 ? 0 : (float) zeros / total;
+	}
+
+	/**
+	 * Sets the weights of smallest magnitude to zero until at least <code>sparsity</code> of
+	 * them are zero.  Weights of equal magnitude are pruned together, so slightly more may be
+	 * removed than asked for.
+	 * @param net the net to prune
+	 * @param sparsity the fraction of weights to remove, between 0 and 1
+	 * @param perLayer whether each layer should reach the sparsity on its own, rather than
+	 * the net as a whole
+	 * @return the fraction of the weights that are now zero
+	 */
+	public static float pruneToSparsity(NeuralNet net, float sparsity, boolean perLayer) {
+		if (!(sparsity >= 0 && sparsity <= 1)) {
+			throw new IllegalArgumentException("The sparsity must be between 0 and 1");
+		}
+
+		float[] thresholds = new float[net.getNumLayers()];
+		if (perLayer) {
+			for (int l = 1; l < thresholds.length; l++) {
+				thresholds[l] = threshold(magnitudes(net, l, l + 1), sparsity);
+			}
+		} else {
+			Arrays.fill(thresholds, threshold(magnitudes(net, 1, thresholds.length), sparsity));
+		}
+
+		return prune(net, thresholds);
+	}
+
+	// Private methods
+	private static float[] magnitudes(NeuralNet net, int from, int to) {
+		int n = 0;
+		for (int l = from; l < to; l++) {
+			n += net.getDenseLayer(l).getWeights().length;
+		}
+
+		float[] mags = new float[n];
+		for (int l = from, off = 0; l < to; l++) {
+			float[] ws = net.getDenseLayer(l).getWeights();
+			for (int k = 0; k < ws.length; k++) {
+				mags[off++] = Math.abs(ws[k]);
+			}
+		}
+
+		Arrays.sort(mags);
+		return mags;
+	}
+
+	/**
+	 * Returns the smallest magnitude that must be kept for <code>sparsity</code> of the sorted
+	 * magnitudes to be removed.
+	 */
+	private static float threshold(float[] sorted, float sparsity) {
+		int cut = (int) Math.ceil(sparsity * sorted.length);
+		if (cut <= 0) {
+			return 0;
+		} else if (cut >= sorted.length) {
+			return Float.POSITIVE_INFINITY;
+		}
+
+		// Everything below the magnitude at the cut is pruned, so ties at the cut must go too
+		float t = sorted[cut - 1];
+		return t == sorted[cut] ? Math.nextUp(t) : sorted[cut];
+	}
+}
@@ -0,0 +1,427 @@
+package ann.jn.neuroNet;
+
+/**
+ * <p>
+ * An immutable copy of a trained {@link NeuralNet} whose weights are stored with fewer bits,
+ * created with {@link #quantize(NeuralNet, Format)}.
+ * </p>
+ * <p>
+ * The weights are stored in one of the {@link Format}s: as 8 bit integers scaled per layer or
+ * per neuron, or as 16 bit floating point numbers.  This makes the weights two to four times
+ * smaller than in a NeuralNet, so that more nets fit in cache and less memory bandwidth is
+ * spent reading them.  The biases, inputs and outputs stay 32 bit floats, and every weighted
+ * sum is accumulated in 32 bit floats before it is scaled once per neuron.
+ * </p>
+ * <p>
+ * Like a {@link NeuralNetSnapshot}, a QuantizedNet may be updated by any number of threads
+ * at once.  {@link #compare(NeuralNet, float[][])} reports how far its outputs are from
+ * those of the original net on a set of calibration inputs.
+ * </p>
+ */
+public final class QuantizedNet {
+	/**
+	 * The ways a QuantizedNet can store its weights.
+	 */
+	public enum Format {
+		/**
+		 * 8 bit integers, with one scale for every weight in a layer.
+		 */
+		INT8_PER_LAYER,
+
+		/**
+		 * 8 bit integers, with one scale for the weights of each neuron.  This is more
+		 * accurate than {@link #INT8_PER_LAYER} when neurons' weights differ in size.
+		 */
+		INT8_PER_ROW,
+
+		/**
+		 * IEEE 754 half precision floats, with an 11 bit significand.  Weights beyond
+		 * +/-65504 are clamped to it.
+		 */
+		FLOAT16
+	}
+
+	private final Format format;
+	private final int[] sizes;
+	private final byte[][] bytes;
+	private final short[][] halfs;
+	private final float[][] scales;
+	private final float[][] biases;
+	private final Neuron.INeuronActivationFunction[] functions;
+	private final ThreadLocal<float[][]> scratch;
+
+	private QuantizedNet(NeuralNetSnapshot net, Format format) {
+		int layers = net.getNumLayers();
+
+		this.format = format;
+		sizes = new int[layers];
+		bytes = format == Format.FLOAT16 ? null : new byte[layers][];
+		halfs = format == Format.FLOAT16 ? new short[layers][] : null;
+		scales = new float[layers][];
+		biases = new float[layers][];
+		functions = new Neuron.INeuronActivationFunction[layers];
+
+		int w = 0;
+		for (int i = 0; i < layers; i++) {
+			sizes[i] = net.getLayerSize(i);
+			biases[i] = net.getBiases(i).clone();
+			functions[i] = net.getFunction(i);
+			w = Math.max(w, sizes[i]);
+
+			float[] ws = net.getWeights(i);
+			int cols = sizes[i] == 0 ? 0 : ws.length / sizes[i];
+
+			if (format == Format.FLOAT16) {
+				halfs[i] = new short[ws.length];
+				for (int j = 0; j < ws.length; j++) {
+					halfs[i][j] = toHalf(ws[j]);
+				}
+			} else {
+				bytes[i] = new byte[ws.length];
+				scales[i] = new float[sizes[i]];
+
+				if (format == Format.INT8_PER_LAYER) {
+					float scale = maxAbs(ws, 0, ws.length) / 127;
+					for (int r = 0; r < sizes[i]; r++) {
+						scales[i][r] = scale;
+						quantizeRow(ws, bytes[i], r * cols, cols, scale);
+					}
+				} else {
+					for (int r = 0; r < sizes[i]; r++) {
+						scales[i][r] = maxAbs(ws, r * cols, cols) / 127;
+						quantizeRow(ws, bytes[i], r * cols, cols, scales[i][r]);
+					}
+				}
+			}
+		}
+
+		final int width = w;
+		scratch = new ThreadLocal<float[][]>() {
+			@Override
+			protected float[][] initialValue() {
+				return new float[][]{new float[width], new float[width]};
+			}
+		};
+	}
+
+	/**
+	 * Quantizes the current weights of the given net.
+	 * @param net the trained net
+	 * @param format how to store the weights
+	 * @return the quantized net
+	 */
+	public static QuantizedNet quantize(NeuralNet net, Format format) {
+		return quantize(net.snapshot(), format);
+	}
+
+	/**
+	 * Quantizes the weights of the given snapshot.
+	 * @param net the snapshot of a trained net
+	 * @param format how to store the weights
+	 * @return the quantized net
+	 */
+	public static QuantizedNet quantize(NeuralNetSnapshot net, Format format) {
+		if (net == null || format == null) {
+			throw new NullPointerException("net and format cannot be null");
+		}
+
+		return new QuantizedNet(net, format);
+	}
+
+	/**
+	 * Evaluates the network for the given inputs and returns a new array of outputs.
+	 * @param inputs the values for each input neuron
+	 * @return the outputs
+	 */
+	public float[] update(float[] inputs) {
+		float[] outputs = new float[sizes[sizes.length - 1]];
+		update(inputs, outputs);
+		return outputs;
+	}
+
+	/**
+	 * Evaluates the network for the given inputs and writes the outputs to <code>outputs</code>.
+	 * @param inputs the values for each input neuron
+	 * @param outputs receives the value of each output neuron
+	 */
+	public void update(float[] inputs, float[] outputs) {
+		if (inputs == null || inputs.length != sizes[0]) {
+			throw new IllegalArgumentException("Invalid value length!");
+		} else if (outputs == null || outputs.length != sizes[sizes.length - 1]) {
+			throw new IllegalArgumentException("Invalid output length!");
+		}
+
+		float[][] buffers = scratch.get();
+		float[] in = buffers[0];
+		float[] out = buffers[1];
+
+		// The input layer gives each neuron its own input
+		for (int i = 0; i < sizes[0]; i++) {
+			in[i] = biases[0][i] + inputs[i] * weight(0, i);
+		}
+
+		Layer.activate(functions[0], in, 0, sizes[0]);
+
+		for (int layer = 1; layer < sizes.length; layer++) {
+			float[] bs = biases[layer];
+			int cols = sizes[layer - 1];
+
+			if (format == Format.FLOAT16) {
+				short[] hs = halfs[layer];
+				for (int i = 0, row = 0; i < sizes[layer]; i++, row += cols) {
+					out[i] = bs[i] + dotHalf(hs, row, in, cols);
+				}
+			} else {
+				byte[] qs = bytes[layer];
+				float[] ss = scales[layer];
+				for (int i = 0, row = 0; i < sizes[layer]; i++, row += cols) {
+					out[i] = bs[i] + dotByte(qs, row, in, cols) * ss[i];
+				}
+			}
+
+			Layer.activate(functions[layer], out, 0, sizes[layer]);
+
+			float[] t = in;
+			in = out;
+			out = t;
+		}
+
+		System.arraycopy(in, 0, outputs, 0, outputs.length);
+	}
+
+	/**
+	 * Evaluates both this net and <code>reference</code> for each of the given inputs, and
+	 * reports how far apart their outputs are.  The reference is not changed.
+	 * @param reference the net this net was quantized from
+	 * @param calibration the inputs to compare the nets on
+	 * @return the differences between the outputs
+	 */
+	public Report compare(NeuralNet reference, float[][] calibration) {
+		return compare(reference.snapshot(), calibration);
+	}
+
+	/**
+	 * Evaluates both this net and <code>reference</code> for each of the given inputs, and
+	 * reports how far apart their outputs are.
+	 * @param reference the snapshot this net was quantized from
+	 * @param calibration the inputs to compare the nets on
+	 * @return the differences between the outputs
+	 */
+	public Report compare(NeuralNetSnapshot reference, float[][] calibration) {
+		if (reference.getNumLayers() != sizes.length ||
+			reference.getLayerSize(0) != sizes[0] ||
+			reference.getLayerSize(sizes.length - 1) != sizes[sizes.length - 1]) {
+			throw new IllegalArgumentException("The reference net has a different shape");
+		}
+
+		int outs = sizes[sizes.length - 1];
+		float[] expected = new float[outs];
+		float[] actual = new float[outs];
+		double sum = 0;
+		float max = 0;
+
+		for (int i = 0; i < calibration.length; i++) {
+			reference.update(calibration[i], expected);
+			update(calibration[i], actual);
+
+			for (int j = 0; j < outs; j++) {
+				float d = Math.abs(expected[j] - actual[j]);
+				sum += d;
+				max = Math.max(max, d);
+			}
+		}
+
+		long n = (long) calibration.length * outs;
+		return new Report(calibration.length, max, n == 0 ? 0 : (float) (sum / n), getWeightBytes());
+	}
+
+	/**
+	 * Returns the format the weights of this net are stored in.
+	 * @return the format
+	 */
+	public Format getFormat() {
+		return format;
+	}
+
+	/**
+	 * Returns the number of bytes used to store the weights and their scales, not
+	 * counting the biases.
+	 * @return the size of the weights
+	 */
+	public long getWeightBytes() {
+		long n = 0;
+		for (int i = 0; i < sizes.length; i++) {
+			n += format == Format.FLOAT16 ? 2L * halfs[i].length : bytes[i].length + 4L * scales[i].length;
+		}
+
+		return n;
+	}
+
+	/**
+	 * Returns the number of neural layers in this net.
+	 * @return the number of layers
+	 */
+	public int getNumLayers() {
+		return sizes.length;
+	}
+
+	/**
+	 * Returns the number of neurons in the specified layer.
+	 * @param layer the layer
+	 * @return the number of neurons
+	 */
+	public int getLayerSize(int layer) {
+		return sizes[layer];
+	}
+
+	/**
+	 * The result of {@link QuantizedNet#compare(NeuralNet, float[][])}.
+	 */
+	public static final class Report {
+		private final int samples;
+		private final float maxError;
+		private final float meanError;
+		private final long weightBytes;
+
+		Report(int samples, float maxError, float meanError, long weightBytes) {
+			this.samples = samples;
+			this.maxError = maxError;
+			this.meanError = meanError;
+			this.weightBytes = weightBytes;
+		}
+
+		/**
+		 * Returns the number of calibration inputs the nets were compared on.
+		 * @return number of samples
+		 */
+		public int getSamples() {
+			return samples;
+		}
+
+		/**
+		 * Returns the largest difference between any output of the two nets.
+		 * @return the maximum absolute error
+		 */
+		public float getMaxError() {
+			return maxError;
+		}
+
+		/**
+		 * Returns the mean difference between the outputs of the two nets.
+		 * @return the mean absolute error
+		 */
+		public float getMeanError() {
+			return meanError;
+		}
+
+		/**
+		 * Returns the size of the quantized weights, see {@link QuantizedNet#getWeightBytes()}.
+		 * @return the size of the weights
+		 */
+		public long getWeightBytes() {
+			return weightBytes;
+		}
+
+		@Override
+		public String toString() {
+			return "samples=" + samples + ", maxError=" + maxError + ", meanError=" + meanError +
+					", weightBytes=" + weightBytes;
+		}
+	}
+
+	// Private methods
+	private float weight(int layer, int index) {
+		if (format == Format.FLOAT16) {
+			return fromHalf(halfs[layer][index]);
+		}
+
+		int cols = bytes[layer].length / sizes[layer];
+		return bytes[layer][index] * scales[layer][index / cols];
+	}
+
+	private static float maxAbs(float[] ws, int off, int n) {
+		float max = 0;
+		for (int i = off; i < off + n; i++) {
+			max = Math.max(max, Math.abs(ws[i]));
+		}
+
+		return max;
+	}
+
+	private static void quantizeRow(float[] ws, byte[] qs, int off, int n, float scale) {
+		for (int i = off; i < off + n; i++) {
+			int q = scale == 0 ? 0 : Math.round(ws[i] / scale);
+			qs[i] = (byte) Math.max(-127, Math.min(127, q));
+		}
+	}
+
+	private static float dotByte(byte[] qs, int off, float[] x, int n) {
+		float s0 = 0;
+		float s1 = 0;
+
+		int i = 0;
+		for (; i + 1 < n; i += 2) {
+			s0 += qs[off + i] * x[i];
+			s1 += qs[off + i + 1] * x[i + 1];
+		}
+
+		if (i < n) {
+			s0 += qs[off + i] * x[i];
+		}
+
+		return s0 + s1;
+	}
+
+	private static float dotHalf(short[] hs, int off, float[] x, int n) {
+		float s0 = 0;
+		float s1 = 0;
+
+		int i = 0;
+		for (; i + 1 < n; i += 2) {
+			s0 += fromHalf(hs[off + i]) * x[i];
+			s1 += fromHalf(hs[off + i + 1]) * x[i + 1];
+		}
+
+		if (i < n) {
+			s0 += fromHalf(hs[off + i]) * x[i];
+		}
+
+		return s0 + s1;
+	}
+
+	/**
+	 * Converts a float to the nearest half precision float, clamping it to +/-65504.
+	 */
+	static short toHalf(float f) {
+		int bits = Float.floatToIntBits(f);
+		int sign = (bits >>> 16) & 0x8000;
+		int abs = bits & 0x7fffffff;
+
+		if (abs > 0x7f800000) {
+			return (short) (sign | 0x7e00); // NaN
+		} else if (abs >= 0x477ff000) {
+			return (short) (sign | 0x7bff); // 65520 and above would round to infinity
+		} else if (abs < 0x38800000) {
+			// Below 2^-14 halfs are subnormal, counting in steps of 2^-24
+			return (short) (sign | Math.round(Float.intBitsToFloat(abs) * 0x1p24f));
+		}
+
+		// Rebias the exponent from 127 to 15, and round the significand to 10 bits
+		int h = (abs - 0x38000000) >> 13;
+		int rest = abs & 0x1fff;
+		if (rest > 0x1000 || (rest == 0x1000 && (h & 1) != 0)) {
+			h++;
+		}
+
+		return (short) (sign | h);
+	}
+
+	/**
+	 * Converts a half precision float to a float.  Shifting the half into place gives a float
+	 * whose exponent is 112 too small, for subnormals as well, which the multiply corrects.
+	 */
+	static float fromHalf(short h) {
+		float f = Float.intBitsToFloat((h & 0x7fff) << 13) * 0x1p112f;
+		return h < 0 ? -f : f;
+	}
+}
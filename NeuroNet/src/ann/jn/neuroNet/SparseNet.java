@@ -0,0 +1,458 @@
+package ann.jn.neuroNet;
+
+import java.util.Arrays;
+
+/**
+ * <p>
+ * A neural network whose weights are stored sparsely, so that weights of zero take no
+ * memory and no time to evaluate.
+ * </p>
+ * <p>
+ * Each layer after the input layer is stored in compressed sparse row form: the nonzero
+ * weights of every neuron, and the index of the input each applies to, are stored one neuron
+ * after another, and <code>rowPointers[i]</code> is where the weights of neuron <code>i</code>
+ * start.  A SparseNet is usually made from a NeuralNet that has been pruned with
+ * {@link Pruning}, and can be fine-tuned with {@link ann.jn.teach.SparseBackPropagator},
+ * which only changes the weights that were kept.
+ * </p>
+ */
+public class SparseNet {
+	private final int[] sizes;
+	private final Neuron.INeuronActivationFunction[] functions;
+	private final int[][] rowPointers;
+	private final int[][] columns;
+	private final float[][] values;
+	private final float[][] biases;
+	private final float[][] sums;
+	private final float[][] outputs;
+	private final float[] inputs;
+	private final Object updateLock = new Object();
+
+	/**
+	 * Creates a SparseNet holding the nonzero weights of the given net.
+	 * @param net the net to copy
+	 */
+	public SparseNet(NeuralNet net) {
+		this(net.snapshot());
+	}
+
+	/**
+	 * Creates a SparseNet holding the nonzero weights of the given snapshot.
+	 * @param net the snapshot to copy
+	 */
+	public SparseNet(NeuralNetSnapshot net) {
+		int layers = net.getNumLayers();
+		sizes = new int[layers];
+		functions = new Neuron.INeuronActivationFunction[layers];
+		rowPointers = new int[layers][];
+		columns = new int[layers][];
+		values = new float[layers][];
+		biases = new float[layers][];
+		sums = new float[layers][];
+		outputs = new float[layers][];
+
+		for (int l = 0; l < layers; l++) {
+			sizes[l] = net.getLayerSize(l);
+			functions[l] = net.getFunction(l);
+			biases[l] = net.getBiases(l).clone();
+			sums[l] = new float[sizes[l]];
+			outputs[l] = new float[sizes[l]];
+		}
+
+		// The input layer has one weight per neuron, and is kept as it is
+		values[0] = net.getWeights(0).clone();
+		inputs = new float[sizes[0]];
+
+		for (int l = 1; l < layers; l++) {
+			float[] ws = net.getWeights(l);
+			int cols = sizes[l - 1];
+
+			int nnz = 0;
+			for (int k = 0; k < ws.length; k++) {
+				if (ws[k] != 0) {
+					nnz++;
+				}
+			}
+
+			rowPointers[l] = new int[sizes[l] + 1];
+			columns[l] = new int[nnz];
+			values[l] = new float[nnz];
+
+			for (int i = 0, k = 0; i < sizes[l]; i++) {
+				rowPointers[l][i] = k;
+				for (int j = 0, row = i * cols; j < cols; j++) {
+					if (ws[row + j] != 0) {
+						columns[l][k] = j;
+						values[l][k] = ws[row + j];
+						k++;
+					}
+				}
+			}
+
+			rowPointers[l][sizes[l]] = nnz;
+		}
+	}
+
+	/**
+	 * Evaluates the network for the given inputs and returns a new array of outputs.
+	 * @param ins the values for each input neuron
+	 * @return the outputs
+	 */
+	public float[] update(float[] ins) {
+		float[] outs = new float[sizes[sizes.length - 1]];
+		update(ins, outs);
+		return outs;
+	}
+
+	/**
+	 * Evaluates the network for the given inputs and writes the outputs to <code>outs</code>.
+	 * The inputs, and the weighted sums and outputs of every layer, are also kept until the
+	 * next update.
+	 * @param ins the values for each input neuron
+	 * @param outs receives the value of each output neuron
+	 */
+	public void update(float[] ins, float[] outs) {
+		if (ins == null || ins.length != sizes[0]) {
+			throw new IllegalArgumentException("Invalid value length!");
+		} else if (outs == null || outs.length != sizes[sizes.length - 1]) {
+			throw new IllegalArgumentException("Invalid output length!");
+		}
+
+		synchronized (updateLock) {
+			System.arraycopy(ins, 0, inputs, 0, ins.length);
+
+			// The input layer gives each neuron its own input
+			float[] out = outputs[0];
+			for (int i = 0; i < sizes[0]; i++) {
+				sums[0][i] = biases[0][i] + ins[i] * values[0][i];
+			}
+
+			System.arraycopy(sums[0], 0, out, 0, sizes[0]);
+			Layer.activate(functions[0], out, 0, sizes[0]);
+
+			for (int l = 1; l < sizes.length; l++) {
+				float[] x = outputs[l - 1];
+				int[] ptr = rowPointers[l];
+				int[] col = columns[l];
+				float[] v = values[l];
+				float[] b = biases[l];
+				float[] s = sums[l];
+				out = outputs[l];
+
+				for (int i = 0; i < sizes[l]; i++) {
+					float sum = b[i];
+					for (int k = ptr[i]; k < ptr[i + 1]; k++) {
+						sum += v[k] * x[col[k]];
+					}
+
+					s[i] = sum;
+				}
+
+				System.arraycopy(s, 0, out, 0, sizes[l]);
+				Layer.activate(functions[l], out, 0, sizes[l]);
+			}
+
+			System.arraycopy(out, 0, outs, 0, outs.length);
+		}
+	}
+
+	/**
+	 * Copies the weights and biases of this net into a NeuralNet of the same shape.  Weights
+	 * that are not stored are set to zero.  The NeuralNet must not be updated or trained while
+	 * it is copied into.
+	 * @param net the net to copy into
+	 */
+	public void copyTo(NeuralNet net) {
+		if (net.getNumLayers() != sizes.length) {
+			throw new IllegalArgumentException("The nets must have the same number of layers");
+		}
+
+		synchronized (updateLock) {
+			for (int l = 0; l < sizes.length; l++) {
+				Layer layer = net.getDenseLayer(l);
+				if (layer.getSize() != sizes[l] || (l > 0 && layer.getNumInputs() != sizes[l - 1])) {
+					throw new IllegalArgumentException("Layer " + l + " has a different shape");
+				}
+
+				float[] ws = layer.getWeights();
+				System.arraycopy(biases[l], 0, layer.getBiases(), 0, sizes[l]);
+
+				if (l == 0) {
+					System.arraycopy(values[0], 0, ws, 0, sizes[0]);
+					continue;
+				}
+
+				int cols = sizes[l - 1];
+				Arrays.fill(ws, 0);
+				for (int i = 0; i < sizes[l]; i++) {
+					for (int k = rowPointers[l][i]; k < rowPointers[l][i + 1]; k++) {
+						ws[i * cols + columns[l][k]] = values[l][k];
+					}
+				}
+			}
+		}
+
+		net.weightsChanged();
+	}
+
+	/**
+	 * <p>
+	 * Evaluates both this net and <code>dense</code> for each of the given inputs, and reports
+	 * how sparse this net is, how much memory its weights save, how much faster it is and how
+	 * far apart the outputs of the two nets are.
+	 * </p>
+	 * <p>
+	 * Each net is run over the inputs once to warm up, and then <code>repeats</code> times
+	 * while it is timed.
+	 * </p>
+	 * @param dense the net this net was made from
+	 * @param calibration the inputs to compare the nets on
+	 * @param repeats the number of timed passes over the inputs
+	 * @return the report
+	 */
+	public Report compare(NeuralNet dense, float[][] calibration, int repeats) {
+		NeuralNetSnapshot snap = dense.snapshot();
+		if (snap.getNumLayers() != sizes.length || snap.getLayerSize(0) != sizes[0]) {
+			throw new IllegalArgumentException("The dense net has a different shape");
+		}
+
+		float[] a = new float[sizes[sizes.length - 1]];
+		float[] b = new float[a.length];
+		float maxError = 0;
+		for (int i = 0; i < calibration.length; i++) {
+			snap.update(calibration[i], a);
+			update(calibration[i], b);
+
+			for (int j = 0; j < a.length; j++) {
+				maxError = Math.max(maxError, Math.abs(a[j] - b[j]));
+			}
+		}
+
+		long denseNanos = 0;
+		long sparseNanos = 0;
+		for (int r = 0; r < repeats; r++) {
+			long t = System.nanoTime();
+			for (int i = 0; i < calibration.length; i++) {
+				snap.update(calibration[i], a);
+			}
+
+			denseNanos += System.nanoTime() - t;
+			t = System.nanoTime();
+			for (int i = 0; i < calibration.length; i++) {
+				update(calibration[i], b);
+			}
+
+			sparseNanos += System.nanoTime() - t;
+		}
+
+		long denseBytes = 0;
+		for (int l = 1; l < sizes.length; l++) {
+			denseBytes += 4L * sizes[l] * sizes[l - 1];
+		}
+
+		return new Report(getSparsity(), denseBytes, getWeightBytes(), denseNanos, sparseNanos, maxError);
+	}
+
+	/**
+	 * Returns the row pointers of the specified layer: the weights of neuron <code>i</code> are
+	 * stored from <code>getRowPointers(layer)[i]</code> up to but not including
+	 * <code>getRowPointers(layer)[i + 1]</code>.  Returns null for the input layer.
+	 * The returned array is the backing storage, and must not be changed.
+	 * @param layer the layer
+	 * @return the row pointers
+	 */
+	public int[] getRowPointers(int layer) {
+		return rowPointers[layer];
+	}
+
+	/**
+	 * Returns the index of the input that each stored weight of the specified layer applies
+	 * to.  Returns null for the input layer.  The returned array is the backing storage, and
+	 * must not be changed.
+	 * @param layer the layer
+	 * @return the column of each weight
+	 */
+	public int[] getColumns(int layer) {
+		return columns[layer];
+	}
+
+	/**
+	 * Returns the stored weights of the specified layer.  For the input layer there is one
+	 * weight per neuron.  The returned array is the backing storage, not a copy.
+	 * @param layer the layer
+	 * @return the weights
+	 */
+	public float[] getValues(int layer) {
+		return values[layer];
+	}
+
+	/**
+	 * Returns the bias vector of the specified layer.  The returned array is the backing
+	 * storage, not a copy.
+	 * @param layer the layer
+	 * @return the biases
+	 */
+	public float[] getBiases(int layer) {
+		return biases[layer];
+	}
+
+	/**
+	 * Returns the outputs of the specified layer from the last update.  The returned array is
+	 * the backing storage, not a copy.
+	 * @param layer the layer
+	 * @return the outputs
+	 */
+	public float[] getLayerOutputs(int layer) {
+		return outputs[layer];
+	}
+
+	/**
+	 * Returns the weighted sums of the specified layer from the last update, before they were
+	 * activated.  The returned array is the backing storage, not a copy.
+	 * @param layer the layer
+	 * @return the sums
+	 */
+	public float[] getLayerSums(int layer) {
+		return sums[layer];
+	}
+
+	/**
+	 * Returns the inputs of the last update.  The returned array is the backing storage, not
+	 * a copy.
+	 * @return the inputs
+	 */
+	public float[] getInputs() {
+		return inputs;
+	}
+
+	/**
+	 * Returns the number of neural layers in this net.
+	 * @return the number of layers
+	 */
+	public int getNumLayers() {
+		return sizes.length;
+	}
+
+	/**
+	 * Returns the number of neurons in the specified layer.
+	 * @param layer the layer
+	 * @return the number of neurons
+	 */
+	public int getLayerSize(int layer) {
+		return sizes[layer];
+	}
+
+	/**
+	 * Returns the activation function of the neurons in the specified layer.
+	 * @param layer the layer
+	 * @return the activation function
+	 */
+	public Neuron.INeuronActivationFunction getActivationFunction(int layer) {
+		return functions[layer];
+	}
+
+	/**
+	 * Returns the fraction of the weights after the input layer that are not stored.
+	 * @return the sparsity, between 0 and 1
+	 */
+	public float getSparsity() {
+		long total = 0;
+		long stored = 0;
+		for (int l = 1; l < sizes.length; l++) {
+			total += (long) sizes[l] * sizes[l - 1];
+			stored += values[l].length;
+		}
+
+		return total == 0 ? 0 : 1 - (float) stored / total;
+	}
+
+	/**
+	 * Returns the number of bytes used to store the weights after the input layer, including
+	 * their columns and row pointers.
+	 * @return the size of the weights
+	 */
+	public long getWeightBytes() {
+		long n = 0;
+		for (int l = 1; l < sizes.length; l++) {
+			n += 4L * (values[l].length + columns[l].length + rowPointers[l].length);
+		}
+
+		return n;
+	}
+
+	/**
+	 * The result of {@link SparseNet#compare(NeuralNet, float[][], int)}.
+	 */
+	public static final class Report {
+		private final float sparsity;
+		private final long denseBytes;
+		private final long sparseBytes;
+		private final long denseNanos;
+		private final long sparseNanos;
+		private final float maxError;
+
+		Report(float sparsity, long denseBytes, long sparseBytes, long denseNanos, long sparseNanos, float maxError) {
+			this.sparsity = sparsity;
+			this.denseBytes = denseBytes;
+			this.sparseBytes = sparseBytes;
+			this.denseNanos = denseNanos;
+			this.sparseNanos = sparseNanos;
+			this.maxError = maxError;
+		}
+
+		/**
+		 * Returns the fraction of weights that the sparse net does not store.
+		 * @return the sparsity
+		 */
+		public float getSparsity() {
+			return sparsity;
+		}
+
+		/**
+		 * Returns the number of bytes the dense weight matrices take.
+		 * @return the dense size
+		 */
+		public long getDenseBytes() {
+			return denseBytes;
+		}
+
+		/**
+		 * Returns the number of bytes the sparse weights take.
+		 * @return the sparse size
+		 */
+		public long getSparseBytes() {
+			return sparseBytes;
+		}
+
+		/**
+		 * Returns the number of bytes saved by storing the weights sparsely.  This is
+		 * negative when too few weights are zero for the columns to pay for themselves.
+		 * @return the bytes saved
+		 */
+		public long getBytesSaved() {
+			return denseBytes - sparseBytes;
+		}
+
+		/**
+		 * Returns how many times faster the sparse net was than the dense net.
+		 * @return the speedup
+		 */
+		public double getSpeedup() {
+			return sparseNanos == 0 ? 0 : (double) denseNanos / sparseNanos;
+		}
+
+		/**
+		 * Returns the largest difference between any output of the two nets.
+		 * @return the maximum absolute error
+		 */
+		public float getMaxError() {
+			return maxError;
+		}
+
+		@Override
+		public String toString() {
+			return "sparsity=" + sparsity + ", denseBytes=" + denseBytes + ", sparseBytes=" + sparseBytes +
+					", speedup=" + getSpeedup() + ", maxError=" + maxError;
+		}
+	}
+}
@@ -0,0 +1,265 @@
+package ann.jn.neuroNet;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * <p>
+ * Counts where time goes in inference and training: forward passes, waits for the update
+ * lock of a {@link NeuralNet}, training epochs and optimizer steps.
+ * </p>
+ * <p>
+ * Telemetry is off unless the system property <code>ann.jn.neuroNet.telemetry</code> is
+ * <code>true</code>, and can be turned on and off at any time with
+ * <code>Telemetry.get().{@link #setEnabled(boolean) setEnabled}</code> or through JMX.
+ * While it is off, each instrumented place costs one read of a volatile flag.  Instrumented code brackets the work being counted like this:
+ * </p>
+ * <pre>
+ * long start = Telemetry.start();
+ * ... work ...
+ * Telemetry.forwardPass(layers, rows, start);
+ * </pre>
+ * <p>
+ * {@link #start()} returns 0 while telemetry is off, and the counting methods ignore a start
+ * of 0, so a pass that began while telemetry was off is never counted.
+ * </p>
+ * <p>
+ * {@link #register()} publishes the counts as the MBean <code>{@value #OBJECT_NAME}</code>,
+ * where tools such as JConsole and VisualVM can read them and turn telemetry on and off.  It
+ * is registered automatically when the system property is set.
+ * </p>
+ */
+public final class Telemetry implements TelemetryMBean {
+	/**
+	 * The name under which the counts are registered with the platform MBean server.
+	 */
+	public static final String OBJECT_NAME = "ann.jn.neuroNet:type=Telemetry";
+
+	private static final Telemetry INSTANCE = new Telemetry();
+
+	private static volatile boolean enabled;
+	private static boolean registered;
+
+	private static final AtomicLong forwardPasses = new AtomicLong();
+	private static final AtomicLong forwardSamples = new AtomicLong();
+	private static final AtomicLong forwardLayers = new AtomicLong();
+	private static final AtomicLong forwardNanos = new AtomicLong();
+	private static final AtomicLong lockAcquisitions = new AtomicLong();
+	private static final AtomicLong lockWaitNanos = new AtomicLong();
+	private static final AtomicLong maxLockWaitNanos = new AtomicLong();
+	private static final AtomicLong epochs = new AtomicLong();
+	private static final AtomicLong trainingSamples = new AtomicLong();
+	private static final AtomicLong trainingNanos = new AtomicLong();
+	private static final AtomicLong optimizerSteps = new AtomicLong();
+	private static final AtomicLong optimizerNanos = new AtomicLong();
+	private static volatile float lastEpochError;
+	private static volatile double lastSamplesPerSecond;
+
+	static {
+		if (Boolean.getBoolean("ann.jn.neuroNet.telemetry")) {
+			enabled = true;
+			register();
+		}
+	}
+
+	private Telemetry() {
+	}
+
+	/**
+	 * Returns the object through which the counts are read, which is also the registered MBean.
+	 * @return the telemetry
+	 */
+	public static Telemetry get() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Registers the counts with the platform MBean server, unless they already are.
+	 * @return whether the counts are registered
+	 */
+	public static synchronized boolean register() {
+		if (!registered) {
+			try {
+				MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+				server.registerMBean(INSTANCE, new ObjectName(OBJECT_NAME));
+				registered = true;
+			} catch (JMException | SecurityException e) {
+				// Counting still works without JMX
+			}
+		}
+
+		return registered;
+	}
+
+	/**
+	 * Returns the time to pass to a counting method at the end of the work, or 0 if telemetry
+	 * is off.
+	 * @return the start time
+	 */
+	public static long start() {
+		// Never 0 while on, since 0 means off
+		return enabled ? System.nanoTime() | 1 : 0;
+	}
+
+	/**
+	 * Counts a forward pass of <code>rows</code> samples through <code>layers</code> layers.
+	 * @param layers the number of layers
+	 * @param rows the number of samples
+	 * @param start the time returned by {@link #start()} when the pass began
+	 */
+	public static void forwardPass(int layers, int rows, long start) {
+		if (start != 0) {
+			forwardNanos.addAndGet(System.nanoTime() - start);
+			forwardPasses.incrementAndGet();
+			forwardSamples.addAndGet(rows);
+			forwardLayers.addAndGet(layers);
+		}
+	}
+
+	/**
+	 * Counts the taking of an update lock.
+	 * @param start the time returned by {@link #start()} before waiting for the lock
+	 */
+	public static void lockAcquired(long start) {
+		if (start != 0) {
+			long wait = System.nanoTime() - start;
+			lockAcquisitions.incrementAndGet();
+			lockWaitNanos.addAndGet(wait);
+
+			long max;
+			while (wait > (max = maxLockWaitNanos.get()) && !maxLockWaitNanos.compareAndSet(max, wait)) {
+				// Another thread raised the maximum first, so compare again
+			}
+		}
+	}
+
+	/**
+	 * Counts a finished training epoch.
+	 * @param samples the number of samples trained on
+	 * @param error the mean error of the epoch
+	 * @param start the time returned by {@link #start()} when the epoch began
+	 */
+	public static void epoch(long samples, float error, long start) {
+		if (start != 0) {
+			long nanos = System.nanoTime() - start;
+			trainingNanos.addAndGet(nanos);
+			trainingSamples.addAndGet(samples);
+			epochs.incrementAndGet();
+			lastEpochError = error;
+			lastSamplesPerSecond = nanos > 0 ? samples * 1e9 / nanos : 0;
+		}
+	}
+
+	/**
+	 * Counts an optimizer step.
+	 * @param start the time returned by {@link #start()} when the step began
+	 */
+	public static void optimizerStep(long start) {
+		if (start != 0) {
+			optimizerNanos.addAndGet(System.nanoTime() - start);
+			optimizerSteps.incrementAndGet();
+		}
+	}
+
+	@Override
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	@Override
+	public void setEnabled(boolean on) {
+		enabled = on;
+	}
+
+	@Override
+	public long getForwardPasses() {
+		return forwardPasses.get();
+	}
+
+	@Override
+	public long getForwardSamples() {
+		return forwardSamples.get();
+	}
+
+	@Override
+	public long getForwardLayers() {
+		return forwardLayers.get();
+	}
+
+	@Override
+	public long getForwardNanos() {
+		return forwardNanos.get();
+	}
+
+	@Override
+	public long getLockAcquisitions() {
+		return lockAcquisitions.get();
+	}
+
+	@Override
+	public long getLockWaitNanos() {
+		return lockWaitNanos.get();
+	}
+
+	@Override
+	public long getMaxLockWaitNanos() {
+		return maxLockWaitNanos.get();
+	}
+
+	@Override
+	public long getEpochs() {
+		return epochs.get();
+	}
+
+	@Override
+	public long getTrainingSamples() {
+		return trainingSamples.get();
+	}
+
+	@Override
+	public long getTrainingNanos() {
+		return trainingNanos.get();
+	}
+
+	@Override
+	public float getLastEpochError() {
+		return lastEpochError;
+	}
+
+	@Override
+	public double getLastSamplesPerSecond() {
+		return lastSamplesPerSecond;
+	}
+
+	@Override
+	public long getOptimizerSteps() {
+		return optimizerSteps.get();
+	}
+
+	@Override
+	public long getOptimizerNanos() {
+		return optimizerNanos.get();
+	}
+
+	@Override
+	public void reset() {
+		forwardPasses.set(0);
+		forwardSamples.set(0);
+		forwardLayers.set(0);
+		forwardNanos.set(0);
+		lockAcquisitions.set(0);
+		lockWaitNanos.set(0);
+		maxLockWaitNanos.set(0);
+		epochs.set(0);
+		trainingSamples.set(0);
+		trainingNanos.set(0);
+		optimizerSteps.set(0);
+		optimizerNanos.set(0);
+		lastEpochError = 0;
+		lastSamplesPerSecond = 0;
+	}
+}
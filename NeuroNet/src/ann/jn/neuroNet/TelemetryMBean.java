@@ -0,0 +1,109 @@
+package ann.jn.neuroNet;
+
+/**
+ * The management interface of {@link Telemetry}, as seen through JMX.  Its name is fixed by
+ * the JMX naming rules for standard MBeans.
+ */
+public interface TelemetryMBean {
+	/**
+	 * Returns whether events are being counted.
+	 * @return whether telemetry is on
+	 */
+	public boolean isEnabled();
+
+	/**
+	 * Turns counting on or off.
+	 * @param enabled whether to count events
+	 */
+	public void setEnabled(boolean enabled);
+
+	/**
+	 * Returns the number of forward passes through a net.
+	 * @return the number of passes
+	 */
+	public long getForwardPasses();
+
+	/**
+	 * Returns the number of samples evaluated by forward passes, which is more than the
+	 * number of passes when samples are evaluated in batches.
+	 * @return the number of samples
+	 */
+	public long getForwardSamples();
+
+	/**
+	 * Returns the number of layers evaluated by forward passes, once per pass.
+	 * @return the number of layers
+	 */
+	public long getForwardLayers();
+
+	/**
+	 * Returns the time spent in forward passes, not counting waits for the lock of a net.
+	 * @return the time in nanoseconds
+	 */
+	public long getForwardNanos();
+
+	/**
+	 * Returns the number of times the update lock of a net was taken.
+	 * @return the number of acquisitions
+	 */
+	public long getLockAcquisitions();
+
+	/**
+	 * Returns the time spent waiting for the update lock of a net.
+	 * @return the time in nanoseconds
+	 */
+	public long getLockWaitNanos();
+
+	/**
+	 * Returns the longest single wait for the update lock of a net.
+	 * @return the time in nanoseconds
+	 */
+	public long getMaxLockWaitNanos();
+
+	/**
+	 * Returns the number of training epochs finished.
+	 * @return the number of epochs
+	 */
+	public long getEpochs();
+
+	/**
+	 * Returns the number of samples trained on in finished epochs.
+	 * @return the number of samples
+	 */
+	public long getTrainingSamples();
+
+	/**
+	 * Returns the time spent in finished epochs.
+	 * @return the time in nanoseconds
+	 */
+	public long getTrainingNanos();
+
+	/**
+	 * Returns the mean error of the last epoch finished.
+	 * @return the error
+	 */
+	public float getLastEpochError();
+
+	/**
+	 * Returns the rate at which the last epoch finished was trained.
+	 * @return the number of samples per second
+	 */
+	public double getLastSamplesPerSecond();
+
+	/**
+	 * Returns the number of steps taken by {@link ann.jn.teach.Optimizer}s.
+	 * @return the number of steps
+	 */
+	public long getOptimizerSteps();
+
+	/**
+	 * Returns the time spent applying optimizer steps to the weights.
+	 * @return the time in nanoseconds
+	 */
+	public long getOptimizerNanos();
+
+	/**
+	 * Sets every count back to zero.
+	 */
+	public void reset();
+}
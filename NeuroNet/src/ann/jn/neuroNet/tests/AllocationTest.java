@@ -0,0 +1,61 @@
+package ann.jn.neuroNet.tests;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+
+import ann.jn.neuroNet.NeuralNet;
+import ann.jn.teach.BackPropagator;
+
+/**
+ * Checks that training with a {@link BackPropagator} allocates nothing once it
+ * has been set up, by measuring the bytes the training thread allocates.
+ */
+public class AllocationTest {
+	public static void main(String[] args) throws Exception {
+		NeuralNet nn = new NeuralNet(16, 32, 8, 4);
+		nn.randomizeWeights();
+		BackPropagator bp = new BackPropagator(nn, 0.1f, 0.5f);
+
+		float[][] ins = new float[64][16];
+		float[][] outs = new float[64][4];
+		for (int i = 0; i < ins.length; i++) {
+			for (int j = 0; j < ins[i].length; j++) {
+				ins[i][j] = (float) Math.random();
+			}
+
+			outs[i][i % 4] = 1;
+		}
+
+		// Warm up, so that the JIT and class loading are done
+		bp.train(0, 2000, ins, outs);
+		bp.train(0, 2000, ins, outs, 16);
+
+		ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+		Method allocated;
+		try {
+			Class<?> hotspot = Class.forName("com.sun.management.ThreadMXBean");
+			allocated = hotspot.getMethod("getThreadAllocatedBytes", long.class);
+		} catch (ClassNotFoundException | NoSuchMethodException e) {
+			System.out.println("This JVM cannot measure allocation");
+			return;
+		}
+
+		long id = Thread.currentThread().getId();
+		int epochs = 200;
+
+		long before = (Long) allocated.invoke(mx, id);
+		bp.train(0, epochs, ins, outs);
+		long sgd = (Long) allocated.invoke(mx, id) - before;
+
+		before = (Long) allocated.invoke(mx, id);
+		bp.train(0, epochs, ins, outs, 16);
+		long batch = (Long) allocated.invoke(mx, id) - before;
+
+		// The measurement itself boxes a Long, so allow a little slack per call
+		long samples = (long) epochs * ins.length;
+		System.out.println("Per-sample training: " + sgd + " bytes, " + ((double) sgd / samples) + " bytes/op");
+		System.out.println("Mini-batch training: " + batch + " bytes, " + ((double) batch / samples) + " bytes/op");
+		System.out.println(sgd < 1024 && batch < 1024 ? "PASSED" : "FAILED");
+	}
+}
@@ -0,0 +1,340 @@
+package ann.jn.neuroNet.tests;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+import ann.jn.neuroNet.NeuralNet;
+import ann.jn.neuroNet.Neuron;
+import ann.jn.teach.BackPropagator;
+import ann.jn.teach.gen.GeneticTeacher;
+import ann.jn.teach.gen.WeightMap;
+import ann.jn.teach.gen.WeightMapUtils;
+
+/**
+ * <p>
+ * Measures the throughput and allocation of the hot paths of the library, so that the effect
+ * of a change can be compared before and after it.
+ * </p>
+ * <p>
+ * Each benchmark is run for a number of warmup iterations, whose results are thrown away, and
+ * then for a number of measured iterations of a fixed length.  For each benchmark the mean
+ * number of operations per second is printed with its standard deviation over the measured
+ * iterations, along with the bytes allocated per operation and the allocation rate, measured
+ * on the benchmark's thread.  Every result of an operation is folded into a sink so that the
+ * JIT cannot drop the work.
+ * </p>
+ * <p>
+ * Arguments, all optional:
+ * </p>
+ * <pre>
+ * -wi n     warmup iterations, default 3
+ * -i n      measured iterations, default 5
+ * -t ms     length of each iteration in milliseconds, default 1000
+ * regex     only run the benchmarks whose names contain a match
+ * </pre>
+ */
+public class Benchmarks {
+	private static volatile float sink;
+
+	private static final Method ALLOCATED;
+
+	static {
+		Method m = null;
+		try {
+			Class<?> hotspot = Class.forName("com.sun.management.ThreadMXBean");
+			m = hotspot.getMethod("getThreadAllocatedBytes", long.class);
+			if (!hotspot.isInstance(ManagementFactory.getThreadMXBean())) {
+				m = null;
+			}
+		} catch (ClassNotFoundException | NoSuchMethodException e) {
+			// Allocation is reported as n/a
+		}
+
+		ALLOCATED = m;
+	}
+
+	private static final PrintStream DISCARD = new PrintStream(new OutputStream() {
+		@Override
+		public void write(int b) {
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+		}
+	});
+
+	public static void main(String[] args) throws Exception {
+		int warmups = 3;
+		int iterations = 5;
+		long millis = 1000;
+		Pattern filter = null;
+
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-wi")) {
+				warmups = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-i")) {
+				iterations = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-t")) {
+				millis = Long.parseLong(args[++i]);
+			} else {
+				filter = Pattern.compile(args[i]);
+			}
+		}
+
+		System.out.println(String.format(Locale.ROOT, "%-42s %14s %12s %12s %10s", "Benchmark", "ops/s", "+/-", "B/op", "MB/s"));
+		for (Benchmark b : all()) {
+			if (filter == null || filter.matcher(b.name).find()) {
+				measure(b, warmups, iterations, millis);
+			}
+		}
+	}
+
+	/**
+	 * One benchmarked operation and its state.
+	 */
+	private abstract static class Benchmark {
+		final String name;
+
+		Benchmark(String name) {
+			this.name = name;
+		}
+
+		/**
+		 * Runs the operation once.
+		 * @return a value depending on the result, for the sink
+		 */
+		abstract float run();
+	}
+
+	private static List<Benchmark> all() {
+		List<Benchmark> list = new ArrayList<Benchmark>();
+		final Random r = new Random(1);
+
+		for (final int fanIn : new int[] {4, 64, 1024}) {
+			final Neuron n = new Neuron(fanIn);
+			final float[] in = random(r, fanIn);
+
+			list.add(new Benchmark("Neuron.update fanIn=" + fanIn) {
+				@Override
+				float run() {
+					return n.update(in);
+				}
+			});
+		}
+
+		for (final int[] shape : new int[][] {{1, 3, 2, 1}, {256, 512, 512, 10}}) {
+			final NeuralNet nn = net(r, shape);
+			final float[] in = random(r, shape[0]);
+			final float[] out = new float[shape[shape.length - 1]];
+
+			list.add(new Benchmark("NeuralNet.update " + shape(shape)) {
+				@Override
+				float run() {
+					nn.update(in, out);
+					return out[0];
+				}
+			});
+		}
+
+		for (final int[] shape : new int[][] {{1, 3, 2, 1}, {256, 512, 512, 10}}) {
+			final NeuralNet nn = net(r, shape);
+			final BackPropagator bp = new BackPropagator(nn, 0.01f, 0.5f);
+			final float[] in = random(r, shape[0]);
+			final float[] out = new float[shape[shape.length - 1]];
+			final float[] target = random(r, out.length);
+
+			list.add(new Benchmark("BackPropagator.propagate " + shape(shape)) {
+				@Override
+				float run() {
+					nn.update(in, out);
+					return bp.propagate(target);
+				}
+			});
+		}
+
+		final int[] trainShape = {16, 32, 8, 4};
+		final NeuralNet trainNet = net(r, trainShape);
+		final BackPropagator trainer = new BackPropagator(trainNet, 0.01f, 0.5f);
+		final float[][] ins = new float[64][];
+		final float[][] outs = new float[64][];
+		for (int i = 0; i < ins.length; i++) {
+			ins[i] = random(r, trainShape[0]);
+			outs[i] = random(r, trainShape[trainShape.length - 1]);
+		}
+
+		list.add(new Benchmark("BackPropagator.train epoch 64x" + shape(trainShape)) {
+			@Override
+			float run() {
+				trainer.train(0, 1, ins, outs);
+				return trainer.getLastError();
+			}
+		});
+
+		list.add(new Benchmark("BackPropagator.train batch16 64x" + shape(trainShape)) {
+			@Override
+			float run() {
+				trainer.train(0, 1, ins, outs, 16);
+				return trainer.getLastError();
+			}
+		});
+
+		final GeneticTeacher teacher = new GeneticTeacher(50, 100, net(r, trainShape), new GeneticTeacher.IGeneticTeacherCallbacks() {
+			@Override
+			public void onGenerationReady() {
+			}
+		});
+
+		list.add(new Benchmark("GeneticTeacher.doEvolution 50/100") {
+			@Override
+			float run() {
+				for (int i = 0; i < teacher.getNumMaps(); i++) {
+					teacher.recordFitness(r.nextInt(1000), teacher.getMap(i));
+				}
+
+				// doEvolution prints every generation's fitnesses
+				PrintStream out = System.out;
+				System.setOut(DISCARD);
+				try {
+					teacher.doEvolution();
+				} finally {
+					System.setOut(out);
+				}
+
+				return teacher.getNumMaps();
+			}
+		});
+
+		final NeuralNet mapNet = net(r, new int[] {256, 512, 512, 10});
+		final WeightMap map = WeightMapUtils.getWeights(mapNet);
+
+		list.add(new Benchmark("WeightMapUtils.getWeights " + shape(new int[] {256, 512, 512, 10})) {
+			@Override
+			float run() {
+				return WeightMapUtils.getWeights(mapNet).getNumLayers();
+			}
+		});
+
+		list.add(new Benchmark("WeightMapUtils.setWeights " + shape(new int[] {256, 512, 512, 10})) {
+			@Override
+			float run() {
+				WeightMapUtils.setWeights(mapNet, map);
+				return mapNet.getDenseLayer(1).getWeights()[0];
+			}
+		});
+
+		return list;
+	}
+
+	private static void measure(Benchmark b, int warmups, int iterations, long millis) throws Exception {
+		long nanos = millis * 1000000L;
+		for (int i = 0; i < warmups; i++) {
+			iterate(b, nanos);
+		}
+
+		double[] rates = new double[iterations];
+		long totalOps = 0;
+		long totalNanos = 0;
+		long before = allocated();
+
+		for (int i = 0; i < iterations; i++) {
+			long start = System.nanoTime();
+			long ops = iterate(b, nanos);
+			long elapsed = System.nanoTime() - start;
+			rates[i] = ops * 1e9 / elapsed;
+			totalOps += ops;
+			totalNanos += elapsed;
+		}
+
+		long bytes = allocated() - before;
+
+		double mean = 0;
+		for (int i = 0; i < rates.length; i++) {
+			mean += rates[i];
+		}
+
+		mean /= rates.length;
+		double var = 0;
+		for (int i = 0; i < rates.length; i++) {
+			var += (rates[i] - mean) * (rates[i] - mean);
+		}
+
+		double dev = rates.length > 1 ? Math.sqrt(var / (rates.length - 1)) : 0;
+		String perOp = ALLOCATED == null ? "n/a" : String.format(Locale.ROOT, "%.1f", (double) bytes / totalOps);
+		String rate = ALLOCATED == null ? "n/a" : String.format(Locale.ROOT, "%.1f", bytes * 1e9 / totalNanos / (1 << 20));
+		System.out.println(String.format(Locale.ROOT, "%-42s %14.1f %12.1f %12s %10s", b.name, mean, dev, perOp, rate));
+	}
+
+	/**
+	 * Runs the operation until <code>nanos</code> have passed, checking the time every few
+	 * operations, and returns the number of operations run.
+	 */
+	private static long iterate(Benchmark b, long nanos) {
+		long end = System.nanoTime() + nanos;
+		long ops = 0;
+		float acc = 0;
+		int batch = 1;
+
+		do {
+			for (int i = 0; i < batch; i++) {
+				acc += b.run();
+			}
+
+			ops += batch;
+			if (batch < 1024) {
+				batch *= 2;
+			}
+		} while (System.nanoTime() < end);
+
+		sink = acc;
+		return ops;
+	}
+
+	/**
+	 * Returns the bytes allocated by this thread so far, or 0 if the JVM cannot tell.
+	 */
+	private static long allocated() throws Exception {
+		if (ALLOCATED == null) {
+			return 0;
+		}
+
+		return (Long) ALLOCATED.invoke(ManagementFactory.getThreadMXBean(), Thread.currentThread().getId());
+	}
+
+	private static NeuralNet net(Random r, int[] shape) {
+		NeuralNet nn = new NeuralNet(shape);
+		for (int l = 1; l < shape.length; l++) {
+			float[] ws = nn.getDenseLayer(l).getWeights();
+			for (int i = 0; i < ws.length; i++) {
+				ws[i] = (r.nextFloat() - 0.5f) * 0.2f;
+			}
+		}
+
+		nn.weightsChanged();
+		return nn;
+	}
+
+	private static float[] random(Random r, int n) {
+		float[] values = new float[n];
+		for (int i = 0; i < n; i++) {
+			values[i] = r.nextFloat();
+		}
+
+		return values;
+	}
+
+	private static String shape(int[] shape) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < shape.length; i++) {
+			sb.append(i == 0 ? "" : "-").append(shape[i]);
+		}
+
+		return sb.toString();
+	}
+}
@@ -0,0 +1,92 @@
+package ann.jn.neuroNet.tests;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import ann.jn.neuroNet.NeuralNet;
+import ann.jn.teach.BackPropagator;
+import ann.jn.teach.HogwildTrainer;
+
+/**
+ * Compares the error and throughput of {@link HogwildTrainer} on 1 to 8 threads
+ * with those of a single-threaded {@link BackPropagator}, on samples whose inputs
+ * are mostly zero.
+ */
+public class HogwildTest {
+	public static void main(String[] args) {
+		int inputs = 256;
+		int classes = 8;
+		int epochs = 30;
+		float[][] ins = new float[4096][inputs];
+		float[][] outs = new float[ins.length][classes];
+
+		// Each class is a few fixed inputs, plus noise on a few others
+		Random r = new Random(1);
+		for (int i = 0; i < ins.length; i++) {
+			int c = i % classes;
+			for (int j = 0; j < 4; j++) {
+				ins[i][c * 4 + j] = 1;
+				ins[i][classes * 4 + r.nextInt(inputs - classes * 4)] = 1;
+			}
+
+			outs[i][c] = 1;
+		}
+
+		System.out.println("Available processors: " + Runtime.getRuntime().availableProcessors());
+
+		NeuralNet nn = new NeuralNet(inputs, 32, classes);
+		// Small weights of either sign, since randomizeWeights() would saturate 256 inputs
+		for (int l = 1; l < nn.getNumLayers(); l++) {
+			float[] ws = nn.getDenseLayer(l).getWeights();
+			for (int i = 0; i < ws.length; i++) {
+				ws[i] = (r.nextFloat() - 0.5f) * 0.2f;
+			}
+		}
+
+		float[][] start = save(nn);
+
+		// Warm up each trainer first, so that the JIT is done
+		BackPropagator bp = new BackPropagator(nn, 0.05f, 0);
+		bp.train(0, 2, ins, outs);
+
+		restore(nn, start);
+		long time = System.nanoTime();
+		bp.train(0, epochs, ins, outs);
+		report("BackPropagator", bp.getLastError(), System.nanoTime() - time, (long) epochs * ins.length);
+
+		for (int threads = 1; threads <= 8; threads *= 2) {
+			ForkJoinPool pool = new ForkJoinPool(threads);
+			HogwildTrainer hw = new HogwildTrainer(nn, 0.05f, pool, 1);
+			hw.train(0, 2, ins, outs);
+
+			restore(nn, start);
+			time = System.nanoTime();
+			hw.train(0, epochs, ins, outs);
+			report("Hogwild x" + threads, hw.getLastError(), System.nanoTime() - time, (long) epochs * ins.length);
+			pool.shutdown();
+		}
+	}
+
+	private static float[][] save(NeuralNet nn) {
+		float[][] saved = new float[nn.getNumLayers() * 2][];
+		for (int l = 0; l < nn.getNumLayers(); l++) {
+			saved[l * 2] = nn.getDenseLayer(l).getWeights().clone();
+			saved[l * 2 + 1] = nn.getDenseLayer(l).getBiases().clone();
+		}
+
+		return (saved);
+	}
+
+	private static void restore(NeuralNet nn, float[][] saved) {
+		for (int l = 0; l < nn.getNumLayers(); l++) {
+			System.arraycopy(saved[l * 2], 0, nn.getDenseLayer(l).getWeights(), 0, saved[l * 2].length);
+			System.arraycopy(saved[l * 2 + 1], 0, nn.getDenseLayer(l).getBiases(), 0, saved[l * 2 + 1].length);
+		}
+
+		nn.weightsChanged();
+	}
+
+	private static void report(String name, float err, long nanos, long samples) {
+		System.out.println(name + ": error " + err + ", " + (samples * 1000000000L / nanos) + " samples/s");
+	}
+}
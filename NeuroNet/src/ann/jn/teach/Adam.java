@@ -0,0 +1,75 @@
+package ann.jn.teach;
+
+/**
+ * <p>
+ * The Adam optimizer, with optional decoupled weight decay (AdamW).
+ * </p>
+ * <p>
+ * Each parameter keeps running means of its gradient and of its squared gradient, corrected
+ * for their bias towards zero in early steps, and moves by
+ * <code>rate * m / (sqrt(v) + epsilon)</code>.  With a weight decay, every parameter is
+ * first shrunk by <code>rate * weightDecay</code> of itself, separately from the gradient.
+ * </p>
+ */
+public class Adam extends Optimizer {
+	private final float beta1;
+	private final float beta2;
+	private final float epsilon;
+	private final float weightDecay;
+
+	private float correction1;
+	private float correction2;
+
+	/**
+	 * Creates Adam with betas of 0.9 and 0.999, an epsilon of 1e-8 and no weight decay.
+	 * @param learnRate the learning rate
+	 */
+	public Adam(float learnRate) {
+		this(learnRate, 0.9f, 0.999f, 1e-8f, 0);
+	}
+
+	/**
+	 * Creates Adam, or AdamW if <code>weightDecay</code> is not zero.
+	 * @param learnRate the learning rate
+	 * @param beta1 the fraction of the mean gradient kept each step
+	 * @param beta2 the fraction of the mean squared gradient kept each step
+	 * @param epsilon the value added to the root mean square to avoid dividing by zero
+	 * @param weightDecay the fraction of each parameter removed each step, per unit of rate
+	 */
+	public Adam(float learnRate, float beta1, float beta2, float epsilon, float weightDecay) {
+		super(learnRate);
+		this.beta1 = beta1;
+		this.beta2 = beta2;
+		this.epsilon = epsilon;
+		this.weightDecay = weightDecay;
+	}
+
+	@Override
+	public int getStateSlots() {
+		return 2;
+	}
+
+	@Override
+	protected void prepare() {
+		correction1 = (float) (1 / (1 - Math.pow(beta1, step)));
+		correction2 = (float) (1 / (1 - Math.pow(beta2, step)));
+	}
+
+	@Override
+	protected void apply(float[] w, int wOff, float[] g, int gOff, int s, int n) {
+		float[] ms = slot(0);
+		float[] vs = slot(1);
+		float decay = 1 - rate * weightDecay;
+
+		for (int i = 0; i < n; i++) {
+			float grad = g[gOff + i];
+			float m = beta1 * ms[s + i] + (1 - beta1) * grad;
+			float v = beta2 * vs[s + i] + (1 - beta2) * grad * grad;
+			ms[s + i] = m;
+			vs[s + i] = v;
+
+			float p = w[wOff + i] * decay;
+			w[wOff + i] = p + rate * (m * correction1) / ((float) Math.sqrt(v * correction2) + epsilon);
+		}
+	}
+}
@@ -1,118 +1,819 @@
-package ann.jn.teach;
-
-import ann.jn.neuroNet.NeuralNet;
-import ann.jn.neuroNet.Neuron;
-
-public class BackPropagator {
-	private NeuralNet net;
-	private float learnRate;
-	private float momentum;
-	private float[][][] change;
-	
-	private float lastError;
-	private int lastIter;
-	
-	public BackPropagator(NeuralNet nn, float learn, float mom) {
-		net = nn;
-		learnRate = learn;
-		momentum = mom;
-		
-		change = new float[net.getNumLayers()][][];
-		for (int i = 0; i < change.length; i++) {
-			change[i] = new float[net.getLayer(i).length][];
-			
-			for (int j = 0; j < change[i].length; j++) {
-				change[i][j] = new float[net.getNeuron(i, j).getWeights().length];
-			}
-		}
-	}
-	
-	public int getLastIteration() {
-		return (lastIter);
-	}
-	
-	public float getLastError() {
-		return (lastError);
-	}
-	
-	public void train(float errMin, int iterMax, float[][] ins, float[][] outs) {
-		if (ins == null || outs == null || ins.length != outs.length ||
-			ins[0].length != net.getLayer(0).length ||
-			outs[0].length != net.getLayer(net.getNumLayers() - 1).length) {
-			throw new IllegalArgumentException();
-		}
-			
-		float err = 1;
-		int i = 0;
-		for (; i < iterMax && err > errMin; i++) {
-			float sum = 0;
-			for (int j = 0; j < ins.length; j++) {
-				net.setInputs(ins[j]);
-				net.update();
-				sum += Math.abs(propagate(outs[j]));
-			}
-			
-			err = sum / ins.length;
-		}
-		
-		lastError = err;
-		lastIter = i;
-	}
-	
-	public float propagate(float[] target) {
-		int layers = net.getNumLayers();
-		if (target.length != net.getLayer(layers - 1).length) {
-			throw new IllegalArgumentException("target length doesn't match output nodes");
-		}
-		
-		// Create an array with the same dimensions as the output
-		float[][] error = new float[layers][];
-		for (int i = 0; i < error.length; i++) {
-			error[i] = new float[net.getLayer(i).length];
-		}
-		
-		// Evaluate the cost
-		float mse = 0;
-		for (int layer = layers - 1; layer >= 0; layer--) {
-			for (int i = 0; i < error[layer].length; i++) {
-				float out = net.getNeuron(layer, i).getOutput();
-				float sum = 0;
-				
-				if (layer == layers - 1) {
-					sum = target[i] - out;
-					mse += sum * sum;
-				} else {
-					for (int j = 0; j < error[layer + 1].length; j++) {
-						float w = net.getNeuron(layer + 1, j).getWeights()[i];
-						float e = error[layer + 1][j];
-						sum += w * e;
-					}
-				}
-				
-				error[layer][i] = sum * out * (1 - out);
-			}
-		}
-		
-		mse /= error[layers - 1].length;
-		
-		// Pass 2: calculate delta weight and adjust
-		for (int layer = 0; layer < layers; layer++) {
-			for (int i = 0; i < error[layer].length; i++) {
-				Neuron n = net.getNeuron(layer, i);
-				float[] ws = n.getWeights();
-				
-				for (int w = 0; w < ws.length; w++) {
-					float input = layer == 0 ? net.getInput(i) : net.getNeuron(layer - 1, w).getOutput();
-					float ch = (learnRate * error[layer][i] * input) + (change[layer][i][w] * momentum);
-					change[layer][i][w] = ch;
-					ws[w] += ch;
-				}
-				
-				n.setWeights(ws);
-				n.setBias(n.getBias() + error[layer][i] * learnRate);
-			}
-		}
-		
-		return (mse);
-	}
-}
+package ann.jn.teach;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import ann.jn.neuroNet.Kernels;
+import ann.jn.neuroNet.Layer;
+import ann.jn.neuroNet.NeuralNet;
+import ann.jn.neuroNet.Telemetry;
+import ann.jn.teach.data.DataLoader;
+import ann.jn.teach.data.IDataset;
+
+public class BackPropagator {
+	private NeuralNet net;
+	private float learnRate;
+	private float momentum;
+	private float[][] change;
+	private Optimizer optimizer;
+	private int[] weightBase;
+	private int[] biasBase;
+	private float[] gradRow;
+	private float[][] error;
+	private float[] outputs;
+	private volatile ForkJoinPool forkJoinPool;
+	private Shard[] shards;
+	
+	private float lastError;
+	private int lastIter;
+	private int epoch;
+	private Checkpointer checkpointer;
+	private int checkpointEvery;
+	
+	public BackPropagator(NeuralNet nn, float learn, float mom) {
+		this(nn, learn, mom, null);
+	}
+	
+	/**
+	 * Creates a BackPropagator that adjusts the weights and biases of the net
+	 * with the given {@link Optimizer} rather than with classic momentum.
+	 * @param nn the net to train
+	 * @param opt the optimizer
+	 */
+	public BackPropagator(NeuralNet nn, Optimizer opt) {
+		this(nn, opt.getLearnRate(), 0, opt);
+	}
+	
+	private BackPropagator(NeuralNet nn, float learn, float mom, Optimizer opt) {
+		net = nn;
+		learnRate = learn;
+		momentum = mom;
+		optimizer = opt;
+		int layers = net.getNumLayers();
+		
+		if (opt == null) {
+			// One change per weight, laid out like the layer's weight matrix
+			change = new float[layers][];
+			for (int i = 0; i < layers; i++) {
+				change[i] = new float[net.getDenseLayer(i).getWeights().length];
+			}
+		} else {
+			// Each layer's weights, then its biases, in the optimizer's state
+			weightBase = new int[layers];
+			biasBase = new int[layers];
+			int params = 0;
+			int width = 1;
+			for (int i = 0; i < layers; i++) {
+				weightBase[i] = params;
+				params += net.getDenseLayer(i).getWeights().length;
+				biasBase[i] = params;
+				params += net.getLayerSize(i);
+				width = Math.max(width, net.getDenseLayer(i).getNumInputs());
+			}
+			
+			opt.start(params);
+			gradRow = new float[width];
+		}
+		
+		// Scratch buffers reused by every sample, so that training allocates nothing
+		error = new float[layers][];
+		for (int i = 0; i < error.length; i++) {
+			error[i] = new float[net.getLayerSize(i)];
+		}
+		
+		outputs = new float[net.getLayerSize(layers - 1)];
+	}
+	
+	/**
+	 * Returns the optimizer that adjusts the weights, or null if they are
+	 * adjusted with classic momentum.
+	 * @return the optimizer
+	 */
+	public Optimizer getOptimizer() {
+		return optimizer;
+	}
+	
+	public int getLastIteration() {
+		return (lastIter);
+	}
+	
+	public float getLastError() {
+		return (lastError);
+	}
+	
+	/**
+	 * Returns the number of epochs trained by every call to <code>train</code>
+	 * so far, including those before the checkpoint this BackPropagator was
+	 * resumed from.
+	 * @return the number of epochs
+	 */
+	public int getEpoch() {
+		return (epoch);
+	}
+	
+	/**
+	 * Sets the Checkpointer that a {@link Checkpoint} is handed to at the end of
+	 * every <code>every</code>th epoch, or null to stop checkpointing.  Taking a
+	 * checkpoint only copies the state; it is written on the Checkpointer's
+	 * thread while training goes on.
+	 * @param cp the Checkpointer
+	 * @param every the number of epochs between checkpoints
+	 */
+	public void setCheckpointer(Checkpointer cp, int every) {
+		if (cp != null && every < 1) {
+			throw new IllegalArgumentException("The checkpoint interval must be positive");
+		}
+		
+		checkpointer = cp;
+		checkpointEvery = every;
+	}
+	
+	/**
+	 * Copies the weights and biases of the net and the training state into a new
+	 * {@link Checkpoint}.
+	 * @return the checkpoint
+	 */
+	public Checkpoint checkpoint() {
+		return (capture(null));
+	}
+	
+	/**
+	 * Restores the weights and biases of the net and the training state from a
+	 * checkpoint, so that training continues where it stopped.  To finish a run
+	 * of <code>n</code> epochs, train for <code>n - {@link #getEpoch()}</code>
+	 * more epochs.
+	 * @param cp the checkpoint, which must have been taken with the same topology
+	 * and the same kind of optimizer
+	 */
+	public void resume(Checkpoint cp) {
+		if (!fits(cp)) {
+			throw new IllegalArgumentException("The checkpoint does not match this net and optimizer");
+		}
+		
+		for (int l = 0; l < cp.sizes.length; l++) {
+			Layer layer = net.getDenseLayer(l);
+			System.arraycopy(cp.weights[l], 0, layer.getWeights(), 0, cp.weights[l].length);
+			System.arraycopy(cp.biases[l], 0, layer.getBiases(), 0, cp.biases[l].length);
+		}
+		
+		float[][] state = optimizer == null ? change : optimizer.getState();
+		for (int i = 0; i < state.length; i++) {
+			System.arraycopy(cp.state[i], 0, state[i], 0, state[i].length);
+		}
+		
+		if (optimizer != null) {
+			optimizer.setStep(cp.step);
+		}
+		
+		epoch = cp.epoch;
+		lastError = cp.lastError;
+		net.weightsChanged();
+	}
+	
+	/**
+	 * Sets the pool that {@link #train(float, int, float[][], float[][], int)} splits
+	 * each batch across, or null to train batches on the calling thread.
+	 * @param pool the pool to train on
+	 */
+	public void setForkJoinPool(ForkJoinPool pool) {
+		forkJoinPool = pool;
+	}
+	
+	/**
+	 * Returns the pool that batches are split across, or null.
+	 * @return the pool
+	 */
+	public ForkJoinPool getForkJoinPool() {
+		return forkJoinPool;
+	}
+	
+	public void train(float errMin, int iterMax, float[][] ins, float[][] outs) {
+		if (ins == null || outs == null || ins.length != outs.length ||
+			ins[0].length != net.getLayerSize(0) ||
+			outs[0].length != net.getLayerSize(net.getNumLayers() - 1)) {
+			throw new IllegalArgumentException();
+		}
+			
+		float err = 1;
+		int i = 0;
+		for (; i < iterMax && err > errMin; i++) {
+			long start = Telemetry.start();
+			float sum = 0;
+			for (int j = 0; j < ins.length; j++) {
+				net.update(ins[j], outputs);
+				sum += Math.abs(propagate(outs[j]));
+			}
+			
+			err = sum / ins.length;
+			endEpoch(err, ins.length, start);
+		}
+		
+		lastError = err;
+		lastIter = i;
+	}
+	
+	/**
+	 * Trains like {@link #train(float, int, float[][], float[][])}, but adjusts the
+	 * weights once per batch of <code>batchSize</code> samples, by the mean of their
+	 * gradients.  See {@link #propagateBatch(float[][], float[][], int, int)}.
+	 * @param errMin the error to stop at
+	 * @param iterMax the most passes over the samples
+	 * @param ins the inputs of each sample
+	 * @param outs the target outputs of each sample
+	 * @param batchSize the number of samples per batch
+	 */
+	public void train(float errMin, int iterMax, float[][] ins, float[][] outs, int batchSize) {
+		if (ins == null || outs == null || ins.length != outs.length ||
+			ins[0].length != net.getLayerSize(0) ||
+			outs[0].length != net.getLayerSize(net.getNumLayers() - 1)) {
+			throw new IllegalArgumentException();
+		} else if (batchSize < 1) {
+			throw new IllegalArgumentException("The batch size must be positive");
+		}
+		
+		float err = 1;
+		int i = 0;
+		for (; i < iterMax && err > errMin; i++) {
+			long start = Telemetry.start();
+			float sum = 0;
+			for (int j = 0; j < ins.length; j += batchSize) {
+				int rows = Math.min(batchSize, ins.length - j);
+				sum += propagateBatch(ins, outs, j, rows) * rows;
+			}
+			
+			err = sum / ins.length;
+			endEpoch(err, ins.length, start);
+		}
+		
+		lastError = err;
+		lastIter = i;
+	}
+	
+	/**
+	 * <p>
+	 * Evaluates <code>rows</code> samples starting at <code>off</code>, and adjusts
+	 * the weights once by the mean of their gradients, with momentum or with the
+	 * {@link Optimizer}.
+	 * </p>
+	 * <p>
+	 * The samples are split into one contiguous shard per thread of the
+	 * {@link #setForkJoinPool(ForkJoinPool) pool}.  Each shard is evaluated and
+	 * its gradient summed into buffers of its own.  The shards' gradients are
+	 * then added together in shard order, each thread adding up and applying its
+	 * own slice of the weights, so the result depends only on the number of
+	 * shards and never on how the threads were scheduled.
+	 * </p>
+	 * <p>
+	 * The stored inputs and outputs of the net are not used or changed.
+	 * </p>
+	 * @param ins the inputs of each sample
+	 * @param targets the target outputs of each sample
+	 * @param off the first sample of the batch
+	 * @param rows the number of samples in the batch
+	 * @return the mean squared error of the samples before the adjustment
+	 */
+	public float propagateBatch(float[][] ins, float[][] targets, int off, int rows) {
+		if (rows < 1 || off < 0 || off + rows > ins.length || off + rows > targets.length) {
+			throw new IllegalArgumentException("Invalid batch!");
+		}
+		
+		ForkJoinPool pool = forkJoinPool;
+		int count = pool == null ? 1 : Math.max(1, Math.min(pool.getParallelism(), rows));
+		ensureShards(count, (rows + count - 1) / count);
+		
+		for (int k = 0; k < count; k++) {
+			shards[k].assign(ins, targets, off + (int) ((long) k * rows / count), off + (int) ((long) (k + 1) * rows / count));
+		}
+		
+		return (step(pool, count, rows));
+	}
+	
+	/**
+	 * Like {@link #propagateBatch(float[][], float[][], int, int)}, but takes the
+	 * samples as row-major arrays with one row per sample, as read by a
+	 * {@link DataLoader}.
+	 * @param ins the inputs, {@link NeuralNet#getLayerSize(int) getLayerSize(0)} values per sample
+	 * @param targets the target outputs, one value per output neuron per sample
+	 * @param rows the number of samples
+	 * @return the mean squared error of the samples before the adjustment
+	 */
+	public float propagateBatch(float[] ins, float[] targets, int rows) {
+		if (rows < 1 || ins.length < rows * net.getLayerSize(0) ||
+			targets.length < rows * net.getLayerSize(net.getNumLayers() - 1)) {
+			throw new IllegalArgumentException("Invalid batch!");
+		}
+		
+		ForkJoinPool pool = forkJoinPool;
+		int count = pool == null ? 1 : Math.max(1, Math.min(pool.getParallelism(), rows));
+		ensureShards(count, (rows + count - 1) / count);
+		
+		for (int k = 0; k < count; k++) {
+			shards[k].assign(ins, targets, (int) ((long) k * rows / count), (int) ((long) (k + 1) * rows / count));
+		}
+		
+		return (step(pool, count, rows));
+	}
+	
+	/**
+	 * Trains on batches from a {@link DataLoader} until the mean error of an epoch
+	 * falls to <code>errMin</code> or <code>iterMax</code> epochs have passed.  The
+	 * weights are adjusted once per batch, as by
+	 * {@link #propagateBatch(float[], float[], int)}.  The loader is not closed.
+	 * @param errMin the error to stop at
+	 * @param iterMax the most epochs
+	 * @param data the source of the batches
+	 */
+	public void train(float errMin, int iterMax, DataLoader data) {
+		IDataset set = data.getDataset();
+		if (set.getNumInputs() != net.getLayerSize(0) ||
+			set.getNumOutputs() != net.getLayerSize(net.getNumLayers() - 1)) {
+			throw new IllegalArgumentException();
+		}
+		
+		float err = 1;
+		int i = 0;
+		for (; i < iterMax && err > errMin; i++) {
+			long start = Telemetry.start();
+			float sum = 0;
+			long total = 0;
+			DataLoader.Batch b;
+			do {
+				b = data.next();
+				sum += propagateBatch(b.getInputs(), b.getTargets(), b.getRows()) * b.getRows();
+				total += b.getRows();
+			} while (!b.isEndOfEpoch());
+			
+			err = sum / total;
+			endEpoch(err, total, start);
+		}
+		
+		lastError = err;
+		lastIter = i;
+	}
+	
+	/**
+	 * Evaluates the assigned shards and adjusts the weights by their gradients.
+	 */
+	private float step(ForkJoinPool pool, int count, int rows) {
+		run(pool, count, false);
+		
+		float mse = 0;
+		for (int k = 0; k < count; k++) {
+			mse += shards[k].mse;
+			shards[k].scale = optimizer == null ? learnRate / rows : 1f / rows;
+		}
+		
+		long start = Telemetry.start();
+		if (optimizer != null) {
+			optimizer.beginStep();
+		}
+		
+		run(pool, count, true);
+		net.weightsChanged();
+		Telemetry.optimizerStep(start);
+		return (mse / rows);
+	}
+	
+	public float propagate(float[] target) {
+		int layers = net.getNumLayers();
+		if (target.length != net.getLayerSize(layers - 1)) {
+			throw new IllegalArgumentException("target length doesn't match output nodes");
+		}
+		
+		// Evaluate the cost
+		float mse = 0;
+		for (int layer = layers - 1; layer >= 0; layer--) {
+			Layer l = net.getDenseLayer(layer);
+			float[] outs = l.getOutputs();
+			float[] err = error[layer];
+			
+			if (layer == layers - 1) {
+				for (int i = 0; i < err.length; i++) {
+					err[i] = target[i] - outs[i];
+					mse += err[i] * err[i];
+				}
+			} else {
+				// Each row of the next layer's weights spreads its error back over this layer
+				Layer next = net.getDenseLayer(layer + 1);
+				float[] ws = next.getWeights();
+				float[] nextErr = error[layer + 1];
+				Arrays.fill(err, 0);
+				
+				for (int j = 0; j < nextErr.length; j++) {
+					Kernels.axpy(nextErr[j], ws, j * err.length, err, 0, err.length);
+				}
+			}
+			
+			// The sums were kept by the forward pass, so nothing is summed again
+			Layer.scaleByDerivative(l.getFunction(), l.getSums(), outs, 0, err, 0, err.length);
+		}
+		
+		mse /= error[layers - 1].length;
+		
+		if (optimizer != null) {
+			long start = Telemetry.start();
+			applyOptimizer();
+			net.weightsChanged();
+			Telemetry.optimizerStep(start);
+			return (mse);
+		}
+		
+		// Pass 2: calculate delta weight and adjust
+		for (int layer = 0; layer < layers; layer++) {
+			Layer l = net.getDenseLayer(layer);
+			float[] ws = l.getWeights();
+			float[] bs = l.getBiases();
+			float[] ins = layer == 0 ? net.getInputs() : net.getDenseLayer(layer - 1).getOutputs();
+			int cols = l.getNumInputs();
+			
+			for (int i = 0; i < error[layer].length; i++) {
+				float scale = learnRate * error[layer][i];
+				
+				if (layer == 0) {
+					// Each input neuron sees only its own input
+					Kernels.momentumStep(ws, change[layer], i, ins, i, scale, momentum, 1);
+				} else {
+					Kernels.momentumStep(ws, change[layer], i * cols, ins, 0, scale, momentum, cols);
+				}
+				
+				bs[i] += error[layer][i] * learnRate;
+			}
+		}
+		
+		net.weightsChanged();
+		return (mse);
+	}
+	
+	// Private methods
+	/**
+	 * Adjusts every weight and bias with the optimizer, from the errors of the
+	 * last sample.
+	 */
+	private void applyOptimizer() {
+		optimizer.beginStep();
+		
+		for (int layer = 0; layer < error.length; layer++) {
+			Layer l = net.getDenseLayer(layer);
+			float[] ws = l.getWeights();
+			float[] ins = layer == 0 ? net.getInputs() : net.getDenseLayer(layer - 1).getOutputs();
+			float[] err = error[layer];
+			int cols = l.getNumInputs();
+			
+			for (int i = 0; i < err.length; i++) {
+				if (layer == 0) {
+					// Each input neuron sees only its own input
+					gradRow[0] = err[i] * ins[i];
+				} else {
+					for (int w = 0; w < cols; w++) {
+						gradRow[w] = err[i] * ins[w];
+					}
+				}
+				
+				optimizer.apply(ws, i * cols, gradRow, 0, weightBase[layer] + i * cols, cols);
+			}
+			
+			optimizer.apply(l.getBiases(), 0, err, 0, biasBase[layer], err.length);
+		}
+	}
+	
+	/**
+	 * Counts a finished epoch, and hands a checkpoint to the Checkpointer if one
+	 * is due.
+	 */
+	private void endEpoch(float err, long samples, long start) {
+		Telemetry.epoch(samples, err, start);
+		epoch++;
+		lastError = err;
+		
+		Checkpointer cp = checkpointer;
+		if (cp != null && epoch % checkpointEvery == 0) {
+			cp.submit(capture(cp.recycle()));
+		}
+	}
+	
+	/**
+	 * Copies the state into <code>cp</code>, or into a new checkpoint if it is
+	 * null or does not fit.
+	 */
+	private Checkpoint capture(Checkpoint cp) {
+		int layers = net.getNumLayers();
+		float[][] state = optimizer == null ? change : optimizer.getState();
+		
+		if (cp == null || !fits(cp)) {
+			int[] sizes = new int[layers];
+			int[] weightCounts = new int[layers];
+			for (int l = 0; l < layers; l++) {
+				sizes[l] = net.getLayerSize(l);
+				weightCounts[l] = net.getDenseLayer(l).getWeights().length;
+			}
+			
+			int[] lengths = new int[state.length];
+			for (int i = 0; i < state.length; i++) {
+				lengths[i] = state[i].length;
+			}
+			
+			cp = new Checkpoint(sizes, weightCounts, optimizer == null, lengths);
+		}
+		
+		for (int l = 0; l < layers; l++) {
+			Layer layer = net.getDenseLayer(l);
+			System.arraycopy(layer.getWeights(), 0, cp.weights[l], 0, cp.weights[l].length);
+			System.arraycopy(layer.getBiases(), 0, cp.biases[l], 0, cp.biases[l].length);
+		}
+		
+		for (int i = 0; i < state.length; i++) {
+			System.arraycopy(state[i], 0, cp.state[i], 0, state[i].length);
+		}
+		
+		cp.epoch = epoch;
+		cp.lastError = lastError;
+		cp.step = optimizer == null ? 0 : optimizer.getStep();
+		return (cp);
+	}
+	
+	/**
+	 * Returns whether a checkpoint has the shape of this net and its state.
+	 */
+	private boolean fits(Checkpoint cp) {
+		float[][] state = optimizer == null ? change : optimizer.getState();
+		if (cp.momentum != (optimizer == null) || cp.sizes.length != net.getNumLayers() ||
+			cp.state.length != state.length) {
+			return (false);
+		}
+		
+		for (int l = 0; l < cp.sizes.length; l++) {
+			if (cp.sizes[l] != net.getLayerSize(l) ||
+				cp.weights[l].length != net.getDenseLayer(l).getWeights().length) {
+				return (false);
+			}
+		}
+		
+		for (int i = 0; i < state.length; i++) {
+			if (cp.state[i].length != state[i].length) {
+				return (false);
+			}
+		}
+		
+		return (true);
+	}
+	
+	private void ensureShards(int count, int maxRows) {
+		if (shards == null || shards.length < count || shards[0].capacity < maxRows) {
+			int cap = shards == null ? maxRows : Math.max(maxRows, shards[0].capacity);
+			shards = new Shard[Math.max(count, shards == null ? 0 : shards.length)];
+			for (int k = 0; k < shards.length; k++) {
+				shards[k] = new Shard(cap);
+			}
+		}
+		
+		for (int k = 0; k < count; k++) {
+			shards[k].index = k;
+			shards[k].count = count;
+		}
+	}
+	
+	/**
+	 * Runs the first <code>count</code> shards, in parallel when there is a pool.
+	 */
+	private void run(ForkJoinPool pool, int count, boolean apply) {
+		for (int k = 0; k < count; k++) {
+			shards[k].apply = apply;
+		}
+		
+		if (pool == null || count == 1) {
+			for (int k = 0; k < count; k++) {
+				shards[k].call();
+			}
+			
+			return;
+		}
+		
+		List<Shard> tasks = new ArrayList<Shard>(Arrays.asList(shards).subList(0, count));
+		try {
+			for (Future<Void> f : pool.invokeAll(tasks)) {
+				f.get();
+			}
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("A training shard failed", e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while training", e);
+		}
+	}
+	
+	/**
+	 * The samples of one thread in a batch, with their activations and the sum of
+	 * their gradients.
+	 */
+	private final class Shard implements Callable<Void> {
+		private final int capacity;
+		private final float[] input;
+		private final float[][] sums;
+		private final float[][] acts;
+		private final float[][] error;
+		private final float[][] gradient;
+		private final float[][] biasGradient;
+		
+		private float[][] ins;
+		private float[][] targets;
+		private float[] flatIns;
+		private float[] flatTargets;
+		private int lo;
+		private int hi;
+		private int index;
+		private int count;
+		private boolean apply;
+		private float scale;
+		private float mse;
+		
+		Shard(int capacity) {
+			int layers = net.getNumLayers();
+			this.capacity = capacity;
+			input = new float[capacity * net.getLayerSize(0)];
+			sums = new float[layers][];
+			acts = new float[layers][];
+			error = new float[layers][];
+			gradient = new float[layers][];
+			biasGradient = new float[layers][];
+			
+			for (int l = 0; l < layers; l++) {
+				sums[l] = new float[capacity * net.getLayerSize(l)];
+				acts[l] = new float[capacity * net.getLayerSize(l)];
+				error[l] = new float[net.getLayerSize(l)];
+				gradient[l] = new float[net.getDenseLayer(l).getWeights().length];
+				biasGradient[l] = new float[net.getLayerSize(l)];
+			}
+		}
+		
+		void assign(float[][] ins, float[][] targets, int lo, int hi) {
+			this.ins = ins;
+			this.targets = targets;
+			this.flatIns = null;
+			this.flatTargets = null;
+			this.lo = lo;
+			this.hi = hi;
+		}
+		
+		void assign(float[] ins, float[] targets, int lo, int hi) {
+			this.ins = null;
+			this.targets = null;
+			this.flatIns = ins;
+			this.flatTargets = targets;
+			this.lo = lo;
+			this.hi = hi;
+		}
+		
+		@Override
+		public Void call() {
+			if (apply) {
+				apply();
+			} else {
+				accumulate();
+			}
+			
+			return null;
+		}
+		
+		/**
+		 * Evaluates the shard's samples and sums their gradients.
+		 */
+		private void accumulate() {
+			int layers = net.getNumLayers();
+			int rows = hi - lo;
+			int n0 = net.getLayerSize(0);
+			
+			if (ins == null) {
+				System.arraycopy(flatIns, lo * n0, input, 0, rows * n0);
+			} else {
+				for (int r = 0; r < rows; r++) {
+					if (ins[lo + r].length != n0) {
+						throw new IllegalArgumentException("Invalid value length!");
+					}
+					
+					System.arraycopy(ins[lo + r], 0, input, r * n0, n0);
+				}
+			}
+			
+			net.getDenseLayer(0).updateEachBatch(input, sums[0], acts[0], rows);
+			for (int l = 1; l < layers; l++) {
+				net.getDenseLayer(l).updateBatch(acts[l - 1], sums[l], acts[l], rows);
+			}
+			
+			for (int l = 0; l < layers; l++) {
+				Arrays.fill(gradient[l], 0);
+				Arrays.fill(biasGradient[l], 0);
+			}
+			
+			mse = 0;
+			int nOut = error[layers - 1].length;
+			for (int r = 0; r < rows; r++) {
+				float[] target = targets == null ? flatTargets : targets[lo + r];
+				int t = targets == null ? (lo + r) * nOut : 0;
+				float sampleMse = 0;
+				
+				for (int layer = layers - 1; layer >= 0; layer--) {
+					float[] outs = acts[layer];
+					float[] err = error[layer];
+					int o = r * err.length;
+					
+					if (layer == layers - 1) {
+						for (int i = 0; i < err.length; i++) {
+							err[i] = target[t + i] - outs[o + i];
+							sampleMse += err[i] * err[i];
+						}
+					} else {
+						float[] ws = net.getDenseLayer(layer + 1).getWeights();
+						float[] nextErr = error[layer + 1];
+						Arrays.fill(err, 0);
+						
+						for (int j = 0; j < nextErr.length; j++) {
+							Kernels.axpy(nextErr[j], ws, j * err.length, err, 0, err.length);
+						}
+					}
+					
+					Layer.scaleByDerivative(net.getDenseLayer(layer).getFunction(), sums[layer], outs, o, err, 0, err.length);
+				}
+				
+				mse += sampleMse / error[layers - 1].length;
+				
+				for (int layer = 0; layer < layers; layer++) {
+					float[] err = error[layer];
+					float[] g = gradient[layer];
+					
+					if (layer == 0) {
+						// Each input neuron sees only its own input
+						for (int i = 0; i < err.length; i++) {
+							g[i] += err[i] * input[r * n0 + i];
+						}
+					} else {
+						int cols = error[layer - 1].length;
+						for (int i = 0; i < err.length; i++) {
+							Kernels.axpy(err[i], acts[layer - 1], r * cols, g, i * cols, cols);
+						}
+					}
+					
+					for (int i = 0; i < err.length; i++) {
+						biasGradient[layer][i] += err[i];
+					}
+				}
+			}
+		}
+		
+		/**
+		 * Adds up every shard's gradients over this shard's slice of each layer, and
+		 * adjusts that slice of the weights and biases.
+		 */
+		private void apply() {
+			for (int layer = 0; layer < gradient.length; layer++) {
+				float[] ws = net.getDenseLayer(layer).getWeights();
+				float[] bs = net.getDenseLayer(layer).getBiases();
+				
+				int from = (int) ((long) index * ws.length / count);
+				int to = (int) ((long) (index + 1) * ws.length / count);
+				for (int i = from; i < to; i++) {
+					float g = 0;
+					for (int k = 0; k < count; k++) {
+						g += shards[k].gradient[layer][i];
+					}
+					
+					if (optimizer == null) {
+						float[] ch = change[layer];
+						ch[i] = (scale * g) + (ch[i] * momentum);
+						ws[i] += ch[i];
+					} else {
+						// No other shard reads this slice of this shard's gradient
+						gradient[layer][i] = g * scale;
+					}
+				}
+				
+				if (optimizer != null) {
+					optimizer.apply(ws, from, gradient[layer], from, weightBase[layer] + from, to - from);
+				}
+				
+				from = (int) ((long) index * bs.length / count);
+				to = (int) ((long) (index + 1) * bs.length / count);
+				for (int i = from; i < to; i++) {
+					float g = 0;
+					for (int k = 0; k < count; k++) {
+						g += shards[k].biasGradient[layer][i];
+					}
+					
+					if (optimizer == null) {
+						bs[i] += g * scale;
+					} else {
+						biasGradient[layer][i] = g * scale;
+					}
+				}
+				
+				if (optimizer != null) {
+					optimizer.apply(bs, from, biasGradient[layer], from, biasBase[layer] + from, to - from);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,293 @@
+package ann.jn.teach;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.CRC32;
+
+/**
+ * <p>
+ * The whole state of a training run at the end of an epoch: the weights and biases of the
+ * net, the momentum or {@link Optimizer} state of the {@link BackPropagator}, the number of
+ * epochs trained and the last error.  A BackPropagator that {@link BackPropagator#resume(Checkpoint)
+ * resumes} from a Checkpoint continues as if the run had never stopped.
+ * </p>
+ * <p>
+ * A checkpoint file holds, as little-endian values:
+ * </p>
+ * <pre>
+ * int    magic, the bytes "NCKP"
+ * int    version, currently {@value #VERSION}
+ * int    number of layers
+ * int    number of state arrays per parameter, or -1 for classic momentum
+ * int    epochs trained
+ * float  last error
+ * long   steps taken by the optimizer
+ * for each layer:
+ *   int    number of neurons
+ *   int    number of weights
+ * for each layer:
+ *   floats weights, then biases
+ * floats the momentum change of every weight, layer by layer, or every optimizer state array
+ * int    CRC-32 of everything before it
+ * </pre>
+ */
+public final class Checkpoint {
+	/**
+	 * The bytes "NCKP" read as a little-endian int.
+	 */
+	public static final int MAGIC = 0x504B434E;
+
+	/**
+	 * The newest version of the format, which is the version written.
+	 */
+	public static final int VERSION = 1;
+
+	final int[] sizes;
+	final float[][] weights;
+	final float[][] biases;
+	final float[][] state;
+	final boolean momentum;
+	int epoch;
+	float lastError;
+	long step;
+
+	/**
+	 * Creates an empty checkpoint with room for the given state.
+	 * @param sizes the number of neurons of each layer
+	 * @param weightCounts the number of weights of each layer
+	 * @param momentum whether the state is one change per weight, rather than optimizer state
+	 * @param stateLengths the length of each state array
+	 */
+	Checkpoint(int[] sizes, int[] weightCounts, boolean momentum, int[] stateLengths) {
+		this.sizes = sizes.clone();
+		this.momentum = momentum;
+		weights = new float[sizes.length][];
+		biases = new float[sizes.length][];
+		for (int i = 0; i < sizes.length; i++) {
+			weights[i] = new float[weightCounts[i]];
+			biases[i] = new float[sizes[i]];
+		}
+
+		state = new float[stateLengths.length][];
+		for (int i = 0; i < state.length; i++) {
+			state[i] = new float[stateLengths[i]];
+		}
+	}
+
+	/**
+	 * Returns the number of epochs trained when this checkpoint was taken.
+	 * @return the epoch
+	 */
+	public int getEpoch() {
+		return epoch;
+	}
+
+	/**
+	 * Returns the mean error of the last epoch before this checkpoint was taken.
+	 * @return the error
+	 */
+	public float getLastError() {
+		return lastError;
+	}
+
+	/**
+	 * Returns the number of steps the optimizer had taken, or 0 for classic momentum.
+	 * @return the step
+	 */
+	public long getStep() {
+		return step;
+	}
+
+	/**
+	 * Returns the number of layers of the net.
+	 * @return the number of layers
+	 */
+	public int getNumLayers() {
+		return sizes.length;
+	}
+
+	/**
+	 * Returns the number of neurons in the given layer.
+	 * @param layer the layer
+	 * @return the number of neurons
+	 */
+	public int getLayerSize(int layer) {
+		return sizes[layer];
+	}
+
+	/**
+	 * Writes this checkpoint to <code>file</code>.  The file is written beside its
+	 * destination and forced to disk first, and then moved into place, so that a crash
+	 * leaves either the old checkpoint or the new one, never a partly written one.
+	 * @param file the destination
+	 * @throws IOException if the file cannot be written
+	 */
+	public void write(File file) throws IOException {
+		File tmp = new File(file.getPath() + ".tmp");
+
+		try (RandomAccessFile raf = new RandomAccessFile(tmp, "rw")) {
+			raf.setLength(0);
+			FileChannel ch = raf.getChannel();
+			ByteBuffer buf = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+			CRC32 crc = new CRC32();
+
+			buf.putInt(MAGIC).putInt(VERSION).putInt(sizes.length).putInt(momentum ? -1 : state.length);
+			buf.putInt(epoch).putFloat(lastError).putLong(step);
+			for (int i = 0; i < sizes.length; i++) {
+				buf.putInt(sizes[i]).putInt(weights[i].length);
+			}
+
+			for (int i = 0; i < sizes.length; i++) {
+				putFloats(ch, buf, crc, weights[i]);
+				putFloats(ch, buf, crc, biases[i]);
+			}
+
+			for (int i = 0; i < state.length; i++) {
+				putFloats(ch, buf, crc, state[i]);
+			}
+
+			if (buf.remaining() < 4) {
+				flush(ch, buf, crc);
+			}
+
+			crc.update(buf.array(), 0, buf.position());
+			buf.putInt((int) crc.getValue());
+			buf.flip();
+			while (buf.hasRemaining()) {
+				ch.write(buf);
+			}
+
+			ch.force(true);
+		}
+
+		try {
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	/**
+	 * Reads a checkpoint file, checking it against its checksum.
+	 * @param file the checkpoint file
+	 * @return the checkpoint
+	 * @throws IOException if the file cannot be read or is not a valid checkpoint
+	 */
+	public static Checkpoint read(File file) throws IOException {
+		byte[] bytes = Files.readAllBytes(file.toPath());
+		ByteBuffer buf = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+
+		try {
+			if (buf.getInt() != MAGIC) {
+				throw new IOException("Not a checkpoint file");
+			}
+
+			int version = buf.getInt();
+			int layers = buf.getInt();
+			int slots = buf.getInt();
+			if (version < 1 || version > VERSION) {
+				throw new IOException("Unsupported checkpoint version " + version);
+			} else if (layers < 2 || layers > 1 << 16 || slots < -1 || slots > 64) {
+				throw new IOException("The checkpoint header is corrupt");
+			}
+
+			int epoch = buf.getInt();
+			float lastError = buf.getFloat();
+			long step = buf.getLong();
+
+			int[] sizes = new int[layers];
+			int[] weightCounts = new int[layers];
+			long params = 0;
+			for (int i = 0; i < layers; i++) {
+				sizes[i] = buf.getInt();
+				weightCounts[i] = buf.getInt();
+				if (sizes[i] < 1 || weightCounts[i] < 0) {
+					throw new IOException("The checkpoint header is corrupt");
+				}
+
+				params += sizes[i] + (long) weightCounts[i];
+			}
+
+			// Check the size before allocating anything, in case the header is corrupt
+			long expected = buf.position() + 4 * (params + (slots < 0 ? params - sum(sizes) : slots * params)) + 4;
+			if (expected != bytes.length) {
+				throw new IOException("The checkpoint is truncated or corrupt");
+			}
+
+			CRC32 crc = new CRC32();
+			crc.update(bytes, 0, bytes.length - 4);
+			if (ByteBuffer.wrap(bytes, bytes.length - 4, 4).order(ByteOrder.LITTLE_ENDIAN).getInt() != (int) crc.getValue()) {
+				throw new IOException("The checkpoint is corrupt");
+			}
+
+			int[] lengths;
+			if (slots < 0) {
+				lengths = weightCounts;
+			} else {
+				lengths = new int[slots];
+				for (int i = 0; i < slots; i++) {
+					lengths[i] = (int) params;
+				}
+			}
+
+			Checkpoint cp = new Checkpoint(sizes, weightCounts, slots < 0, lengths);
+			cp.epoch = epoch;
+			cp.lastError = lastError;
+			cp.step = step;
+
+			for (int i = 0; i < layers; i++) {
+				buf.asFloatBuffer().get(cp.weights[i]);
+				buf.position(buf.position() + 4 * cp.weights[i].length);
+				buf.asFloatBuffer().get(cp.biases[i]);
+				buf.position(buf.position() + 4 * cp.biases[i].length);
+			}
+
+			for (int i = 0; i < cp.state.length; i++) {
+				buf.asFloatBuffer().get(cp.state[i]);
+				buf.position(buf.position() + 4 * cp.state[i].length);
+			}
+
+			return cp;
+		} catch (BufferUnderflowException e) {
+			throw new IOException("Unexpected end of checkpoint");
+		}
+	}
+
+	// Private methods
+	private static long sum(int[] values) {
+		long s = 0;
+		for (int i = 0; i < values.length; i++) {
+			s += values[i];
+		}
+
+		return s;
+	}
+
+	private static void putFloats(FileChannel ch, ByteBuffer buf, CRC32 crc, float[] values) throws IOException {
+		for (int i = 0; i < values.length; i++) {
+			if (buf.remaining() < 4) {
+				flush(ch, buf, crc);
+			}
+
+			buf.putFloat(values[i]);
+		}
+	}
+
+	private static void flush(FileChannel ch, ByteBuffer buf, CRC32 crc) throws IOException {
+		crc.update(buf.array(), 0, buf.position());
+		buf.flip();
+		while (buf.hasRemaining()) {
+			ch.write(buf);
+		}
+
+		buf.clear();
+	}
+}
@@ -0,0 +1,182 @@
+package ann.jn.teach;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * <p>
+ * Writes {@link Checkpoint}s to a file on a background thread, so that training only stops
+ * long enough to copy its state.
+ * </p>
+ * <p>
+ * A {@link BackPropagator} given a Checkpointer with
+ * {@link BackPropagator#setCheckpointer(Checkpointer, int)} copies its state into a
+ * Checkpoint every few epochs and hands it to {@link #submit(Checkpoint)}.  Only the newest
+ * checkpoint matters, so if training hands over a checkpoint while an older one is still
+ * waiting to be written, the older one is dropped rather than queued.  Written checkpoints are
+ * reused for later copies, so that checkpointing does not allocate once it is running.
+ * </p>
+ * <p>
+ * Each write replaces the file atomically, see {@link Checkpoint#write(File)}.  A failed write
+ * does not stop training; until a later write succeeds, the error is thrown by
+ * {@link #flush()} and {@link #close()} and returned by {@link #getFailure()}.
+ * </p>
+ */
+public class Checkpointer implements Closeable {
+	private final File file;
+
+	private Checkpoint pending;
+	private Checkpoint spare;
+	private boolean writing;
+	private boolean closed;
+	private IOException failure;
+	private int written;
+
+	/**
+	 * Creates a Checkpointer that writes to the given file, and starts its thread.
+	 * @param file the checkpoint file
+	 */
+	public Checkpointer(File file) {
+		this.file = file;
+
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				writeLoop();
+			}
+		}, "Checkpointer thread");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Returns the file that checkpoints are written to.
+	 * @return the file
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Hands over a checkpoint to be written.  It must not be changed afterwards.
+	 * @param cp the checkpoint
+	 */
+	public synchronized void submit(Checkpoint cp) {
+		if (closed) {
+			throw new IllegalStateException("The Checkpointer has been closed");
+		}
+
+		if (pending != null) {
+			spare = pending;
+		}
+
+		pending = cp;
+		notifyAll();
+	}
+
+	/**
+	 * Waits until every checkpoint handed over has been written.
+	 * @throws IOException if a write has failed
+	 */
+	public synchronized void flush() throws IOException {
+		try {
+			while (pending != null || writing) {
+				wait();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for a checkpoint", e);
+		}
+
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	/**
+	 * Returns the error of the last write if it failed, or null if it succeeded.
+	 * @return the error
+	 */
+	public synchronized IOException getFailure() {
+		return failure;
+	}
+
+	/**
+	 * Returns the number of checkpoints written so far.
+	 * @return the number written
+	 */
+	public synchronized int getWritten() {
+		return written;
+	}
+
+	/**
+	 * Writes the last checkpoint handed over, if it has not been written yet, and stops the
+	 * thread.
+	 * @throws IOException if a write has failed
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			flush();
+		} finally {
+			synchronized (this) {
+				closed = true;
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Returns a written checkpoint to be filled again, or null if there is none.
+	 */
+	synchronized Checkpoint recycle() {
+		Checkpoint cp = spare;
+		spare = null;
+		return cp;
+	}
+
+	// Private methods
+	private void writeLoop() {
+		while (true) {
+			Checkpoint cp;
+			synchronized (this) {
+				try {
+					while (pending == null && !closed) {
+						wait();
+					}
+				} catch (InterruptedException e) {
+					return;
+				}
+
+				if (pending == null) {
+					return;
+				}
+
+				cp = pending;
+				pending = null;
+				writing = true;
+			}
+
+			IOException error = null;
+			try {
+				cp.write(file);
+			} catch (IOException e) {
+				error = e;
+			}
+
+			synchronized (this) {
+				writing = false;
+				if (error == null) {
+					failure = null;
+					written++;
+				} else {
+					failure = error;
+				}
+
+				spare = cp;
+				notifyAll();
+			}
+		}
+	}
+}
@@ -0,0 +1,198 @@
+package ann.jn.teach;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+import ann.jn.neuroNet.DirectMemory;
+import ann.jn.neuroNet.DirectNet;
+import ann.jn.neuroNet.Layer;
+
+/**
+ * <p>
+ * Trains a {@link DirectNet} by back propagation with momentum, like {@link BackPropagator}
+ * does for a {@link ann.jn.neuroNet.NeuralNet}.
+ * </p>
+ * <p>
+ * The weights are read and adjusted where they are in off-heap memory, and the momentum
+ * of every weight is kept off-heap as well.  That memory is released by {@link #close()}.
+ * </p>
+ */
+public class DirectBackPropagator implements Closeable {
+	private DirectNet net;
+	private float learnRate;
+	private float momentum;
+	private ByteBuffer[] changeBlocks;
+	private FloatBuffer[] change;
+	private FloatBuffer[] weights;
+	private FloatBuffer[] biases;
+	private FloatBuffer[] sums;
+	private FloatBuffer[] outs;
+	private FloatBuffer inputs;
+	private float[][] error;
+	private float[] layerSums;
+	private float[] layerOuts;
+	private float[] outputs;
+
+	private float lastError;
+	private int lastIter;
+
+	public DirectBackPropagator(DirectNet nn, float learn, float mom) {
+		net = nn;
+		learnRate = learn;
+		momentum = mom;
+
+		int layers = net.getNumLayers();
+		changeBlocks = new ByteBuffer[layers];
+		change = new FloatBuffer[layers];
+		error = new float[layers][];
+
+		// Views of the net's buffers, made once so that each sample allocates nothing
+		weights = new FloatBuffer[layers];
+		biases = new FloatBuffer[layers];
+		sums = new FloatBuffer[layers];
+		outs = new FloatBuffer[layers];
+		inputs = net.getInputBuffer();
+
+		int width = 0;
+		for (int i = 0; i < layers; i++) {
+			weights[i] = net.getWeightBuffer(i);
+			biases[i] = net.getBiasBuffer(i);
+			sums[i] = net.getSumBuffer(i);
+			outs[i] = net.getOutputBuffer(i);
+
+			int n = weights[i].capacity();
+			changeBlocks[i] = DirectMemory.allocate(n);
+			change[i] = changeBlocks[i].asFloatBuffer();
+			error[i] = new float[net.getLayerSize(i)];
+			width = Math.max(width, net.getLayerSize(i));
+		}
+
+		// Each layer's sums and outputs are copied to the heap for its activation's derivative
+		layerSums = new float[width];
+		layerOuts = new float[width];
+
+		outputs = new float[net.getLayerSize(layers - 1)];
+	}
+
+	public int getLastIteration() {
+		return (lastIter);
+	}
+
+	public float getLastError() {
+		return (lastError);
+	}
+
+	public void train(float errMin, int iterMax, float[][] ins, float[][] outs) {
+		if (ins == null || outs == null || ins.length != outs.length ||
+			ins[0].length != net.getLayerSize(0) ||
+			outs[0].length != net.getLayerSize(net.getNumLayers() - 1)) {
+			throw new IllegalArgumentException();
+		}
+
+		float err = 1;
+		int i = 0;
+		for (; i < iterMax && err > errMin; i++) {
+			float sum = 0;
+			for (int j = 0; j < ins.length; j++) {
+				net.update(ins[j], outputs);
+				sum += Math.abs(propagate(outs[j]));
+			}
+
+			err = sum / ins.length;
+		}
+
+		lastError = err;
+		lastIter = i;
+	}
+
+	public float propagate(float[] target) {
+		int layers = net.getNumLayers();
+		if (target.length != net.getLayerSize(layers - 1)) {
+			throw new IllegalArgumentException("target length doesn't match output nodes");
+		} else if (change == null) {
+			throw new IllegalStateException("The DirectBackPropagator has been closed");
+		} else if (net.isClosed()) {
+			throw new IllegalStateException("The DirectNet has been closed");
+		}
+
+		// Evaluate the cost
+		float mse = 0;
+		for (int layer = layers - 1; layer >= 0; layer--) {
+			FloatBuffer out = outs[layer];
+			FloatBuffer sum = sums[layer];
+			float[] err = error[layer];
+
+			if (layer == layers - 1) {
+				for (int i = 0; i < err.length; i++) {
+					err[i] = target[i] - out.get(i);
+					mse += err[i] * err[i];
+				}
+			} else {
+				// Each row of the next layer's weights spreads its error back over this layer
+				FloatBuffer ws = weights[layer + 1];
+				float[] nextErr = error[layer + 1];
+				Arrays.fill(err, 0);
+
+				for (int j = 0; j < nextErr.length; j++) {
+					float e = nextErr[j];
+					for (int i = 0, row = j * err.length; i < err.length; i++) {
+						err[i] += e * ws.get(row + i);
+					}
+				}
+			}
+
+			for (int i = 0; i < err.length; i++) {
+				layerSums[i] = sum.get(i);
+				layerOuts[i] = out.get(i);
+			}
+
+			Layer.scaleByDerivative(net.getActivationFunction(layer), layerSums, layerOuts, 0, err, 0, err.length);
+		}
+
+		mse /= error[layers - 1].length;
+
+		// Pass 2: calculate delta weight and adjust
+		for (int layer = 0; layer < layers; layer++) {
+			FloatBuffer ws = weights[layer];
+			FloatBuffer bs = biases[layer];
+			FloatBuffer ins = layer == 0 ? inputs : outs[layer - 1];
+			FloatBuffer ch = change[layer];
+			int cols = layer == 0 ? 1 : net.getLayerSize(layer - 1);
+
+			for (int i = 0; i < error[layer].length; i++) {
+				float scale = learnRate * error[layer][i];
+
+				for (int w = 0, row = i * cols; w < cols; w++) {
+					// Each input neuron sees only its own input
+					float input = layer == 0 ? ins.get(i) : ins.get(w);
+					float c = (scale * input) + (ch.get(row + w) * momentum);
+					ch.put(row + w, c);
+					ws.put(row + w, ws.get(row + w) + c);
+				}
+
+				bs.put(i, bs.get(i) + error[layer][i] * learnRate);
+			}
+		}
+
+		return (mse);
+	}
+
+	/**
+	 * Frees the off-heap momentum of this teacher.  The {@link DirectNet} is not closed.
+	 */
+	@Override
+	public void close() {
+		if (change == null) {
+			return;
+		}
+
+		for (int i = 0; i < changeBlocks.length; i++) {
+			DirectMemory.free(changeBlocks[i]);
+		}
+
+		changeBlocks = null;
+		change = null;
+	}
+}
@@ -0,0 +1,273 @@
+package ann.jn.teach;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import ann.jn.neuroNet.Kernels;
+import ann.jn.neuroNet.Layer;
+import ann.jn.neuroNet.NeuralNet;
+import ann.jn.neuroNet.Telemetry;
+
+/**
+ * <p>
+ * Trains a {@link NeuralNet} by stochastic gradient descent on several threads at once, with
+ * no locking at all ("Hogwild").
+ * </p>
+ * <p>
+ * Each thread of the pool takes its share of the samples and, for each one, evaluates the net
+ * into buffers of its own, works out the errors like {@link BackPropagator#propagate(float[])}
+ * and adds its step straight into the shared weights and biases with plain writes.  Threads
+ * may read weights another thread is in the middle of changing, and two threads stepping the
+ * same weight at once may lose one of the steps; in return the threads never wait for each
+ * other within an epoch.  Every input passes through an activated input neuron, whose output
+ * is rarely zero even for an input of zero, so each sample steps every weight of the layers
+ * after the input layer, and collisions there are common.  Small learning rates keep the
+ * steps lost to them small.  Only the input layer, with one weight per input, is stepped
+ * sparsely: the weights of inputs that are zero are left alone.
+ * </p>
+ * <p>
+ * The net's own inputs, outputs and lock are not used, so the net must not be evaluated or
+ * trained by anything else while a HogwildTrainer is training it.  Results depend on how the
+ * threads are scheduled; use {@link BackPropagator#propagateBatch(float[][], float[][], int, int)}
+ * for repeatable parallel training.
+ * </p>
+ */
+public class HogwildTrainer {
+	private final NeuralNet net;
+	private final float learnRate;
+	private final ForkJoinPool pool;
+	private final Worker[] workers;
+	private final Random random;
+
+	private int[] order;
+	private float lastError;
+	private int lastIter;
+
+	/**
+	 * Creates a HogwildTrainer that trains on every thread of the given pool.
+	 * @param nn the net to train
+	 * @param learn the learning rate
+	 * @param pool the pool to train on
+	 */
+	public HogwildTrainer(NeuralNet nn, float learn, ForkJoinPool pool) {
+		this(nn, learn, pool, System.nanoTime());
+	}
+
+	/**
+	 * Creates a HogwildTrainer that trains on every thread of the given pool, shuffling the
+	 * samples with the given seed.
+	 * @param nn the net to train
+	 * @param learn the learning rate
+	 * @param pool the pool to train on
+	 * @param seed the seed of the shuffles
+	 */
+	public HogwildTrainer(NeuralNet nn, float learn, ForkJoinPool pool, long seed) {
+		if (!(learn > 0)) {
+			throw new IllegalArgumentException("The learning rate must be positive");
+		}
+
+		this.net = nn;
+		this.learnRate = learn;
+		this.pool = pool;
+		this.random = new Random(seed);
+
+		workers = new Worker[pool.getParallelism()];
+		for (int i = 0; i < workers.length; i++) {
+			workers[i] = new Worker(i, workers.length);
+		}
+	}
+
+	/**
+	 * Returns the number of threads that train at once.
+	 * @return the number of threads
+	 */
+	public int getNumThreads() {
+		return workers.length;
+	}
+
+	public int getLastIteration() {
+		return (lastIter);
+	}
+
+	public float getLastError() {
+		return (lastError);
+	}
+
+	/**
+	 * Trains on the given samples until the mean error of an epoch falls to
+	 * <code>errMin</code> or <code>iterMax</code> epochs have passed.  The samples are
+	 * shuffled each epoch and dealt out among the threads.
+	 * @param errMin the error to stop at
+	 * @param iterMax the most epochs
+	 * @param ins the inputs of each sample
+	 * @param outs the target outputs of each sample
+	 */
+	public void train(float errMin, int iterMax, float[][] ins, float[][] outs) {
+		if (ins == null || outs == null || ins.length == 0 || ins.length != outs.length ||
+			ins[0].length != net.getLayerSize(0) ||
+			outs[0].length != net.getLayerSize(net.getNumLayers() - 1)) {
+			throw new IllegalArgumentException();
+		}
+
+		if (order == null || order.length != ins.length) {
+			order = new int[ins.length];
+			for (int i = 0; i < order.length; i++) {
+				order[i] = i;
+			}
+		}
+
+		for (int k = 0; k < workers.length; k++) {
+			workers[k].ins = ins;
+			workers[k].outs = outs;
+		}
+
+		List<Worker> tasks = new ArrayList<Worker>(Arrays.asList(workers));
+		float err = 1;
+		int i = 0;
+		try {
+			for (; i < iterMax && err > errMin; i++) {
+				long start = Telemetry.start();
+				for (int j = order.length - 1; j > 0; j--) {
+					int k = random.nextInt(j + 1);
+					int t = order[j];
+					order[j] = order[k];
+					order[k] = t;
+				}
+
+				// Finishing the tasks makes every thread's writes visible to the next epoch
+				float sum = 0;
+				for (Future<Float> f : pool.invokeAll(tasks)) {
+					sum += f.get();
+				}
+
+				err = sum / ins.length;
+				Telemetry.epoch(ins.length, err, start);
+			}
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("A training thread failed", e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while training", e);
+		} finally {
+			for (int k = 0; k < workers.length; k++) {
+				workers[k].ins = null;
+				workers[k].outs = null;
+			}
+
+			net.weightsChanged();
+		}
+
+		lastError = err;
+		lastIter = i;
+	}
+
+	/**
+	 * One thread's share of an epoch, with its own activations and errors.
+	 */
+	private final class Worker implements Callable<Float> {
+		private final int index;
+		private final int count;
+		private final float[][] sums;
+		private final float[][] acts;
+		private final float[][] error;
+
+		private float[][] ins;
+		private float[][] outs;
+
+		Worker(int index, int count) {
+			int layers = net.getNumLayers();
+			this.index = index;
+			this.count = count;
+			sums = new float[layers][];
+			acts = new float[layers][];
+			error = new float[layers][];
+
+			for (int l = 0; l < layers; l++) {
+				sums[l] = new float[net.getLayerSize(l)];
+				acts[l] = new float[net.getLayerSize(l)];
+				error[l] = new float[net.getLayerSize(l)];
+			}
+		}
+
+		/**
+		 * Trains on every <code>count</code>th sample of the shuffled order.
+		 * @return the sum of the samples' mean squared errors
+		 */
+		@Override
+		public Float call() {
+			float sum = 0;
+			for (int j = index; j < order.length; j += count) {
+				sum += step(ins[order[j]], outs[order[j]]);
+			}
+
+			return sum;
+		}
+
+		private float step(float[] in, float[] target) {
+			int layers = net.getNumLayers();
+
+			net.getDenseLayer(0).updateEachBatch(in, sums[0], acts[0], 1);
+			for (int l = 1; l < layers; l++) {
+				net.getDenseLayer(l).updateBatch(acts[l - 1], sums[l], acts[l], 1);
+			}
+
+			float mse = 0;
+			for (int layer = layers - 1; layer >= 0; layer--) {
+				float[] outs = acts[layer];
+				float[] err = error[layer];
+
+				if (layer == layers - 1) {
+					for (int i = 0; i < err.length; i++) {
+						err[i] = target[i] - outs[i];
+						mse += err[i] * err[i];
+					}
+				} else {
+					float[] ws = net.getDenseLayer(layer + 1).getWeights();
+					float[] nextErr = error[layer + 1];
+					Arrays.fill(err, 0);
+
+					for (int j = 0; j < nextErr.length; j++) {
+						Kernels.axpy(nextErr[j], ws, j * err.length, err, 0, err.length);
+					}
+				}
+
+				Layer.scaleByDerivative(net.getDenseLayer(layer).getFunction(), sums[layer], outs, 0, err, 0, err.length);
+			}
+
+			// Step the shared weights in place, skipping neurons with no error
+			for (int layer = 0; layer < layers; layer++) {
+				Layer l = net.getDenseLayer(layer);
+				float[] ws = l.getWeights();
+				float[] bs = l.getBiases();
+				float[] err = error[layer];
+				int cols = l.getNumInputs();
+
+				for (int i = 0; i < err.length; i++) {
+					float scale = learnRate * err[i];
+					if (scale == 0) {
+						continue;
+					}
+
+					if (layer == 0) {
+						// Each input neuron sees only its own input
+						if (in[i] != 0) {
+							ws[i] += scale * in[i];
+						}
+					} else {
+						Kernels.axpy(scale, acts[layer - 1], 0, ws, i * cols, cols);
+					}
+
+					bs[i] += scale;
+				}
+			}
+
+			return (mse / error[layers - 1].length);
+		}
+	}
+}
@@ -0,0 +1,529 @@
+package ann.jn.teach;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import ann.jn.neuroNet.NeuralNet;
+import ann.jn.neuroNet.Neuron;
+
+/**
+ * <p>
+ * Searches for the learning rate, momentum and hidden layer sizes with which a
+ * {@link BackPropagator} trains best, by training many candidate nets at once.
+ * </p>
+ * <p>
+ * Trials are added one at a time, as a grid, or drawn at random, and then raced by
+ * successive halving.  Every live trial is trained for a few epochs, the trials are ranked
+ * by their error, and only the best <code>1/eta</code> of them go on to the next rung, where
+ * they are trained <code>eta</code> times as long.  This repeats until one trial is left,
+ * which is then trained for the most epochs allowed, or the trials reach that many epochs.
+ * Most trials are thus dropped after a small share of the epochs a full run would take, and
+ * the epochs saved are spent on the trials that look best.  A trial whose error stops being
+ * finite is dropped at once, and one whose error falls to the error aimed for stops
+ * training, but stays in the race.
+ * </p>
+ * <p>
+ * The trials of a rung are trained concurrently on the threads of a {@link ForkJoinPool},
+ * each with a net and a BackPropagator of its own.  The weights of each trial are initialised
+ * from a seed of its own, so a search with the same seed and trials gives the same
+ * leaderboard whatever the number of threads.
+ * </p>
+ */
+public class HyperparameterSearch {
+	private final int inputs;
+	private final int outputs;
+	private final ForkJoinPool pool;
+	private final Random random;
+	private final List<Trial> trials = new ArrayList<Trial>();
+
+	private Neuron.INeuronActivationFunction func;
+	private int batchSize;
+	private Trial best;
+
+	/**
+	 * Creates a HyperparameterSearch for nets with the given numbers of inputs and outputs.
+	 * @param inputs the number of input neurons
+	 * @param outputs the number of output neurons
+	 * @param pool the pool the trials are trained on
+	 * @param seed the seed of the random trials and of the initial weights
+	 */
+	public HyperparameterSearch(int inputs, int outputs, ForkJoinPool pool, long seed) {
+		if (inputs < 1 || outputs < 1) {
+			throw new IllegalArgumentException("Invalid layers!");
+		}
+
+		this.inputs = inputs;
+		this.outputs = outputs;
+		this.pool = pool;
+		this.random = new Random(seed);
+	}
+
+	/**
+	 * Sets the activation function of every neuron of the trials' nets, or null for the
+	 * logistic function.
+	 * @param func the activation function
+	 */
+	public void setActivation(Neuron.INeuronActivationFunction func) {
+		this.func = func;
+	}
+
+	/**
+	 * Sets the number of samples per adjustment of the weights, as in
+	 * {@link BackPropagator#train(float, int, float[][], float[][], int)}, or 0 to adjust
+	 * them after every sample.
+	 * @param batchSize the batch size
+	 */
+	public void setBatchSize(int batchSize) {
+		if (batchSize < 0) {
+			throw new IllegalArgumentException("The batch size must not be negative");
+		}
+
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * Adds a trial with the given settings.
+	 * @param learn the learning rate
+	 * @param mom the momentum
+	 * @param hidden the size of each hidden layer
+	 * @return the trial
+	 */
+	public Trial addTrial(float learn, float mom, int... hidden) {
+		if (!(learn > 0) || !(mom >= 0 && mom < 1)) {
+			throw new IllegalArgumentException("Invalid learning rate or momentum");
+		}
+
+		for (int i = 0; i < hidden.length; i++) {
+			if (hidden[i] < 1) {
+				throw new IllegalArgumentException("Invalid layers!");
+			}
+		}
+
+		Trial t = new Trial(trials.size(), learn, mom, hidden.clone(), random.nextLong());
+		trials.add(t);
+		return (t);
+	}
+
+	/**
+	 * Adds one trial for every combination of the given settings.
+	 * @param learns the learning rates to try
+	 * @param moms the momenta to try
+	 * @param hiddens the hidden layer sizes to try
+	 */
+	public void addGrid(float[] learns, float[] moms, int[][] hiddens) {
+		for (int[] hidden : hiddens) {
+			for (float learn : learns) {
+				for (float mom : moms) {
+					addTrial(learn, mom, hidden);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Adds <code>count</code> trials with random settings.  Learning rates are drawn
+	 * evenly on a log scale, since good rates span orders of magnitude, momenta are drawn
+	 * evenly from their range, and hidden layer sizes from the given choices.
+	 * @param count the number of trials
+	 * @param learnMin the lowest learning rate
+	 * @param learnMax the highest learning rate
+	 * @param momMin the lowest momentum
+	 * @param momMax the highest momentum
+	 * @param hiddens the hidden layer sizes to choose from
+	 */
+	public void addRandom(int count, float learnMin, float learnMax, float momMin, float momMax, int[][] hiddens) {
+		if (!(learnMin > 0) || learnMax < learnMin || momMax < momMin || hiddens.length == 0) {
+			throw new IllegalArgumentException();
+		}
+
+		double logMin = Math.log(learnMin);
+		double logMax = Math.log(learnMax);
+		for (int i = 0; i < count; i++) {
+			float learn = (float) Math.exp(logMin + random.nextDouble() * (logMax - logMin));
+			float mom = momMin + random.nextFloat() * (momMax - momMin);
+			addTrial(learn, mom, hiddens[random.nextInt(hiddens.length)]);
+		}
+	}
+
+	/**
+	 * Races the trials on the given samples, ranking them by their error on the training
+	 * samples.  See {@link #search(float, int, int, int, float[][], float[][], float[][], float[][])}.
+	 * @param errMin the error to stop training a trial at
+	 * @param minEpochs the epochs every trial is trained for before the first cut
+	 * @param maxEpochs the most epochs any trial is trained for
+	 * @param eta the factor by which each rung cuts the trials and lengthens their training
+	 * @param ins the inputs of each sample
+	 * @param outs the target outputs of each sample
+	 * @return the best trial
+	 */
+	public Trial search(float errMin, int minEpochs, int maxEpochs, int eta, float[][] ins, float[][] outs) {
+		return (search(errMin, minEpochs, maxEpochs, eta, ins, outs, null, null));
+	}
+
+	/**
+	 * Races the trials by successive halving.  Every trial is first trained for
+	 * <code>minEpochs</code> epochs.  At the end of each rung the trials are ranked by their
+	 * error on the validation samples, the best <code>1/eta</code> of them, and at least
+	 * one, are kept, and those are trained until they have had <code>eta</code> times as
+	 * many epochs, up to <code>maxEpochs</code>.  Once a single trial is left it is trained
+	 * for <code>maxEpochs</code> epochs.  The nets of dropped trials are released.
+	 * Trials added since an earlier search are raced from the start; the others are not
+	 * trained again.
+	 * @param errMin the error to stop training a trial at
+	 * @param minEpochs the epochs every trial is trained for before the first cut
+	 * @param maxEpochs the most epochs any trial is trained for
+	 * @param eta the factor by which each rung cuts the trials and lengthens their training
+	 * @param ins the inputs of each sample
+	 * @param outs the target outputs of each sample
+	 * @param validIns the inputs the trials are ranked on, or null to rank them on their
+	 * training error
+	 * @param validOuts the target outputs the trials are ranked on
+	 * @return the best trial
+	 */
+	public Trial search(float errMin, int minEpochs, int maxEpochs, int eta, float[][] ins, float[][] outs,
+			float[][] validIns, float[][] validOuts) {
+		if (ins == null || outs == null || ins.length == 0 || ins.length != outs.length ||
+			ins[0].length != inputs || outs[0].length != outputs) {
+			throw new IllegalArgumentException();
+		} else if ((validIns == null) != (validOuts == null) ||
+			validIns != null && (validIns.length == 0 || validIns.length != validOuts.length)) {
+			throw new IllegalArgumentException("Invalid validation samples");
+		} else if (minEpochs < 1 || maxEpochs < minEpochs || eta < 2) {
+			throw new IllegalArgumentException("Invalid schedule");
+		}
+
+		List<Trial> live = new ArrayList<Trial>();
+		for (Trial t : trials) {
+			if (t.net == null && t.epochs == 0 && !t.dropped) {
+				t.net = createNet(t);
+				t.teacher = new BackPropagator(t.net, t.learnRate, t.momentum);
+				live.add(t);
+			}
+		}
+
+		List<Rung> tasks = new ArrayList<Rung>();
+		int rung = 0;
+		int epochs = minEpochs;
+		try {
+			while (!live.isEmpty()) {
+				tasks.clear();
+				for (Trial t : live) {
+					tasks.add(new Rung(t, epochs, errMin, ins, outs, validIns, validOuts));
+				}
+
+				for (Future<Void> f : pool.invokeAll(tasks)) {
+					f.get();
+				}
+
+				List<Trial> ranked = new ArrayList<Trial>();
+				for (Trial t : live) {
+					t.rung = rung;
+					if (t.isDiverged()) {
+						drop(t);
+					} else {
+						ranked.add(t);
+					}
+				}
+
+				Collections.sort(ranked, BY_ERROR);
+				if (epochs >= maxEpochs || ranked.isEmpty()) {
+					live = ranked;
+					break;
+				}
+
+				int keep = Math.max(1, ranked.size() / eta);
+				for (int i = keep; i < ranked.size(); i++) {
+					drop(ranked.get(i));
+				}
+
+				live = new ArrayList<Trial>(ranked.subList(0, keep));
+				// The last trial left has won, so it is trained for as long as allowed
+				epochs = keep == 1 ? maxEpochs : (int) Math.min(maxEpochs, (long) epochs * eta);
+				rung++;
+			}
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("A trial failed", e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while searching", e);
+		}
+
+		for (Trial t : live) {
+			t.teacher = null;
+		}
+
+		List<Trial> board = getLeaderboard();
+		best = board.isEmpty() || board.get(0).net == null ? null : board.get(0);
+		return (best);
+	}
+
+	/**
+	 * Returns the best trial of the last search, or null if every trial diverged.
+	 * @return the best trial
+	 */
+	public Trial getBest() {
+		return (best);
+	}
+
+	/**
+	 * Returns every trial, best first.  Trials that reached a later rung rank above those
+	 * dropped earlier, and trials of the same rung are ranked by their error.  Diverged
+	 * trials come last.
+	 * @return the ranked trials
+	 */
+	public List<Trial> getLeaderboard() {
+		List<Trial> board = new ArrayList<Trial>(trials);
+		Collections.sort(board, new Comparator<Trial>() {
+			@Override
+			public int compare(Trial a, Trial b) {
+				if (a.isDiverged() != b.isDiverged()) {
+					return a.isDiverged() ? 1 : -1;
+				} else if (a.rung != b.rung) {
+					return b.rung - a.rung;
+				}
+
+				return BY_ERROR.compare(a, b);
+			}
+		});
+
+		return (board);
+	}
+
+	private static final Comparator<Trial> BY_ERROR = new Comparator<Trial>() {
+		@Override
+		public int compare(Trial a, Trial b) {
+			int c = Float.compare(a.error, b.error);
+			return c != 0 ? c : a.id - b.id;
+		}
+	};
+
+	private void drop(Trial t) {
+		t.dropped = true;
+		t.net = null;
+		t.teacher = null;
+	}
+
+	/**
+	 * Creates the net of a trial, with small weights of either sign, since
+	 * {@link NeuralNet#randomizeWeights()} saturates wide layers.
+	 */
+	private NeuralNet createNet(Trial t) {
+		int[] layers = new int[t.hidden.length + 2];
+		layers[0] = inputs;
+		System.arraycopy(t.hidden, 0, layers, 1, t.hidden.length);
+		layers[layers.length - 1] = outputs;
+
+		NeuralNet nn = new NeuralNet(func, layers);
+		Random r = new Random(t.seed);
+		for (int l = 1; l < layers.length; l++) {
+			float[] ws = nn.getDenseLayer(l).getWeights();
+			float scale = 2 / (float) Math.sqrt(layers[l - 1]);
+			for (int i = 0; i < ws.length; i++) {
+				ws[i] = (r.nextFloat() - 0.5f) * scale;
+			}
+		}
+
+		nn.weightsChanged();
+		return (nn);
+	}
+
+	/**
+	 * Trains one trial through one rung.
+	 */
+	private final class Rung implements Callable<Void> {
+		private final Trial trial;
+		private final int epochs;
+		private final float errMin;
+		private final float[][] ins;
+		private final float[][] outs;
+		private final float[][] validIns;
+		private final float[][] validOuts;
+
+		Rung(Trial trial, int epochs, float errMin, float[][] ins, float[][] outs, float[][] validIns, float[][] validOuts) {
+			this.trial = trial;
+			this.epochs = epochs;
+			this.errMin = errMin;
+			this.ins = ins;
+			this.outs = outs;
+			this.validIns = validIns;
+			this.validOuts = validOuts;
+		}
+
+		@Override
+		public Void call() {
+			Trial t = trial;
+			BackPropagator bp = t.teacher;
+
+			// One epoch at a time, so that a diverging trial is stopped at once
+			while (t.epochs < epochs && !t.converged) {
+				if (batchSize > 0) {
+					bp.train(errMin, 1, ins, outs, batchSize);
+				} else {
+					bp.train(errMin, 1, ins, outs);
+				}
+
+				t.epochs++;
+				t.trainError = bp.getLastError();
+				if (Float.isNaN(t.trainError) || Float.isInfinite(t.trainError)) {
+					break;
+				}
+
+				t.converged = t.trainError <= errMin;
+			}
+
+			t.error = validIns == null ? t.trainError : validate(t.net);
+			return null;
+		}
+
+		/**
+		 * Returns the mean squared error of the net on the validation samples.
+		 */
+		private float validate(NeuralNet nn) {
+			float[] out = new float[outputs];
+			float sum = 0;
+			for (int j = 0; j < validIns.length; j++) {
+				nn.update(validIns[j], out);
+				float mse = 0;
+				for (int i = 0; i < out.length; i++) {
+					float d = validOuts[j][i] - out[i];
+					mse += d * d;
+				}
+
+				sum += mse / out.length;
+			}
+
+			return (sum / validIns.length);
+		}
+	}
+
+	/**
+	 * One set of settings raced by a {@link HyperparameterSearch}, and how it fared.
+	 */
+	public static final class Trial {
+		private final int id;
+		private final float learnRate;
+		private final float momentum;
+		private final int[] hidden;
+		private final long seed;
+
+		private NeuralNet net;
+		private BackPropagator teacher;
+		private int epochs;
+		private int rung;
+		private float error = Float.NaN;
+		private float trainError = Float.NaN;
+		private boolean converged;
+		private boolean dropped;
+
+		private Trial(int id, float learnRate, float momentum, int[] hidden, long seed) {
+			this.id = id;
+			this.learnRate = learnRate;
+			this.momentum = momentum;
+			this.hidden = hidden;
+			this.seed = seed;
+		}
+
+		/**
+		 * Returns the learning rate the trial was trained with.
+		 * @return the learning rate
+		 */
+		public float getLearnRate() {
+			return (learnRate);
+		}
+
+		/**
+		 * Returns the momentum the trial was trained with.
+		 * @return the momentum
+		 */
+		public float getMomentum() {
+			return (momentum);
+		}
+
+		/**
+		 * Returns the size of each hidden layer.
+		 * @return the hidden layer sizes
+		 */
+		public int[] getHiddenSizes() {
+			return (hidden.clone());
+		}
+
+		/**
+		 * Returns the number of epochs the trial was trained for.
+		 * @return the number of epochs
+		 */
+		public int getEpochs() {
+			return (epochs);
+		}
+
+		/**
+		 * Returns the last rung the trial was trained in, counting from 0.
+		 * @return the rung
+		 */
+		public int getRung() {
+			return (rung);
+		}
+
+		/**
+		 * Returns the error the trial was ranked by at the end of its last rung.
+		 * @return the error
+		 */
+		public float getError() {
+			return (error);
+		}
+
+		/**
+		 * Returns the mean error of the trial's last training epoch.
+		 * @return the error
+		 */
+		public float getTrainingError() {
+			return (trainError);
+		}
+
+		/**
+		 * Returns whether the trial's error stopped being finite.
+		 * @return whether the trial diverged
+		 */
+		public boolean isDiverged() {
+			return (epochs > 0 && !(error < Float.POSITIVE_INFINITY));
+		}
+
+		/**
+		 * Returns whether the trial was dropped before the end of the search.
+		 * @return whether the trial was dropped
+		 */
+		public boolean isDropped() {
+			return (dropped);
+		}
+
+		/**
+		 * Returns the trained net, or null if the trial was dropped.
+		 * @return the net
+		 */
+		public NeuralNet getNet() {
+			return (net);
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder();
+			sb.append("learn=").append(learnRate).append(" mom=").append(momentum).append(" hidden=");
+			for (int i = 0; i < hidden.length; i++) {
+				sb.append(i == 0 ? "" : "-").append(hidden[i]);
+			}
+
+			sb.append(" epochs=").append(epochs).append(" rung=").append(rung).append(" error=").append(error);
+			if (dropped) {
+				sb.append(" (dropped)");
+			}
+
+			return (sb.toString());
+		}
+	}
+}
@@ -0,0 +1,54 @@
+package ann.jn.teach;
+
+/**
+ * <p>
+ * Gradient descent with classic or Nesterov momentum.
+ * </p>
+ * <p>
+ * Each parameter keeps a velocity <code>v</code>.  A step sets
+ * <code>v = momentum * v + rate * g</code> and adds <code>v</code> to the parameter.  With
+ * Nesterov momentum the parameter instead moves by <code>momentum * v + rate * g</code>
+ * using the new velocity, which looks ahead along the velocity and damps overshooting.
+ * </p>
+ */
+public class Momentum extends Optimizer {
+	private final float momentum;
+	private final boolean nesterov;
+
+	/**
+	 * Creates classic momentum.
+	 * @param learnRate the learning rate
+	 * @param momentum the fraction of the velocity kept each step
+	 */
+	public Momentum(float learnRate, float momentum) {
+		this(learnRate, momentum, false);
+	}
+
+	/**
+	 * Creates classic or Nesterov momentum.
+	 * @param learnRate the learning rate
+	 * @param momentum the fraction of the velocity kept each step
+	 * @param nesterov whether to use Nesterov momentum
+	 */
+	public Momentum(float learnRate, float momentum, boolean nesterov) {
+		super(learnRate);
+		this.momentum = momentum;
+		this.nesterov = nesterov;
+	}
+
+	@Override
+	public int getStateSlots() {
+		return 1;
+	}
+
+	@Override
+	protected void apply(float[] w, int wOff, float[] g, int gOff, int s, int n) {
+		float[] v = slot(0);
+		for (int i = 0; i < n; i++) {
+			float step = rate * g[gOff + i];
+			float vel = momentum * v[s + i] + step;
+			v[s + i] = vel;
+			w[wOff + i] += nesterov ? momentum * vel + step : vel;
+		}
+	}
+}
@@ -0,0 +1,154 @@
+package ann.jn.teach;
+
+/**
+ * <p>
+ * Decides how a {@link BackPropagator} moves each weight and bias along its gradient.
+ * </p>
+ * <p>
+ * Every parameter of the net has one index, counted layer by layer with each layer's weights
+ * before its biases.  An Optimizer that keeps state per parameter, such as a velocity, keeps
+ * it in {@link #getStateSlots()} flat arrays indexed this way, so that the whole state of the
+ * Optimizer is those arrays and {@link #getStep()}, which is easy to checkpoint.
+ * </p>
+ * <p>
+ * Before each adjustment of the net the BackPropagator calls {@link #beginStep()}, which
+ * counts the step and sets {@link #rate} from the base learning rate and the
+ * {@link Schedule}.  It then calls {@link #apply(float[], int, float[], int, int, int)} for
+ * ranges of parameters, possibly from several threads at once for ranges that do not
+ * overlap.
+ * </p>
+ */
+public abstract class Optimizer {
+	private final float learnRate;
+	private Schedule schedule = Schedule.constant();
+	private float[][] state;
+
+	/**
+	 * The number of steps begun so far.
+	 */
+	protected long step;
+
+	/**
+	 * The learning rate of the current step.
+	 */
+	protected float rate;
+
+	/**
+	 * Creates an Optimizer with the given base learning rate.
+	 * @param learnRate the learning rate
+	 */
+	protected Optimizer(float learnRate) {
+		if (!(learnRate > 0)) {
+			throw new IllegalArgumentException("The learning rate must be positive");
+		}
+
+		this.learnRate = learnRate;
+	}
+
+	/**
+	 * Returns the number of values this Optimizer keeps for each parameter.
+	 * @return the number of state slots
+	 */
+	public abstract int getStateSlots();
+
+	/**
+	 * Adjusts <code>n</code> parameters starting at <code>w[wOff]</code>, whose gradients
+	 * start at <code>g[gOff]</code>.  The gradients point in the direction that lowers the
+	 * error, so a plain gradient step adds <code>rate * g</code>.
+	 * @param w the parameters
+	 * @param wOff the first parameter to adjust
+	 * @param g the gradients
+	 * @param gOff the gradient of the first parameter
+	 * @param s the state index of the first parameter
+	 * @param n the number of parameters
+	 */
+	protected abstract void apply(float[] w, int wOff, float[] g, int gOff, int s, int n);
+
+	/**
+	 * Called by {@link #beginStep()} once {@link #step} and {@link #rate} are set, so that
+	 * values shared by every parameter of the step can be worked out once.
+	 */
+	protected void prepare() {
+	}
+
+	/**
+	 * Sets the schedule that scales the learning rate with the step.
+	 * @param schedule the schedule
+	 */
+	public void setSchedule(Schedule schedule) {
+		if (schedule == null) {
+			throw new NullPointerException("The schedule cannot be null");
+		}
+
+		this.schedule = schedule;
+	}
+
+	/**
+	 * Returns the schedule of the learning rate.
+	 * @return the schedule
+	 */
+	public Schedule getSchedule() {
+		return schedule;
+	}
+
+	/**
+	 * Returns the base learning rate.
+	 * @return the learning rate
+	 */
+	public float getLearnRate() {
+		return learnRate;
+	}
+
+	/**
+	 * Returns the number of steps taken so far.
+	 * @return the step
+	 */
+	public long getStep() {
+		return step;
+	}
+
+	/**
+	 * Sets the number of steps taken so far, when resuming from a checkpoint.
+	 * @param step the step
+	 */
+	public void setStep(long step) {
+		this.step = step;
+	}
+
+	/**
+	 * Returns the state of every parameter, one array per slot, or null before the
+	 * Optimizer is first used.  The arrays are the backing storage, not copies.
+	 * @return the state
+	 */
+	public float[][] getState() {
+		return state;
+	}
+
+	/**
+	 * Allocates zeroed state for <code>params</code> parameters, unless state of that size
+	 * is already there.
+	 */
+	void start(int params) {
+		if (state == null || state.length != getStateSlots() || (state.length > 0 && state[0].length != params)) {
+			state = new float[getStateSlots()][params];
+		}
+	}
+
+	/**
+	 * Counts a new step and works out its learning rate.
+	 */
+	void beginStep() {
+		step++;
+		rate = learnRate * schedule.getFactor(step);
+		prepare();
+	}
+
+	/**
+	 * Returns the given state slot.
+	 * @param slot the slot
+	 * @return the state of every parameter in that slot
+	 */
+	protected final float[] slot(int slot) {
+		return state[slot];
+	}
+}
@@ -0,0 +1,52 @@
+package ann.jn.teach;
+
+/**
+ * <p>
+ * Gradient descent with each step divided by a running root mean square of the gradients.
+ * </p>
+ * <p>
+ * Each parameter keeps a mean square <code>s = decay * s + (1 - decay) * g * g</code>, and
+ * moves by <code>rate * g / (sqrt(s) + epsilon)</code>, so parameters with small gradients
+ * take steps as large as those with large ones.
+ * </p>
+ */
+public class RMSProp extends Optimizer {
+	private final float decay;
+	private final float epsilon;
+
+	/**
+	 * Creates RMSProp with a decay of 0.9 and an epsilon of 1e-7.
+	 * @param learnRate the learning rate
+	 */
+	public RMSProp(float learnRate) {
+		this(learnRate, 0.9f, 1e-7f);
+	}
+
+	/**
+	 * Creates RMSProp.
+	 * @param learnRate the learning rate
+	 * @param decay the fraction of the mean square kept each step
+	 * @param epsilon the value added to the root mean square to avoid dividing by zero
+	 */
+	public RMSProp(float learnRate, float decay, float epsilon) {
+		super(learnRate);
+		this.decay = decay;
+		this.epsilon = epsilon;
+	}
+
+	@Override
+	public int getStateSlots() {
+		return 1;
+	}
+
+	@Override
+	protected void apply(float[] w, int wOff, float[] g, int gOff, int s, int n) {
+		float[] ms = slot(0);
+		for (int i = 0; i < n; i++) {
+			float grad = g[gOff + i];
+			float m = decay * ms[s + i] + (1 - decay) * grad * grad;
+			ms[s + i] = m;
+			w[wOff + i] += rate * grad / ((float) Math.sqrt(m) + epsilon);
+		}
+	}
+}
@@ -0,0 +1,95 @@
+package ann.jn.teach;
+
+/**
+ * <p>
+ * Scales the learning rate of an {@link Optimizer} as training goes on.
+ * </p>
+ * <p>
+ * A Schedule returns a factor for each step, counted from 1, that the base learning rate is
+ * multiplied by.  The built in schedules are created by the static methods of this class.
+ * </p>
+ */
+public abstract class Schedule {
+	/**
+	 * Returns the factor of the learning rate at the given step.
+	 * @param step the step, counted from 1
+	 * @return the factor
+	 */
+	public abstract float getFactor(long step);
+
+	/**
+	 * Returns a schedule that keeps the learning rate constant.
+	 * @return the schedule
+	 */
+	public static Schedule constant() {
+		return new Schedule() {
+			@Override
+			public float getFactor(long step) {
+				return 1;
+			}
+		};
+	}
+
+	/**
+	 * Returns a schedule that multiplies the learning rate by <code>factor</code> every
+	 * <code>every</code> steps.
+	 * @param every the number of steps between decays
+	 * @param factor the factor of each decay
+	 * @return the schedule
+	 */
+	public static Schedule step(final long every, final float factor) {
+		if (every < 1) {
+			throw new IllegalArgumentException("Decays must be at least one step apart");
+		}
+
+		return new Schedule() {
+			@Override
+			public float getFactor(long step) {
+				return (float) Math.pow(factor, (step - 1) / every);
+			}
+		};
+	}
+
+	/**
+	 * Returns a schedule that multiplies the learning rate by <code>factor</code> each step.
+	 * @param factor the factor of each step, a little below 1
+	 * @return the schedule
+	 */
+	public static Schedule exponential(final float factor) {
+		return new Schedule() {
+			@Override
+			public float getFactor(long step) {
+				return (float) Math.pow(factor, step - 1);
+			}
+		};
+	}
+
+	/**
+	 * Returns a schedule that raises the learning rate linearly over <code>warmup</code>
+	 * steps, then lowers it along half a cosine to <code>min</code> of its base value at
+	 * step <code>total</code>, and keeps it there.
+	 * @param warmup the number of steps to raise the rate over, or 0
+	 * @param total the step at which the rate reaches its minimum
+	 * @param min the smallest factor
+	 * @return the schedule
+	 */
+	public static Schedule cosine(final long warmup, final long total, final float min) {
+		if (warmup < 0 || total <= warmup) {
+			throw new IllegalArgumentException("The schedule must end after its warmup");
+		}
+
+		return new Schedule() {
+			@Override
+			public float getFactor(long step) {
+				if (step <= warmup) {
+					return (float) step / warmup;
+				} else if (step >= total) {
+					return min;
+				}
+
+				double t = (double) (step - warmup) / (total - warmup);
+				return (float) (min + (1 - min) * 0.5 * (1 + Math.cos(Math.PI * t)));
+			}
+		};
+	}
+}
@@ -0,0 +1,145 @@
+package ann.jn.teach;
+
+import java.util.Arrays;
+
+import ann.jn.neuroNet.Layer;
+import ann.jn.neuroNet.SparseNet;
+
+/**
+ * <p>
+ * Fine-tunes a pruned {@link SparseNet} by back propagation with momentum, like
+ * {@link BackPropagator} does for a {@link ann.jn.neuroNet.NeuralNet}.
+ * </p>
+ * <p>
+ * Only the weights the SparseNet stores are adjusted, so pruned weights stay at zero and the
+ * net keeps its sparsity.  Errors are spread back and weights are adjusted along the stored
+ * weights only, which makes each step as much cheaper than a dense one as evaluation is.
+ * </p>
+ */
+public class SparseBackPropagator {
+	private SparseNet net;
+	private float learnRate;
+	private float momentum;
+	private float[][] change;
+	private float[][] error;
+	private float[] outputs;
+
+	private float lastError;
+	private int lastIter;
+
+	public SparseBackPropagator(SparseNet nn, float learn, float mom) {
+		net = nn;
+		learnRate = learn;
+		momentum = mom;
+
+		// One change per stored weight
+		int layers = net.getNumLayers();
+		change = new float[layers][];
+		error = new float[layers][];
+		for (int i = 0; i < layers; i++) {
+			change[i] = new float[net.getValues(i).length];
+			error[i] = new float[net.getLayerSize(i)];
+		}
+
+		outputs = new float[net.getLayerSize(layers - 1)];
+	}
+
+	public int getLastIteration() {
+		return (lastIter);
+	}
+
+	public float getLastError() {
+		return (lastError);
+	}
+
+	public void train(float errMin, int iterMax, float[][] ins, float[][] outs) {
+		if (ins == null || outs == null || ins.length != outs.length ||
+			ins[0].length != net.getLayerSize(0) ||
+			outs[0].length != net.getLayerSize(net.getNumLayers() - 1)) {
+			throw new IllegalArgumentException();
+		}
+
+		float err = 1;
+		int i = 0;
+		for (; i < iterMax && err > errMin; i++) {
+			float sum = 0;
+			for (int j = 0; j < ins.length; j++) {
+				net.update(ins[j], outputs);
+				sum += Math.abs(propagate(outs[j]));
+			}
+
+			err = sum / ins.length;
+		}
+
+		lastError = err;
+		lastIter = i;
+	}
+
+	public float propagate(float[] target) {
+		int layers = net.getNumLayers();
+		if (target.length != net.getLayerSize(layers - 1)) {
+			throw new IllegalArgumentException("target length doesn't match output nodes");
+		}
+
+		// Evaluate the cost
+		float mse = 0;
+		for (int layer = layers - 1; layer >= 0; layer--) {
+			float[] outs = net.getLayerOutputs(layer);
+			float[] err = error[layer];
+
+			if (layer == layers - 1) {
+				for (int i = 0; i < err.length; i++) {
+					err[i] = target[i] - outs[i];
+					mse += err[i] * err[i];
+				}
+			} else {
+				// Each stored weight of the next layer spreads its neuron's error back
+				int[] ptr = net.getRowPointers(layer + 1);
+				int[] col = net.getColumns(layer + 1);
+				float[] v = net.getValues(layer + 1);
+				float[] nextErr = error[layer + 1];
+				Arrays.fill(err, 0);
+
+				for (int j = 0; j < nextErr.length; j++) {
+					float e = nextErr[j];
+					for (int k = ptr[j]; k < ptr[j + 1]; k++) {
+						err[col[k]] += e * v[k];
+					}
+				}
+			}
+
+			Layer.scaleByDerivative(net.getActivationFunction(layer), net.getLayerSums(layer), outs, 0, err, 0, err.length);
+		}
+
+		mse /= error[layers - 1].length;
+
+		// Pass 2: calculate delta weight and adjust
+		for (int layer = 0; layer < layers; layer++) {
+			float[] ws = net.getValues(layer);
+			float[] bs = net.getBiases(layer);
+			float[] ch = change[layer];
+			float[] ins = layer == 0 ? net.getInputs() : net.getLayerOutputs(layer - 1);
+
+			for (int i = 0; i < error[layer].length; i++) {
+				float scale = learnRate * error[layer][i];
+
+				if (layer == 0) {
+					// Each input neuron sees only its own input
+					ch[i] = (scale * ins[i]) + (ch[i] * momentum);
+					ws[i] += ch[i];
+				} else {
+					int[] ptr = net.getRowPointers(layer);
+					int[] col = net.getColumns(layer);
+					for (int k = ptr[i]; k < ptr[i + 1]; k++) {
+						ch[k] = (scale * ins[col[k]]) + (ch[k] * momentum);
+						ws[k] += ch[k];
+					}
+				}
+
+				bs[i] += error[layer][i] * learnRate;
+			}
+		}
+
+		return (mse);
+	}
+}
@@ -0,0 +1,172 @@
+package ann.jn.teach.data;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * <p>
+ * A dataset stored as comma separated text, one sample per line, with the inputs of each
+ * sample followed by its target outputs.
+ * </p>
+ * <p>
+ * When a CsvDataset is opened it scans the file once and remembers where every block of
+ * lines starts, so that later each block is read on its own by seeking to it; only one block
+ * of the file is ever held in memory.  Blank lines are skipped.
+ * </p>
+ */
+public class CsvDataset implements IDataset {
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+
+	private final int inputs;
+	private final int outputs;
+	private final int blockSize;
+	private final long samples;
+	private final long[] blockStarts;
+	private final RandomAccessFile file;
+
+	/**
+	 * Opens a CSV dataset.
+	 * @param file the file
+	 * @param inputs the number of inputs on each line
+	 * @param outputs the number of target outputs on each line, after the inputs
+	 * @param header whether the first line holds column names rather than a sample
+	 * @param blockSize the number of samples per block
+	 * @throws IOException if the file cannot be read
+	 */
+	public CsvDataset(File file, int inputs, int outputs, boolean header, int blockSize) throws IOException {
+		if (inputs < 1 || outputs < 0) {
+			throw new IllegalArgumentException("Invalid sample shape");
+		} else if (blockSize < 1) {
+			throw new IllegalArgumentException("The block size must be positive");
+		}
+
+		this.inputs = inputs;
+		this.outputs = outputs;
+		this.blockSize = blockSize;
+
+		// Find the start of every block of lines
+		long[] starts = new long[16];
+		int blocks = 0;
+		long count = 0;
+		try (InputStream in = new BufferedInputStream(new FileInputStream(file), 1 << 16)) {
+			long pos = 0;
+			long lineStart = 0;
+			boolean blank = true;
+			boolean skip = header;
+			int c;
+
+			do {
+				c = in.read();
+				if (c == '\n' || c == -1) {
+					if (skip) {
+						skip = false;
+					} else if (!blank) {
+						if (count % blockSize == 0) {
+							if (blocks == starts.length) {
+								starts = Arrays.copyOf(starts, blocks * 2);
+							}
+
+							starts[blocks++] = lineStart;
+						}
+
+						count++;
+					}
+
+					lineStart = pos + 1;
+					blank = true;
+				} else if (c > ' ') {
+					blank = false;
+				}
+
+				pos++;
+			} while (c != -1);
+		}
+
+		this.samples = count;
+		this.blockStarts = Arrays.copyOf(starts, blocks);
+		this.file = new RandomAccessFile(file, "r");
+	}
+
+	@Override
+	public int getNumInputs() {
+		return inputs;
+	}
+
+	@Override
+	public int getNumOutputs() {
+		return outputs;
+	}
+
+	@Override
+	public long getNumSamples() {
+		return samples;
+	}
+
+	@Override
+	public int getBlockSize() {
+		return blockSize;
+	}
+
+	@Override
+	public int getNumBlocks() {
+		return blockStarts.length;
+	}
+
+	@Override
+	public synchronized int readBlock(int block, float[] ins, float[] outs) throws IOException {
+		if (block < 0 || block >= blockStarts.length) {
+			throw new IllegalArgumentException("Block " + block + " does not exist");
+		}
+
+		int rows = (int) Math.min(blockSize, samples - (long) block * blockSize);
+		// The reader is left open, since closing it would close the file
+		file.getChannel().position(blockStarts[block]);
+		BufferedReader reader = new BufferedReader(new InputStreamReader(Channels.newInputStream(file.getChannel()), ASCII));
+
+		int r = 0;
+		while (r < rows) {
+			String line = reader.readLine();
+			if (line == null) {
+				throw new IOException("The file ended inside block " + block);
+			} else if (line.trim().isEmpty()) {
+				continue;
+			}
+
+			String[] cols = line.split(",");
+			if (cols.length != inputs + outputs) {
+				throw new IOException("Expected " + (inputs + outputs) + " values but found " + cols.length +
+						" in block " + block);
+			}
+
+			try {
+				for (int i = 0; i < inputs; i++) {
+					ins[r * inputs + i] = Float.parseFloat(cols[i].trim());
+				}
+
+				for (int i = 0; i < outputs; i++) {
+					outs[r * outputs + i] = Float.parseFloat(cols[inputs + i].trim());
+				}
+			} catch (NumberFormatException e) {
+				throw new IOException("Invalid value in block " + block, e);
+			}
+
+			r++;
+		}
+
+		return rows;
+	}
+
+	@Override
+	public void close() throws IOException {
+		file.close();
+	}
+}
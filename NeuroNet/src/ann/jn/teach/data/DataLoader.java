@@ -0,0 +1,280 @@
+package ann.jn.teach.data;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * <p>
+ * Reads batches of samples from an {@link IDataset} on a background thread, so that training
+ * never waits for I/O.
+ * </p>
+ * <p>
+ * The loader thread reads the dataset one block at a time, epoch after epoch, and packs the
+ * samples into batches of a fixed number of rows.  When shuffling, the order of the blocks
+ * and the order of the samples within each block are shuffled each epoch.  Batches are
+ * recycled: while the trainer works on the batch returned by {@link #next()}, the loader
+ * fills the others, up to <code>prefetch</code> batches ahead.  A batch belongs to the caller
+ * only until the next call to {@link #next()}.
+ * </p>
+ * <p>
+ * The loader runs until it is closed.  Closing it does not close the dataset.
+ * </p>
+ */
+public class DataLoader implements Closeable {
+	private final IDataset data;
+	private final int batchSize;
+	private final boolean shuffle;
+	private final Random random;
+	private final BlockingQueue<Batch> ready;
+	private final BlockingQueue<Batch> free;
+	private final Thread thread;
+	private volatile boolean closed;
+	private Batch current;
+
+	/**
+	 * Creates a loader that shuffles with a random seed and prefetches two batches.
+	 * @param data the dataset to read
+	 * @param batchSize the number of samples per batch
+	 */
+	public DataLoader(IDataset data, int batchSize) {
+		this(data, batchSize, true, System.nanoTime(), 2);
+	}
+
+	/**
+	 * Creates a loader and starts its thread.
+	 * @param data the dataset to read
+	 * @param batchSize the number of samples per batch
+	 * @param shuffle whether to shuffle the samples each epoch
+	 * @param seed the seed of the shuffles
+	 * @param prefetch the most batches filled ahead of the trainer
+	 */
+	public DataLoader(IDataset data, int batchSize, boolean shuffle, long seed, int prefetch) {
+		if (batchSize < 1 || prefetch < 1) {
+			throw new IllegalArgumentException("The batch size and prefetch must be positive");
+		} else if (data.getNumSamples() == 0) {
+			throw new IllegalArgumentException("The dataset is empty");
+		}
+
+		this.data = data;
+		this.batchSize = batchSize;
+		this.shuffle = shuffle;
+		this.random = new Random(seed);
+		this.ready = new ArrayBlockingQueue<Batch>(prefetch + 1);
+		this.free = new ArrayBlockingQueue<Batch>(prefetch + 1);
+
+		// One batch for the trainer, one being filled, and the rest waiting
+		for (int i = 0; i < prefetch + 1; i++) {
+			free.add(new Batch(batchSize, data.getNumInputs(), data.getNumOutputs()));
+		}
+
+		thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				load();
+			}
+		}, "DataLoader prefetch thread");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Returns the next batch, waiting for it if it has not been read yet.  The batch
+	 * returned by the previous call is handed back to the loader.
+	 * @return the batch
+	 */
+	public Batch next() {
+		if (closed) {
+			throw new IllegalStateException("The DataLoader has been closed");
+		}
+
+		try {
+			if (current != null) {
+				free.put(current);
+				current = null;
+			}
+
+			Batch b = ready.take();
+			if (b.failure != null) {
+				ready.put(b);
+				throw new IllegalStateException("The dataset could not be read", b.failure);
+			}
+
+			current = b;
+			return b;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while waiting for a batch", e);
+		}
+	}
+
+	/**
+	 * Returns the number of samples in each batch but the last of an epoch.
+	 * @return the batch size
+	 */
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	/**
+	 * Returns the dataset this loader reads.
+	 * @return the dataset
+	 */
+	public IDataset getDataset() {
+		return data;
+	}
+
+	/**
+	 * Stops the loader thread.
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		thread.interrupt();
+	}
+
+	// Private methods
+	private void load() {
+		int ins = data.getNumInputs();
+		int outs = data.getNumOutputs();
+		int blockRows = data.getBlockSize();
+		float[] blockIns = new float[blockRows * ins];
+		float[] blockOuts = new float[blockRows * outs];
+		int[] blocks = new int[data.getNumBlocks()];
+		int[] rows = new int[blockRows];
+
+		try {
+			for (int epoch = 0; !closed; epoch++) {
+				for (int i = 0; i < blocks.length; i++) {
+					blocks[i] = i;
+				}
+
+				if (shuffle) {
+					permute(blocks, blocks.length);
+				}
+
+				long remaining = data.getNumSamples();
+				Batch batch = free.take();
+				batch.reset(epoch);
+
+				for (int b = 0; b < blocks.length; b++) {
+					int n = data.readBlock(blocks[b], blockIns, blockOuts);
+					for (int r = 0; r < n; r++) {
+						rows[r] = r;
+					}
+
+					if (shuffle) {
+						permute(rows, n);
+					}
+
+					for (int r = 0; r < n; r++) {
+						System.arraycopy(blockIns, rows[r] * ins, batch.inputs, batch.rows * ins, ins);
+						System.arraycopy(blockOuts, rows[r] * outs, batch.targets, batch.rows * outs, outs);
+						batch.rows++;
+						remaining--;
+
+						if (batch.rows == batchSize || remaining == 0) {
+							batch.endOfEpoch = remaining == 0;
+							ready.put(batch);
+
+							if (remaining > 0) {
+								batch = free.take();
+								batch.reset(epoch);
+							}
+						}
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			// Closed
+		} catch (IOException | RuntimeException e) {
+			Batch failed = new Batch(0, 0, 0);
+			failed.failure = e;
+
+			try {
+				ready.put(failed);
+			} catch (InterruptedException e1) {
+				// Closed
+			}
+		}
+	}
+
+	/**
+	 * Shuffles the first <code>n</code> values of <code>a</code>.
+	 */
+	private void permute(int[] a, int n) {
+		for (int i = n - 1; i > 0; i--) {
+			int j = random.nextInt(i + 1);
+			int t = a[i];
+			a[i] = a[j];
+			a[j] = t;
+		}
+	}
+
+	/**
+	 * A batch of samples, stored row-major with one row per sample.
+	 */
+	public static final class Batch {
+		private final float[] inputs;
+		private final float[] targets;
+		private int rows;
+		private int epoch;
+		private boolean endOfEpoch;
+		private Exception failure;
+
+		Batch(int capacity, int ins, int outs) {
+			inputs = new float[capacity * ins];
+			targets = new float[capacity * outs];
+		}
+
+		void reset(int epoch) {
+			this.rows = 0;
+			this.epoch = epoch;
+			this.endOfEpoch = false;
+		}
+
+		/**
+		 * Returns the inputs of the samples, one row per sample.  Only the first
+		 * {@link #getRows()} rows are filled.
+		 * @return the inputs
+		 */
+		public float[] getInputs() {
+			return inputs;
+		}
+
+		/**
+		 * Returns the target outputs of the samples, one row per sample.  Only the first
+		 * {@link #getRows()} rows are filled.
+		 * @return the targets
+		 */
+		public float[] getTargets() {
+			return targets;
+		}
+
+		/**
+		 * Returns the number of samples in this batch.
+		 * @return the number of samples
+		 */
+		public int getRows() {
+			return rows;
+		}
+
+		/**
+		 * Returns the epoch this batch belongs to, counted from 0.
+		 * @return the epoch
+		 */
+		public int getEpoch() {
+			return epoch;
+		}
+
+		/**
+		 * Returns whether this is the last batch of its epoch.
+		 * @return whether the epoch ends with this batch
+		 */
+		public boolean isEndOfEpoch() {
+			return endOfEpoch;
+		}
+	}
+}
@@ -0,0 +1,57 @@
+package ann.jn.teach.data;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * <p>
+ * A set of training samples that is read a block at a time rather than held on the heap.
+ * </p>
+ * <p>
+ * The samples are divided into blocks of {@link #getBlockSize()} consecutive samples, the last
+ * of which may be shorter.  Blocks can be read in any order, which lets a {@link DataLoader}
+ * shuffle a dataset far bigger than memory by shuffling the order of its blocks and the
+ * samples within each block.
+ * </p>
+ */
+public interface IDataset extends Closeable {
+	/**
+	 * Returns the number of input values of each sample.
+	 * @return the number of inputs
+	 */
+	public int getNumInputs();
+
+	/**
+	 * Returns the number of target output values of each sample.
+	 * @return the number of outputs
+	 */
+	public int getNumOutputs();
+
+	/**
+	 * Returns the number of samples in the dataset.
+	 * @return the number of samples
+	 */
+	public long getNumSamples();
+
+	/**
+	 * Returns the number of samples in each block but the last.
+	 * @return the block size
+	 */
+	public int getBlockSize();
+
+	/**
+	 * Returns the number of blocks.
+	 * @return the number of blocks
+	 */
+	public int getNumBlocks();
+
+	/**
+	 * Reads the samples of one block into row-major arrays, one row per sample.
+	 * @param block the block to read
+	 * @param ins receives {@link #getNumInputs()} values per sample
+	 * @param outs receives {@link #getNumOutputs()} values per sample
+	 * @return the number of samples read
+	 * @throws IOException if the samples cannot be read
+	 */
+	public int readBlock(int block, float[] ins, float[] outs) throws IOException;
+}
@@ -0,0 +1,278 @@
+package ann.jn.teach.data;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import ann.jn.neuroNet.DirectMemory;
+
+/**
+ * <p>
+ * A dataset stored in a binary file that is mapped into memory rather than read.
+ * </p>
+ * <p>
+ * The file starts with a {@value #HEADER_SIZE} byte header of little-endian values: the magic
+ * bytes "NDAT", the version, the number of inputs and of outputs per sample as ints, and the
+ * number of samples as a long, padded with zeros.  Each sample follows as its inputs and then its outputs, as
+ * little-endian 32 bit floats.  Files are written with {@link Writer}.
+ * </p>
+ * <p>
+ * The file is mapped in regions of at most {@value #MAX_REGION} bytes, so it may be far
+ * bigger than the heap; the operating system pages it in as blocks are read.
+ * </p>
+ */
+public class MappedDataset implements IDataset {
+	/**
+	 * The bytes "NDAT" read as a little-endian int.
+	 */
+	public static final int MAGIC = 0x5441444E;
+
+	/**
+	 * The version of the format.
+	 */
+	public static final int VERSION = 1;
+
+	/**
+	 * The size of the header, after which the samples start.
+	 */
+	public static final int HEADER_SIZE = 32;
+
+	/**
+	 * The most bytes mapped in one region.
+	 */
+	public static final int MAX_REGION = 1 << 30;
+
+	private final int inputs;
+	private final int outputs;
+	private final long samples;
+	private final int blockSize;
+	private final int rowsPerRegion;
+	private final MappedByteBuffer[] regions;
+	private final FloatBuffer[] floats;
+	private boolean closed;
+
+	/**
+	 * Maps a dataset file, to be read in blocks of 1024 samples.
+	 * @param file the file
+	 * @throws IOException if the file cannot be mapped or is not a dataset
+	 */
+	public MappedDataset(File file) throws IOException {
+		this(file, 1024);
+	}
+
+	/**
+	 * Maps a dataset file.
+	 * @param file the file
+	 * @param blockSize the number of samples per block
+	 * @throws IOException if the file cannot be mapped or is not a dataset
+	 */
+	public MappedDataset(File file, int blockSize) throws IOException {
+		if (blockSize < 1) {
+			throw new IllegalArgumentException("The block size must be positive");
+		}
+
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+			FileChannel ch = raf.getChannel();
+			if (raf.length() < HEADER_SIZE) {
+				throw new IOException(file + " is not a dataset");
+			}
+
+			byte[] bytes = new byte[HEADER_SIZE];
+			raf.readFully(bytes);
+			ByteBuffer header = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+			if (header.getInt() != MAGIC) {
+				throw new IOException(file + " is not a dataset");
+			} else if (header.getInt() != VERSION) {
+				throw new IOException(file + " has an unsupported version");
+			}
+
+			inputs = header.getInt();
+			outputs = header.getInt();
+			samples = header.getLong();
+
+			long rowBytes = 4L * (inputs + outputs);
+			if (inputs < 1 || outputs < 0 || samples < 0 || HEADER_SIZE + samples * rowBytes > ch.size()) {
+				throw new IOException(file + " is truncated or corrupt");
+			} else if (rowBytes > MAX_REGION) {
+				throw new IOException("The samples of " + file + " are too large to map");
+			}
+
+			this.blockSize = blockSize;
+			this.rowsPerRegion = (int) (MAX_REGION / rowBytes);
+
+			int count = (int) ((samples + rowsPerRegion - 1) / rowsPerRegion);
+			regions = new MappedByteBuffer[count];
+			floats = new FloatBuffer[count];
+			for (int i = 0; i < count; i++) {
+				long first = (long) i * rowsPerRegion;
+				long rows = Math.min(rowsPerRegion, samples - first);
+				regions[i] = ch.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE + first * rowBytes, rows * rowBytes);
+				regions[i].order(ByteOrder.LITTLE_ENDIAN);
+				floats[i] = regions[i].asFloatBuffer();
+			}
+		}
+	}
+
+	@Override
+	public int getNumInputs() {
+		return inputs;
+	}
+
+	@Override
+	public int getNumOutputs() {
+		return outputs;
+	}
+
+	@Override
+	public long getNumSamples() {
+		return samples;
+	}
+
+	@Override
+	public int getBlockSize() {
+		return blockSize;
+	}
+
+	@Override
+	public int getNumBlocks() {
+		return (int) ((samples + blockSize - 1) / blockSize);
+	}
+
+	@Override
+	public synchronized int readBlock(int block, float[] ins, float[] outs) throws IOException {
+		if (closed) {
+			throw new IOException("The dataset has been closed");
+		}
+
+		long first = (long) block * blockSize;
+		int rows = (int) Math.min(blockSize, samples - first);
+		if (block < 0 || rows <= 0) {
+			throw new IllegalArgumentException("Block " + block + " does not exist");
+		}
+
+		for (int r = 0; r < rows; r++) {
+			long row = first + r;
+			FloatBuffer fb = floats[(int) (row / rowsPerRegion)];
+			fb.position((int) (row % rowsPerRegion) * (inputs + outputs));
+			fb.get(ins, r * inputs, inputs);
+			fb.get(outs, r * outputs, outputs);
+		}
+
+		return rows;
+	}
+
+	/**
+	 * Unmaps the file.  The dataset must not be read afterwards.
+	 */
+	@Override
+	public synchronized void close() {
+		closed = true;
+		for (int i = 0; i < regions.length; i++) {
+			DirectMemory.free(regions[i]);
+			regions[i] = null;
+			floats[i] = null;
+		}
+	}
+
+	/**
+	 * Writes samples to a dataset file one at a time, so that a dataset bigger than the heap
+	 * can be built.  The number of samples is written into the header when the Writer is
+	 * closed.
+	 */
+	public static class Writer implements Closeable {
+		private final File file;
+		private final int inputs;
+		private final int outputs;
+		private final OutputStream out;
+		private final ByteBuffer row;
+		private long samples;
+
+		/**
+		 * Creates a dataset file, replacing any file already there.
+		 * @param file the file
+		 * @param inputs the number of inputs per sample
+		 * @param outputs the number of outputs per sample
+		 * @throws IOException if the file cannot be created
+		 */
+		public Writer(File file, int inputs, int outputs) throws IOException {
+			if (inputs < 1 || outputs < 0) {
+				throw new IllegalArgumentException("Invalid sample shape");
+			}
+
+			this.file = file;
+			this.inputs = inputs;
+			this.outputs = outputs;
+			this.out = new BufferedOutputStream(new FileOutputStream(file), 1 << 16);
+			this.row = ByteBuffer.allocate(Math.max(HEADER_SIZE, 4 * (inputs + outputs))).order(ByteOrder.LITTLE_ENDIAN);
+
+			row.putInt(MAGIC).putInt(VERSION).putInt(inputs).putInt(outputs).putLong(0);
+			out.write(row.array(), 0, HEADER_SIZE);
+		}
+
+		/**
+		 * Appends one sample.
+		 * @param in the inputs of the sample
+		 * @param target the target outputs of the sample
+		 * @throws IOException if the sample cannot be written
+		 */
+		public void write(float[] in, float[] target) throws IOException {
+			if (in.length != inputs || target.length != outputs) {
+				throw new IllegalArgumentException("Invalid sample shape");
+			}
+
+			row.clear();
+			for (int i = 0; i < inputs; i++) {
+				row.putFloat(in[i]);
+			}
+
+			for (int i = 0; i < outputs; i++) {
+				row.putFloat(target[i]);
+			}
+
+			out.write(row.array(), 0, row.position());
+			samples++;
+		}
+
+		/**
+		 * Finishes the file by writing the number of samples into its header.
+		 */
+		@Override
+		public void close() throws IOException {
+			out.close();
+
+			try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+				ByteBuffer count = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+				count.putLong(samples).flip();
+				raf.getChannel().write(count, 16);
+			}
+		}
+	}
+
+	/**
+	 * Writes the given samples to a dataset file.
+	 * @param file the file
+	 * @param ins the inputs of each sample
+	 * @param outs the target outputs of each sample
+	 * @throws IOException if the file cannot be written
+	 */
+	public static void write(File file, float[][] ins, float[][] outs) throws IOException {
+		if (ins.length == 0 || ins.length != outs.length) {
+			throw new IllegalArgumentException("There must be as many targets as inputs");
+		}
+
+		try (Writer w = new Writer(file, ins[0].length, outs[0].length)) {
+			for (int i = 0; i < ins.length; i++) {
+				w.write(ins[i], outs[i]);
+			}
+		}
+	}
+}
@@ -0,0 +1,12 @@
+/**
+ * <p>
+ * Holds sources of training samples that are read from disk as they are needed, rather than
+ * held on the heap.
+ * </p>
+ * <p>
+ * A dataset is an {@link ann.jn.teach.data.IDataset}, read a block at a time, and a
+ * {@link ann.jn.teach.data.DataLoader} reads it ahead of the trainer on a thread of its own,
+ * shuffled into batches for {@link ann.jn.teach.BackPropagator}.
+ * </p>
+ */
+package ann.jn.teach.data;
\ No newline at end of file
@@ -1,7 +1,12 @@
 package ann.jn.teach.gen;
 
+import java.io.File;
+import java.io.IOException;
+
+import ann.jn.neuroNet.ModelFile;
 import ann.jn.neuroNet.NeuralNet;
 import ann.jn.neuroNet.Neuron;
+import ann.jn.neuroNet.QuantizedNet;
 
 public final class WeightMapUtils {
 	public static final void setWeights(NeuralNet net, WeightMap weightMap) {
@@ -51,18 +56,52 @@ public final class WeightMapUtils {
 	}
 	
 	/**
-	 * Returns a new {@link NeuralNet} with the same number of layers and the same
-	 * layer lengths as the template net given. The values of the Weights in the
-	 * {@link Neurons} in the template net are not copied.
+	 * Quantizes the weights stored in <code>weightMap</code> for a net shaped like
+	 * <code>template</code>, see {@link QuantizedNet}.
+	 * @param template a net with the shape and activation functions of the map
+	 * @param weightMap the weights to quantize
+	 * @param format how to store the weights
+	 * @return the quantized net
+	 */
+	public static final QuantizedNet quantize(NeuralNet template, WeightMap weightMap, QuantizedNet.Format format) {
+		NeuralNet net = genMatchingNet(template);
+		setWeights(net, weightMap);
+		return QuantizedNet.quantize(net, format);
+	}
+	
+	/**
+	 * Writes the weights stored in <code>weightMap</code>, for a net shaped like
+	 * <code>template</code>, to a model file, see {@link ModelFile}.
+	 * @param template a net with the shape and activation functions of the map
+	 * @param weightMap the weights to write
+	 * @param file the destination
+	 * @throws IOException if the file cannot be written
+	 */
+	public static final void writeModel(NeuralNet template, WeightMap weightMap, File file) throws IOException {
+		NeuralNet net = genMatchingNet(template);
+		setWeights(net, weightMap);
+		ModelFile.write(net, file);
+	}
+	
+	/**
+	 * Returns a new {@link NeuralNet} with the same number of layers, the same
+	 * layer lengths and the same activation functions as the template net given.
+	 * The values of the Weights in the {@link Neurons} in the template net are not copied.
 	 * @param template
 	 * @return
 	 */
 	public static final NeuralNet genMatchingNet(NeuralNet template) {
 		int[] layers = new int[template.getNumLayers()];
+		Neuron.INeuronActivationFunction[] funcs = new Neuron.INeuronActivationFunction[layers.length];
 		for (int i = 0; i < template.getNumLayers(); i++) {
-			layers[i] = template.getLayer(i).length;
+			layers[i] = template.getLayerSize(i);
+			funcs[i] = template.getActivationFunction(i);
+		}
+		
+		if (template.getActivationFunction() != null) {
+			return new NeuralNet(template.getActivationFunction(), layers);
 		}
 		
-		return new NeuralNet(template.getActivationFunction(), layers);
+		return new NeuralNet(layers, funcs);
 	}
 }